@@ -27,6 +27,10 @@ public @interface Compensable {
 
     public boolean asyncCancel() default false;
 
+    public boolean parallelConfirm() default false;
+
+    public boolean parallelCancel() default false;
+
     class NullableTransactionContextEditor implements TransactionContextEditor {
 
         @Override
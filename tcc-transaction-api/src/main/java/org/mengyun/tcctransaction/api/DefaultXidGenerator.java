@@ -0,0 +1,44 @@
+package org.mengyun.tcctransaction.api;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds ids from a random node id chosen once per instance and a sequence, so generating an id
+ * takes no lock and never touches the entropy pool.
+ * <p/>
+ * layout: 8 bytes node id, 8 bytes sequence (big endian). Ids of the same node are increasing,
+ * which also keeps inserts into the xid index of a database repository local.
+ */
+public class DefaultXidGenerator implements XidGenerator {
+
+    private final long nodeId;
+
+    private final AtomicLong sequence;
+
+    public DefaultXidGenerator() {
+        SecureRandom random = new SecureRandom();
+        this.nodeId = random.nextLong();
+        this.sequence = new AtomicLong(random.nextLong());
+    }
+
+    @Override
+    public byte[] generate() {
+
+        long value = sequence.getAndIncrement();
+
+        byte[] bytes = new byte[16];
+
+        putLong(bytes, 0, nodeId);
+        putLong(bytes, 8, value);
+
+        return bytes;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+}
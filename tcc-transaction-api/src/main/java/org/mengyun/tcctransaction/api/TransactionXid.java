@@ -20,27 +20,45 @@ public class TransactionXid implements Xid, Serializable {
 
     private byte[] branchQualifier;
 
-    private static byte[] CUSTOMIZED_TRANSACTION_ID = "UniqueIdentity".getBytes();
+    private static byte[] CUSTOMIZED_TRANSACTION_ID = XidKeyCodec.CUSTOMIZED_TRANSACTION_ID;
+
+    private transient String key;
+
+    private transient int hash;
+
+    private static volatile XidGenerator xidGenerator = new DefaultXidGenerator();
+
+    /**
+     * jvm wide, the generator is shared by every transaction manager and repository of the jvm.
+     * set it once on startup, before any transaction begins.
+     */
+    public static void setXidGenerator(XidGenerator xidGenerator) {
+        TransactionXid.xidGenerator = xidGenerator;
+    }
 
     public TransactionXid() {
-        globalTransactionId = uuidToByteArray(UUID.randomUUID());
-        branchQualifier = uuidToByteArray(UUID.randomUUID());
+        globalTransactionId = xidGenerator.generate();
+        branchQualifier = xidGenerator.generate();
     }
 
     public void setGlobalTransactionId(byte[] globalTransactionId) {
         this.globalTransactionId = globalTransactionId;
+        this.key = null;
+        this.hash = 0;
     }
 
     public void setBranchQualifier(byte[] branchQualifier) {
         this.branchQualifier = branchQualifier;
+        this.key = null;
+        this.hash = 0;
     }
 
     public TransactionXid(Object uniqueIdentity) {
 
         if (uniqueIdentity == null) {
 
-            globalTransactionId = uuidToByteArray(UUID.randomUUID());
-            branchQualifier = uuidToByteArray(UUID.randomUUID());
+            globalTransactionId = xidGenerator.generate();
+            branchQualifier = xidGenerator.generate();
 
         } else {
 
@@ -52,7 +70,7 @@ public class TransactionXid implements Xid, Serializable {
 
     public TransactionXid(byte[] globalTransactionId) {
         this.globalTransactionId = globalTransactionId;
-        this.branchQualifier = uuidToByteArray(UUID.randomUUID());
+        this.branchQualifier = xidGenerator.generate();
     }
 
     public TransactionXid(byte[] globalTransactionId, byte[] branchQualifier) {
@@ -78,19 +96,21 @@ public class TransactionXid implements Xid, Serializable {
     @Override
     public String toString() {
 
-        StringBuilder stringBuilder = new StringBuilder();
-        if (Arrays.equals(CUSTOMIZED_TRANSACTION_ID, globalTransactionId)) {
+        String key = this.key;
 
-            stringBuilder.append(new String(globalTransactionId));
-            stringBuilder.append(":").append(new String(branchQualifier));
-
-        } else {
-
-            stringBuilder.append(UUID.nameUUIDFromBytes(globalTransactionId).toString());
-            stringBuilder.append(":").append(UUID.nameUUIDFromBytes(branchQualifier).toString());
+        if (key == null) {
+            key = XidKeyCodec.encode(this);
+            this.key = key;
         }
 
-        return stringBuilder.toString();
+        return key;
+    }
+
+    /**
+     * the md5 based form toString returned before {@link XidKeyCodec}, only for finding transactions stored with it.
+     */
+    public String toLegacyString() {
+        return XidKeyCodec.encodeLegacy(this);
     }
 
     public TransactionXid clone() {
@@ -108,15 +128,27 @@ public class TransactionXid implements Xid, Serializable {
             System.arraycopy(branchQualifier, 0, cloneBranchQualifier, 0, branchQualifier.length);
         }
 
-        return new TransactionXid(cloneGlobalTransactionId, cloneBranchQualifier);
+        TransactionXid clone = new TransactionXid(cloneGlobalTransactionId, cloneBranchQualifier);
+
+        //the key and hash are computed once on the xid cloned and shared by all its clones.
+        clone.key = toString();
+        clone.hash = hashCode();
+
+        return clone;
     }
 
     public int hashCode() {
+
+        if (hash != 0) {
+            return hash;
+        }
+
         final int prime = 31;
         int result = 1;
         result = prime * result + this.getFormatId();
         result = prime * result + Arrays.hashCode(branchQualifier);
         result = prime * result + Arrays.hashCode(globalTransactionId);
+        hash = result;
         return result;
     }
 
@@ -129,7 +161,9 @@ public class TransactionXid implements Xid, Serializable {
             return false;
         }
         TransactionXid other = (TransactionXid) obj;
-        if (this.getFormatId() != other.getFormatId()) {
+        if (hash != 0 && other.hash != 0 && hash != other.hash) {
+            return false;
+        } else if (this.getFormatId() != other.getFormatId()) {
             return false;
         } else if (!Arrays.equals(branchQualifier, other.branchQualifier)) {
             return false;
@@ -139,13 +173,6 @@ public class TransactionXid implements Xid, Serializable {
         return true;
     }
 
-    private static byte[] uuidToByteArray(UUID uuid) {
-        ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-        bb.putLong(uuid.getMostSignificantBits());
-        bb.putLong(uuid.getLeastSignificantBits());
-        return bb.array();
-    }
-
     private static UUID byteArrayToUUID(byte[] bytes) {
         ByteBuffer bb = ByteBuffer.wrap(bytes);
         long firstLong = bb.getLong();
@@ -0,0 +1,10 @@
+package org.mengyun.tcctransaction.api;
+
+/**
+ * Generates the 16 bytes global transaction ids and branch qualifiers of {@link TransactionXid}.
+ * Implementations are called on every transaction begin and participant enlist, so they must be thread safe.
+ */
+public interface XidGenerator {
+
+    public byte[] generate();
+}
@@ -0,0 +1,107 @@
+package org.mengyun.tcctransaction.api;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Encodes a xid into the key used by the redis and file system repositories.
+ * <p/>
+ * key form: hex(globalTransactionId):hex(branchQualifier), or UniqueIdentity:branchQualifier for a xid
+ * created from a unique identity. Keys written before this codec hashed both ids with
+ * {@link UUID#nameUUIDFromBytes(byte[])}, {@link #encodeLegacy(Xid)} still builds that form for reading them.
+ */
+public final class XidKeyCodec {
+
+    static final byte[] CUSTOMIZED_TRANSACTION_ID = "UniqueIdentity".getBytes();
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private XidKeyCodec() {
+
+    }
+
+    public static String encode(javax.transaction.xa.Xid xid) {
+
+        byte[] globalTransactionId = xid.getGlobalTransactionId();
+        byte[] branchQualifier = xid.getBranchQualifier();
+
+        if (Arrays.equals(CUSTOMIZED_TRANSACTION_ID, globalTransactionId)) {
+            return new StringBuilder().append(new String(globalTransactionId)).append(":").append(new String(branchQualifier)).toString();
+        }
+
+        char[] chars = new char[(globalTransactionId.length + branchQualifier.length) * 2 + 1];
+
+        int index = appendHex(chars, 0, globalTransactionId);
+        chars[index++] = ':';
+        appendHex(chars, index, branchQualifier);
+
+        return new String(chars);
+    }
+
+    public static String encodeLegacy(javax.transaction.xa.Xid xid) {
+
+        byte[] globalTransactionId = xid.getGlobalTransactionId();
+        byte[] branchQualifier = xid.getBranchQualifier();
+
+        if (Arrays.equals(CUSTOMIZED_TRANSACTION_ID, globalTransactionId)) {
+            return encode(xid);
+        }
+
+        return new StringBuilder().append(UUID.nameUUIDFromBytes(globalTransactionId).toString())
+                .append(":").append(UUID.nameUUIDFromBytes(branchQualifier).toString()).toString();
+    }
+
+    public static TransactionXid decode(String key) {
+
+        int index = key.indexOf(':');
+
+        if (index < 0) {
+            throw new IllegalArgumentException("illegal xid key:" + key);
+        }
+
+        String globalTransactionId = key.substring(0, index);
+        String branchQualifier = key.substring(index + 1);
+
+        if (globalTransactionId.equals(new String(CUSTOMIZED_TRANSACTION_ID))) {
+            return new TransactionXid(CUSTOMIZED_TRANSACTION_ID, branchQualifier.getBytes());
+        }
+
+        return new TransactionXid(fromHex(globalTransactionId), fromHex(branchQualifier));
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        appendHex(chars, 0, bytes);
+        return new String(chars);
+    }
+
+    public static byte[] fromHex(String hex) {
+
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("illegal hex string:" + hex);
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("illegal hex string:" + hex);
+            }
+
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+
+        return bytes;
+    }
+
+    private static int appendHex(char[] chars, int index, byte[] bytes) {
+        for (byte b : bytes) {
+            chars[index++] = HEX_DIGITS[(b >> 4) & 0x0f];
+            chars[index++] = HEX_DIGITS[b & 0x0f];
+        }
+        return index;
+    }
+}
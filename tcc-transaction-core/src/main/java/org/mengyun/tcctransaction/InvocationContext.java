@@ -20,6 +20,13 @@ public class InvocationContext implements Serializable {
 
     }
 
+    /**
+     * a context naming only the method, invoked with the target class, parameter types and args of another context.
+     */
+    public InvocationContext(String methodName) {
+        this.methodName = methodName;
+    }
+
     public InvocationContext(Class targetClass, String methodName, Class[] parameterTypes, Object... args) {
         this.methodName = methodName;
         this.parameterTypes = parameterTypes;
@@ -9,6 +9,11 @@ import java.io.Serializable;
 
 /**
  * Created by changmingxie on 10/27/15.
+ * <p/>
+ * The confirm and cancel methods of a participant take the same arguments. A cancel context holding its method name
+ * only is resolved against the confirm context, so the arguments are held and stored once. Readers before this
+ * cannot resolve it, the interceptor creates it only when compactCancelContext is set. Participants stored with two
+ * full contexts are read as they are.
  */
 public class Participant implements Serializable {
 
@@ -27,10 +32,8 @@ public class Participant implements Serializable {
     }
 
     public Participant(TransactionXid xid, InvocationContext confirmInvocationContext, InvocationContext cancelInvocationContext, Class<? extends TransactionContextEditor> transactionContextEditorClass) {
+        this(confirmInvocationContext, cancelInvocationContext, transactionContextEditorClass);
         this.xid = xid;
-        this.confirmInvocationContext = confirmInvocationContext;
-        this.cancelInvocationContext = cancelInvocationContext;
-        this.transactionContextEditorClass = transactionContextEditorClass;
     }
 
     public Participant(InvocationContext confirmInvocationContext, InvocationContext cancelInvocationContext, Class<? extends TransactionContextEditor> transactionContextEditorClass) {
@@ -39,12 +42,23 @@ public class Participant implements Serializable {
         this.transactionContextEditorClass = transactionContextEditorClass;
     }
 
+    /**
+     * whether the two contexts invoke the same target class with the same parameter types and args instances.
+     */
+    public static boolean sharesInvocation(InvocationContext confirmInvocationContext, InvocationContext cancelInvocationContext) {
+        return confirmInvocationContext != null && cancelInvocationContext != null
+                && confirmInvocationContext.getTargetClass() != null
+                && confirmInvocationContext.getTargetClass() == cancelInvocationContext.getTargetClass()
+                && confirmInvocationContext.getParameterTypes() == cancelInvocationContext.getParameterTypes()
+                && confirmInvocationContext.getArgs() == cancelInvocationContext.getArgs();
+    }
+
     public void setXid(TransactionXid xid) {
         this.xid = xid;
     }
 
     public void rollback() {
-        Terminator.invoke(new TransactionContext(xid, TransactionStatus.CANCELLING.getId()), cancelInvocationContext, transactionContextEditorClass);
+        Terminator.invoke(new TransactionContext(xid, TransactionStatus.CANCELLING.getId()), getCancelInvocationContext(), transactionContextEditorClass);
     }
 
     public void commit() {
@@ -60,7 +74,20 @@ public class Participant implements Serializable {
     }
 
     public InvocationContext getCancelInvocationContext() {
+
+        //a cancel context without target class is the method name of a shared invocation.
+        if (cancelInvocationContext != null && cancelInvocationContext.getTargetClass() == null && confirmInvocationContext != null) {
+            return new InvocationContext(confirmInvocationContext.getTargetClass(),
+                    cancelInvocationContext.getMethodName(),
+                    confirmInvocationContext.getParameterTypes(),
+                    confirmInvocationContext.getArgs());
+        }
+
         return cancelInvocationContext;
     }
 
+    public Class<? extends TransactionContextEditor> getTransactionContextEditorClass() {
+        return transactionContextEditorClass;
+    }
+
 }
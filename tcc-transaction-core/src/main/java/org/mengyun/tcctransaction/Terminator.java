@@ -5,13 +5,21 @@ import org.mengyun.tcctransaction.api.TransactionContextEditor;
 import org.mengyun.tcctransaction.support.FactoryBuilder;
 import org.mengyun.tcctransaction.utils.StringUtils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by changmingxie on 10/30/15.
  */
 public final class Terminator {
 
+    private static final ConcurrentHashMap<InvokerKey, Invoker> invokers = new ConcurrentHashMap<InvokerKey, Invoker>();
+
     public Terminator() {
 
     }
@@ -23,15 +31,11 @@ public final class Terminator {
 
             try {
 
-                Object target = FactoryBuilder.factoryOf(invocationContext.getTargetClass()).getInstance();
-
-                Method method = null;
+                Invoker invoker = getInvoker(invocationContext, transactionContextEditorClass);
 
-                method = target.getClass().getMethod(invocationContext.getMethodName(), invocationContext.getParameterTypes());
+                invoker.editor.set(transactionContext, invoker.target, invoker.method, invocationContext.getArgs());
 
-                FactoryBuilder.factoryOf(transactionContextEditorClass).getInstance().set(transactionContext, target, method, invocationContext.getArgs());
-
-                return method.invoke(target, invocationContext.getArgs());
+                return invoker.invoke(invocationContext.getArgs());
 
             } catch (Exception e) {
                 throw new SystemException(e);
@@ -39,4 +43,114 @@ public final class Terminator {
         }
         return null;
     }
+
+    private static Invoker getInvoker(InvocationContext invocationContext, Class<? extends TransactionContextEditor> transactionContextEditorClass) throws NoSuchMethodException {
+
+        InvokerKey key = new InvokerKey(invocationContext.getTargetClass(), invocationContext.getMethodName(), invocationContext.getParameterTypes(), transactionContextEditorClass);
+
+        Invoker invoker = invokers.get(key);
+
+        if (invoker == null) {
+
+            Object target = FactoryBuilder.factoryOf(invocationContext.getTargetClass()).getInstance();
+
+            Method method = target.getClass().getMethod(invocationContext.getMethodName(), invocationContext.getParameterTypes());
+
+            TransactionContextEditor editor = FactoryBuilder.factoryOf(transactionContextEditorClass).getInstance();
+
+            invokers.putIfAbsent(key, new Invoker(target, method, editor));
+            invoker = invokers.get(key);
+        }
+
+        return invoker;
+    }
+
+    private static class Invoker {
+
+        final Object target;
+
+        final Method method;
+
+        final TransactionContextEditor editor;
+
+        //(Object target, Object[] args)Object, null when the method is not accessible through a method handle.
+        final MethodHandle handle;
+
+        Invoker(Object target, Method method, TransactionContextEditor editor) {
+            this.target = target;
+            this.method = method;
+            this.editor = editor;
+            this.handle = compile(method);
+        }
+
+        Object invoke(Object[] args) throws Exception {
+
+            if (handle == null) {
+                return method.invoke(target, args);
+            }
+
+            try {
+                return handle.invokeExact(target, args);
+            } catch (Throwable throwable) {
+                //keep the same exception chain as reflective invocation.
+                throw new InvocationTargetException(throwable);
+            }
+        }
+
+        private static MethodHandle compile(Method method) {
+            try {
+                int parameterCount = method.getParameterTypes().length;
+
+                return MethodHandles.publicLookup().unreflect(method)
+                        .asType(MethodType.genericMethodType(parameterCount + 1))
+                        .asSpreader(Object[].class, parameterCount);
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+    }
+
+    private static class InvokerKey {
+
+        private final Class targetClass;
+
+        private final String methodName;
+
+        private final Class[] parameterTypes;
+
+        private final Class editorClass;
+
+        private final int hashCode;
+
+        InvokerKey(Class targetClass, String methodName, Class[] parameterTypes, Class editorClass) {
+            this.targetClass = targetClass;
+            this.methodName = methodName;
+            this.parameterTypes = parameterTypes;
+            this.editorClass = editorClass;
+
+            int result = targetClass.hashCode();
+            result = 31 * result + methodName.hashCode();
+            result = 31 * result + Arrays.hashCode(parameterTypes);
+            result = 31 * result + (editorClass != null ? editorClass.hashCode() : 0);
+            this.hashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            InvokerKey that = (InvokerKey) o;
+
+            return targetClass.equals(that.targetClass)
+                    && methodName.equals(that.methodName)
+                    && Arrays.equals(parameterTypes, that.parameterTypes)
+                    && (editorClass != null ? editorClass.equals(that.editorClass) : that.editorClass == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
 }
@@ -12,7 +12,13 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by changmingxie on 10/26/15.
@@ -39,6 +45,13 @@ public class Transaction implements Serializable {
 
     private Map<String, Object> attachments = new ConcurrentHashMap<String, Object>();
 
+    private transient boolean pendingCreate = false;
+
+    private transient boolean pendingUpdate = false;
+
+    //participants before this index are already stored, set by the repository after each write or read.
+    private transient int persistedParticipantCount = 0;
+
     public Transaction() {
 
     }
@@ -62,6 +75,19 @@ public class Transaction implements Serializable {
         this.transactionType = transactionType;
     }
 
+    /**
+     * restore a persisted transaction, participants and attachments are added afterwards.
+     */
+    public Transaction(TransactionXid xid, TransactionStatus status, TransactionType transactionType, int retriedCount, Date createTime, Date lastUpdateTime, long version) {
+        this.xid = xid;
+        this.status = status;
+        this.transactionType = transactionType;
+        this.retriedCount = retriedCount;
+        this.createTime = createTime;
+        this.lastUpdateTime = lastUpdateTime;
+        this.version = version;
+    }
+
     public void enlistParticipant(Participant participant) {
         participants.add(participant);
     }
@@ -102,6 +128,144 @@ public class Transaction implements Serializable {
         }
     }
 
+    public void commit(ExecutorService executorService) {
+        terminateInParallel(executorService, true);
+    }
+
+    public void rollback(ExecutorService executorService) {
+        terminateInParallel(executorService, false);
+    }
+
+    /**
+     * terminate all participants at once and throw the first failure after all of them are done.
+     * participants not yet started by the executor or rejected by it are run by the current thread,
+     * so a nested termination never waits on a busy pool.
+     */
+    private void terminateInParallel(ExecutorService executorService, final boolean isCommit) {
+
+        if (executorService == null || participants.size() <= 1) {
+            if (isCommit) {
+                commit();
+            } else {
+                rollback();
+            }
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(participants.size() - 1);
+
+        //a participant is run by the thread claiming it first, a running task cannot be taken back by cancel.
+        final List<AtomicBoolean> claims = new ArrayList<AtomicBoolean>(participants.size() - 1);
+
+        for (int i = 1; i < participants.size(); i++) {
+            final Participant participant = participants.get(i);
+            final AtomicBoolean claim = new AtomicBoolean();
+
+            Future<Void> future = null;
+
+            try {
+                future = executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        if (claim.compareAndSet(false, true)) {
+                            terminate(participant, isCommit);
+                        }
+                        return null;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //run below by the current thread.
+            }
+
+            futures.add(future);
+            claims.add(claim);
+        }
+
+        Throwable failure = null;
+
+        try {
+            terminate(participants.get(0), isCommit);
+        } catch (Throwable throwable) {
+            failure = throwable;
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+
+            Future<Void> future = futures.get(i);
+            Throwable throwable = null;
+
+            if (claims.get(i).compareAndSet(false, true)) {
+
+                if (future != null) {
+                    future.cancel(false);
+                }
+
+                try {
+                    terminate(participants.get(i + 1), isCommit);
+                } catch (Throwable e) {
+                    throwable = e;
+                }
+            } else {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throwable = e.getCause();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throwable = e;
+                }
+            }
+
+            if (throwable != null) {
+                if (failure == null) {
+                    failure = throwable;
+                } else {
+                    failure.addSuppressed(throwable);
+                }
+            }
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new SystemException(failure);
+        }
+    }
+
+    private static void terminate(Participant participant, boolean isCommit) {
+        if (isCommit) {
+            participant.commit();
+        } else {
+            participant.rollback();
+        }
+    }
+
+    public boolean isPendingCreate() {
+        return pendingCreate;
+    }
+
+    public void setPendingCreate(boolean pendingCreate) {
+        this.pendingCreate = pendingCreate;
+    }
+
+    public boolean isPendingUpdate() {
+        return pendingUpdate;
+    }
+
+    public void setPendingUpdate(boolean pendingUpdate) {
+        this.pendingUpdate = pendingUpdate;
+    }
+
+    public int getPersistedParticipantCount() {
+        return persistedParticipantCount;
+    }
+
+    public void setPersistedParticipantCount(int persistedParticipantCount) {
+        this.persistedParticipantCount = persistedParticipantCount;
+    }
+
     public int getRetriedCount() {
         return retriedCount;
     }
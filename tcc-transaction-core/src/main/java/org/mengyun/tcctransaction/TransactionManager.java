@@ -3,7 +3,6 @@ package org.mengyun.tcctransaction;
 import org.apache.log4j.Logger;
 import org.mengyun.tcctransaction.api.TransactionContext;
 import org.mengyun.tcctransaction.api.TransactionStatus;
-import org.mengyun.tcctransaction.api.TransactionXid;
 import org.mengyun.tcctransaction.common.TransactionType;
 
 import java.util.Deque;
@@ -23,6 +22,14 @@ public class TransactionManager {
 
     private ExecutorService executorService;
 
+    private ExecutorService parallelTerminateExecutorService;
+
+    private boolean parallelTerminate = false;
+
+    private boolean deferRootCreate = false;
+
+    private boolean bufferedTry = false;
+
     public void setTransactionRepository(TransactionRepository transactionRepository) {
         this.transactionRepository = transactionRepository;
     }
@@ -31,6 +38,34 @@ public class TransactionManager {
         this.executorService = executorService;
     }
 
+    public void setParallelTerminateExecutorService(ExecutorService parallelTerminateExecutorService) {
+        this.parallelTerminateExecutorService = parallelTerminateExecutorService;
+    }
+
+    public void setParallelTerminate(boolean parallelTerminate) {
+        this.parallelTerminate = parallelTerminate;
+    }
+
+    /**
+     * the root transaction is stored only once a participant other than the root's own compensable method is
+     * enlisted. a root ending without such a participant and confirmed or cancelled in its thread is neither created
+     * nor deleted unless its own confirm or cancel fails, then it is created for the recovery job to retry. its own
+     * confirm or cancel is lost if the node stops while it runs.
+     */
+    public void setDeferRootCreate(boolean deferRootCreate) {
+        this.deferRootCreate = deferRootCreate;
+    }
+
+    /**
+     * the first participant of a root is written together with the next one or the status change, and the root is
+     * created as with deferRootCreate. a root without remote participants ended in its thread costs no repository
+     * call, one ended asynchronously is created and deleted. branches are written as without buffering, so a branch
+     * and its participant are stored before its try runs and a later cancel always finds them.
+     */
+    public void setBufferedTry(boolean bufferedTry) {
+        this.bufferedTry = bufferedTry;
+    }
+
     public TransactionManager() {
 
 
@@ -38,21 +73,26 @@ public class TransactionManager {
 
     public Transaction begin(Object uniqueIdentify) {
         Transaction transaction = new Transaction(uniqueIdentify,TransactionType.ROOT);
-        transactionRepository.create(transaction);
+
+        //the xid of a unique identity must be checked for duplication on begin, so it is never deferred.
+        if ((deferRootCreate || bufferedTry) && uniqueIdentify == null) {
+            transaction.setPendingCreate(true);
+        } else {
+            transactionRepository.create(transaction);
+        }
+
         registerTransaction(transaction);
         return transaction;
     }
 
     public Transaction begin() {
-        Transaction transaction = new Transaction(TransactionType.ROOT);
-        transactionRepository.create(transaction);
-        registerTransaction(transaction);
-        return transaction;
+        return begin(null);
     }
 
     public Transaction propagationNewBegin(TransactionContext transactionContext) {
 
         Transaction transaction = new Transaction(transactionContext);
+
         transactionRepository.create(transaction);
 
         registerTransaction(transaction);
@@ -72,12 +112,18 @@ public class TransactionManager {
     }
 
     public void commit(boolean asyncCommit) {
+        commit(asyncCommit, false);
+    }
+
+    public void commit(boolean asyncCommit, final boolean parallelCommit) {
 
         final Transaction transaction = getCurrentTransaction();
 
         transaction.changeStatus(TransactionStatus.CONFIRMING);
 
-        transactionRepository.update(transaction);
+        if (isPersistentTermination(transaction, asyncCommit)) {
+            persistTransaction(transaction);
+        }
 
         if (asyncCommit) {
             try {
@@ -86,7 +132,7 @@ public class TransactionManager {
                 executorService.submit(new Runnable() {
                     @Override
                     public void run() {
-                        commitTransaction(transaction);
+                        commitTransaction(transaction, parallelCommit);
                     }
                 });
                 logger.debug("async submit cost time:" + (System.currentTimeMillis() - statTime));
@@ -95,17 +141,23 @@ public class TransactionManager {
                 throw new ConfirmingException(commitException);
             }
         } else {
-            commitTransaction(transaction);
+            commitTransaction(transaction, parallelCommit);
         }
     }
 
 
     public void rollback(boolean asyncRollback) {
+        rollback(asyncRollback, false);
+    }
+
+    public void rollback(boolean asyncRollback, final boolean parallelRollback) {
 
         final Transaction transaction = getCurrentTransaction();
         transaction.changeStatus(TransactionStatus.CANCELLING);
 
-        transactionRepository.update(transaction);
+        if (isPersistentTermination(transaction, asyncRollback)) {
+            persistTransaction(transaction);
+        }
 
         if (asyncRollback) {
 
@@ -113,7 +165,7 @@ public class TransactionManager {
                 executorService.submit(new Runnable() {
                     @Override
                     public void run() {
-                        rollbackTransaction(transaction);
+                        rollbackTransaction(transaction, parallelRollback);
                     }
                 });
             } catch (Throwable rollbackException) {
@@ -122,31 +174,67 @@ public class TransactionManager {
             }
         } else {
 
-            rollbackTransaction(transaction);
+            rollbackTransaction(transaction, parallelRollback);
         }
     }
 
 
-    private void commitTransaction(Transaction transaction) {
+    //a transaction not created yet holding only the root's own participant, ended in this thread, is stored only if it fails.
+    private boolean isPersistentTermination(Transaction transaction, boolean async) {
+        return !transaction.isPendingCreate() || transaction.getParticipants().size() > 1
+                || (async && !transaction.getParticipants().isEmpty());
+    }
+
+    private void commitTransaction(Transaction transaction, boolean parallelCommit) {
         try {
-            transaction.commit();
-            transactionRepository.delete(transaction);
+            if (parallelTerminate || parallelCommit) {
+                transaction.commit(parallelTerminateExecutorService);
+            } else {
+                transaction.commit();
+            }
+
+            if (!transaction.isPendingCreate()) {
+                transactionRepository.delete(transaction);
+            }
         } catch (Throwable commitException) {
+            createForRecovery(transaction, commitException);
             logger.warn("compensable transaction confirm failed, recovery job will try to confirm later.", commitException);
             throw new ConfirmingException(commitException);
         }
     }
 
-    private void rollbackTransaction(Transaction transaction) {
+    private void rollbackTransaction(Transaction transaction, boolean parallelRollback) {
         try {
-            transaction.rollback();
-            transactionRepository.delete(transaction);
+            if (parallelTerminate || parallelRollback) {
+                transaction.rollback(parallelTerminateExecutorService);
+            } else {
+                transaction.rollback();
+            }
+
+            if (!transaction.isPendingCreate()) {
+                transactionRepository.delete(transaction);
+            }
         } catch (Throwable rollbackException) {
+            createForRecovery(transaction, rollbackException);
             logger.warn("compensable transaction rollback failed, recovery job will try to rollback later.", rollbackException);
             throw new CancellingException(rollbackException);
         }
     }
 
+    //a transaction never stored is created in its confirming or cancelling status, so the recovery job retries it.
+    private void createForRecovery(Transaction transaction, Throwable terminateException) {
+
+        if (!transaction.isPendingCreate()) {
+            return;
+        }
+
+        try {
+            persistTransaction(transaction);
+        } catch (Throwable createException) {
+            terminateException.addSuppressed(createException);
+        }
+    }
+
     public Transaction getCurrentTransaction() {
         if (isTransactionActive()) {
             return CURRENT.get().peek();
@@ -186,6 +274,35 @@ public class TransactionManager {
     public void enlistParticipant(Participant participant) {
         Transaction transaction = this.getCurrentTransaction();
         transaction.enlistParticipant(participant);
-        transactionRepository.update(transaction);
+
+        //the first participant of a root is the compensable method that began the transaction, its try runs locally,
+        //so in buffered try mode or before the deferred root is created it is written with the next participant.
+        if (transaction.getParticipants().size() == 1
+                && ((bufferedTry && transaction.getTransactionType() == TransactionType.ROOT) || transaction.isPendingCreate())) {
+            transaction.setPendingUpdate(true);
+        } else {
+            persistTransaction(transaction);
+        }
+    }
+
+    public void flushTransaction() {
+        Transaction transaction = this.getCurrentTransaction();
+
+        if (transaction != null
+                && (transaction.isPendingUpdate() || (transaction.isPendingCreate() && !transaction.getParticipants().isEmpty()))) {
+            persistTransaction(transaction);
+        }
+    }
+
+    private void persistTransaction(Transaction transaction) {
+
+        if (transaction.isPendingCreate()) {
+            transactionRepository.create(transaction);
+            transaction.setPendingCreate(false);
+        } else {
+            transactionRepository.update(transaction);
+        }
+
+        transaction.setPendingUpdate(false);
     }
 }
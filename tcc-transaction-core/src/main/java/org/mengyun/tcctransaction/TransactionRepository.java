@@ -1,7 +1,9 @@
 package org.mengyun.tcctransaction;
 
 import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -19,5 +21,50 @@ public interface TransactionRepository {
 
     Transaction findByXid(TransactionXid xid);
 
+    /**
+     * the stored transactions of the xids in one round trip where the store allows, xids not stored are left out.
+     * the default reads them one by one.
+     */
+    default List<Transaction> findByXids(Collection<TransactionXid> xids) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>(xids.size());
+
+        for (TransactionXid xid : xids) {
+
+            Transaction transaction = findByXid(xid);
+
+            if (transaction != null) {
+                transactions.add(transaction);
+            }
+        }
+
+        return transactions;
+    }
+
     List<Transaction> findAllUnmodifiedSince(Date date);
+
+    /**
+     * passes the transactions of findAllUnmodifiedSince to the handler in batches of at most batchSize, with their
+     * content deserialized on demand. a batch may be read only after the previous one is handled. repositories
+     * reading several stores in parallel call the handler from several threads at once. the default reads all
+     * transactions with their content first.
+     */
+    default void scanRecoverableUnmodifiedSince(Date date, int batchSize, RecoverableTransaction.BatchHandler handler) {
+
+        List<RecoverableTransaction> batch = new ArrayList<RecoverableTransaction>(batchSize);
+
+        for (Transaction transaction : findAllUnmodifiedSince(date)) {
+
+            batch.add(new RecoverableTransaction(transaction));
+
+            if (batch.size() >= batchSize) {
+                handler.handle(batch);
+                batch = new ArrayList<RecoverableTransaction>(batchSize);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            handler.handle(batch);
+        }
+    }
 }
@@ -0,0 +1,225 @@
+package org.mengyun.tcctransaction.interceptor;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.Propagation;
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionContextEditor;
+import org.mengyun.tcctransaction.api.UniqueIdentity;
+import org.mengyun.tcctransaction.support.FactoryBuilder;
+import org.mengyun.tcctransaction.utils.CompensableMethodUtils;
+import org.mengyun.tcctransaction.utils.ReflectionUtils;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything the interceptors need to know about a compensable method, resolved once per
+ * (join point method, target class) and shared by all later invocations.
+ */
+public final class CompensableMethodDescriptor {
+
+    private static final ConcurrentHashMap<DescriptorKey, CompensableMethodDescriptor> descriptors = new ConcurrentHashMap<DescriptorKey, CompensableMethodDescriptor>();
+
+    private final Method signatureMethod;
+
+    private final Method method;
+
+    private final Compensable compensable;
+
+    private final Propagation propagation;
+
+    private final String confirmMethodName;
+
+    private final String cancelMethodName;
+
+    private final boolean asyncConfirm;
+
+    private final boolean asyncCancel;
+
+    private final boolean parallelConfirm;
+
+    private final boolean parallelCancel;
+
+    private final List<Class<? extends Exception>> delayCancelExceptions;
+
+    private final Class<? extends TransactionContextEditor> transactionContextEditorClass;
+
+    private final TransactionContextEditor transactionContextEditor;
+
+    //the default editor is resolved to the parameter position, so it is not called on every invocation.
+    private final boolean defaultTransactionContextEditor;
+
+    private final int transactionContextPosition;
+
+    private final int uniqueIdentityPosition;
+
+    private final Class declaringType;
+
+    private final Class<?>[] parameterTypes;
+
+    public static CompensableMethodDescriptor of(ProceedingJoinPoint pjp) {
+
+        DescriptorKey key = new DescriptorKey(((MethodSignature) pjp.getSignature()).getMethod(), pjp.getTarget().getClass());
+
+        CompensableMethodDescriptor descriptor = descriptors.get(key);
+
+        if (descriptor == null) {
+
+            Method method = CompensableMethodUtils.getCompensableMethod(pjp);
+
+            if (method == null) {
+                return null;
+            }
+
+            descriptors.putIfAbsent(key, new CompensableMethodDescriptor(key.signatureMethod, method, key.targetClass));
+            descriptor = descriptors.get(key);
+        }
+
+        return descriptor;
+    }
+
+    private CompensableMethodDescriptor(Method signatureMethod, Method method, Class targetClass) {
+        this.signatureMethod = signatureMethod;
+        this.method = method;
+        this.compensable = method.getAnnotation(Compensable.class);
+        this.propagation = compensable.propagation();
+        this.confirmMethodName = compensable.confirmMethod();
+        this.cancelMethodName = compensable.cancelMethod();
+        this.asyncConfirm = compensable.asyncConfirm();
+        this.asyncCancel = compensable.asyncCancel();
+        this.parallelConfirm = compensable.parallelConfirm();
+        this.parallelCancel = compensable.parallelCancel();
+        this.delayCancelExceptions = Collections.unmodifiableList(Arrays.asList(compensable.delayCancelExceptions()));
+        this.transactionContextEditorClass = compensable.transactionContextEditor();
+        this.transactionContextEditor = FactoryBuilder.factoryOf(transactionContextEditorClass).getInstance();
+        this.defaultTransactionContextEditor = transactionContextEditorClass.equals(Compensable.DefaultTransactionContextEditor.class);
+        this.parameterTypes = method.getParameterTypes();
+        this.transactionContextPosition = CompensableMethodUtils.getTransactionContextParamPosition(parameterTypes);
+        this.uniqueIdentityPosition = findUniqueIdentityPosition(method);
+        this.declaringType = ReflectionUtils.getDeclaringType(targetClass, method.getName(), parameterTypes);
+    }
+
+    public TransactionContext getTransactionContext(Object target, Object[] args) {
+
+        if (defaultTransactionContextEditor) {
+            return transactionContextPosition >= 0 ? (TransactionContext) args[transactionContextPosition] : null;
+        }
+
+        return transactionContextEditor.get(target, method, args);
+    }
+
+    public void setTransactionContext(TransactionContext transactionContext, Object target, Object[] args) {
+
+        if (defaultTransactionContextEditor) {
+            if (transactionContextPosition >= 0) {
+                args[transactionContextPosition] = transactionContext;
+            }
+            return;
+        }
+
+        transactionContextEditor.set(transactionContext, target, signatureMethod, args);
+    }
+
+    public Object getUniqueIdentity(Object[] args) {
+        return uniqueIdentityPosition >= 0 ? args[uniqueIdentityPosition] : null;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public Compensable getAnnotation() {
+        return compensable;
+    }
+
+    public Propagation getPropagation() {
+        return propagation;
+    }
+
+    public String getConfirmMethodName() {
+        return confirmMethodName;
+    }
+
+    public String getCancelMethodName() {
+        return cancelMethodName;
+    }
+
+    public boolean isAsyncConfirm() {
+        return asyncConfirm;
+    }
+
+    public boolean isAsyncCancel() {
+        return asyncCancel;
+    }
+
+    public boolean isParallelConfirm() {
+        return parallelConfirm;
+    }
+
+    public boolean isParallelCancel() {
+        return parallelCancel;
+    }
+
+    public List<Class<? extends Exception>> getDelayCancelExceptions() {
+        return delayCancelExceptions;
+    }
+
+    public Class<? extends TransactionContextEditor> getTransactionContextEditorClass() {
+        return transactionContextEditorClass;
+    }
+
+    public Class getDeclaringType() {
+        return declaringType;
+    }
+
+    public Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    private static int findUniqueIdentityPosition(Method method) {
+        Annotation[][] annotations = method.getParameterAnnotations();
+
+        for (int i = 0; i < annotations.length; i++) {
+            for (Annotation annotation : annotations[i]) {
+                if (annotation.annotationType().equals(UniqueIdentity.class)) {
+                    return i;
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    private static class DescriptorKey {
+
+        private final Method signatureMethod;
+
+        private final Class targetClass;
+
+        DescriptorKey(Method signatureMethod, Class targetClass) {
+            this.signatureMethod = signatureMethod;
+            this.targetClass = targetClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            DescriptorKey that = (DescriptorKey) o;
+
+            return signatureMethod.equals(that.signatureMethod) && targetClass.equals(that.targetClass);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * signatureMethod.hashCode() + targetClass.hashCode();
+        }
+    }
+}
@@ -13,7 +13,6 @@ import org.mengyun.tcctransaction.utils.ReflectionUtils;
 import org.mengyun.tcctransaction.utils.TransactionUtils;
 
 import java.lang.reflect.Method;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -63,13 +62,17 @@ public class CompensableTransactionInterceptor {
 
         Transaction transaction = null;
 
-        boolean asyncConfirm = compensableMethodContext.getAnnotation().asyncConfirm();
+        boolean asyncConfirm = compensableMethodContext.getDescriptor().isAsyncConfirm();
 
-        boolean asyncCancel = compensableMethodContext.getAnnotation().asyncCancel();
+        boolean asyncCancel = compensableMethodContext.getDescriptor().isAsyncCancel();
+
+        boolean parallelConfirm = compensableMethodContext.getDescriptor().isParallelConfirm();
+
+        boolean parallelCancel = compensableMethodContext.getDescriptor().isParallelCancel();
 
         Set<Class<? extends Exception>> allDelayCancelExceptions = new HashSet<Class<? extends Exception>>();
         allDelayCancelExceptions.addAll(this.delayCancelExceptions);
-        allDelayCancelExceptions.addAll(Arrays.asList(compensableMethodContext.getAnnotation().delayCancelExceptions()));
+        allDelayCancelExceptions.addAll(compensableMethodContext.getDescriptor().getDelayCancelExceptions());
 
         try {
 
@@ -83,13 +86,16 @@ public class CompensableTransactionInterceptor {
 
                     logger.warn(String.format("compensable transaction trying failed. transaction content:%s", JSON.toJSONString(transaction)), tryingException);
 
-                    transactionManager.rollback(asyncCancel);
+                    transactionManager.rollback(asyncCancel, parallelCancel);
+                } else {
+                    //leave the cancel to recovery job, which needs the buffered participants persisted.
+                    transactionManager.flushTransaction();
                 }
 
                 throw tryingException;
             }
 
-            transactionManager.commit(asyncConfirm);
+            transactionManager.commit(asyncConfirm, parallelConfirm);
 
         } finally {
             transactionManager.cleanAfterCompletion(transaction);
@@ -103,9 +109,13 @@ public class CompensableTransactionInterceptor {
         Transaction transaction = null;
 
 
-        boolean asyncConfirm = compensableMethodContext.getAnnotation().asyncConfirm();
+        boolean asyncConfirm = compensableMethodContext.getDescriptor().isAsyncConfirm();
+
+        boolean asyncCancel = compensableMethodContext.getDescriptor().isAsyncCancel();
+
+        boolean parallelConfirm = compensableMethodContext.getDescriptor().isParallelConfirm();
 
-        boolean asyncCancel = compensableMethodContext.getAnnotation().asyncCancel();
+        boolean parallelCancel = compensableMethodContext.getDescriptor().isParallelCancel();
 
         try {
 
@@ -116,7 +126,7 @@ public class CompensableTransactionInterceptor {
                 case CONFIRMING:
                     try {
                         transaction = transactionManager.propagationExistBegin(compensableMethodContext.getTransactionContext());
-                        transactionManager.commit(asyncConfirm);
+                        transactionManager.commit(asyncConfirm, parallelConfirm);
                     } catch (NoExistedTransactionException excepton) {
                         //the transaction has been commit,ignore it.
                     }
@@ -125,7 +135,7 @@ public class CompensableTransactionInterceptor {
 
                     try {
                         transaction = transactionManager.propagationExistBegin(compensableMethodContext.getTransactionContext());
-                        transactionManager.rollback(asyncCancel);
+                        transactionManager.rollback(asyncCancel, parallelCancel);
                     } catch (NoExistedTransactionException exception) {
                         //the transaction has been rollback,ignore it.
                     }
@@ -1,20 +1,13 @@
 package org.mengyun.tcctransaction.interceptor;
 
 import org.aspectj.lang.ProceedingJoinPoint;
-import org.aspectj.lang.reflect.MethodSignature;
 import org.mengyun.tcctransaction.InvocationContext;
 import org.mengyun.tcctransaction.Participant;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.TransactionManager;
-import org.mengyun.tcctransaction.api.Compensable;
 import org.mengyun.tcctransaction.api.TransactionContext;
 import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.api.TransactionXid;
-import org.mengyun.tcctransaction.support.FactoryBuilder;
-import org.mengyun.tcctransaction.utils.CompensableMethodUtils;
-import org.mengyun.tcctransaction.utils.ReflectionUtils;
-
-import java.lang.reflect.Method;
 
 /**
  * Created by changmingxie on 11/8/15.
@@ -23,11 +16,20 @@ public class ResourceCoordinatorInterceptor {
 
     private TransactionManager transactionManager;
 
+    private boolean compactCancelContext = false;
 
     public void setTransactionManager(TransactionManager transactionManager) {
         this.transactionManager = transactionManager;
     }
 
+    /**
+     * store the cancel context as its method name only, resolved against the confirm context. transactions stored
+     * this way cannot be cancelled by nodes of earlier versions, so it is off by default.
+     */
+    public void setCompactCancelContext(boolean compactCancelContext) {
+        this.compactCancelContext = compactCancelContext;
+    }
+
     public Object interceptTransactionContextMethod(ProceedingJoinPoint pjp) throws Throwable {
 
         Transaction transaction = transactionManager.getCurrentTransaction();
@@ -50,38 +52,37 @@ public class ResourceCoordinatorInterceptor {
 
     private void enlistParticipant(ProceedingJoinPoint pjp) throws IllegalAccessException, InstantiationException {
 
-        Method method = CompensableMethodUtils.getCompensableMethod(pjp);
-        if (method == null) {
+        CompensableMethodDescriptor descriptor = CompensableMethodDescriptor.of(pjp);
+        if (descriptor == null) {
             throw new RuntimeException(String.format("join point not found method, point is : %s", pjp.getSignature().getName()));
         }
-        Compensable compensable = method.getAnnotation(Compensable.class);
-
-        String confirmMethodName = compensable.confirmMethod();
-        String cancelMethodName = compensable.cancelMethod();
 
         Transaction transaction = transactionManager.getCurrentTransaction();
         TransactionXid xid = new TransactionXid(transaction.getXid().getGlobalTransactionId());
 
-        if (FactoryBuilder.factoryOf(compensable.transactionContextEditor()).getInstance().get(pjp.getTarget(), method, pjp.getArgs()) == null) {
-            FactoryBuilder.factoryOf(compensable.transactionContextEditor()).getInstance().set(new TransactionContext(xid, TransactionStatus.TRYING.getId()), pjp.getTarget(), ((MethodSignature) pjp.getSignature()).getMethod(), pjp.getArgs());
+        if (descriptor.getTransactionContext(pjp.getTarget(), pjp.getArgs()) == null) {
+            descriptor.setTransactionContext(new TransactionContext(xid, TransactionStatus.TRYING.getId()), pjp.getTarget(), pjp.getArgs());
         }
 
-        Class targetClass = ReflectionUtils.getDeclaringType(pjp.getTarget().getClass(), method.getName(), method.getParameterTypes());
+        Class targetClass = descriptor.getDeclaringType();
+
+        //confirm and cancel share one args array, the participant then holds and stores it once.
+        Object[] args = pjp.getArgs();
 
         InvocationContext confirmInvocation = new InvocationContext(targetClass,
-                confirmMethodName,
-                method.getParameterTypes(), pjp.getArgs());
+                descriptor.getConfirmMethodName(),
+                descriptor.getParameterTypes(), args);
 
-        InvocationContext cancelInvocation = new InvocationContext(targetClass,
-                cancelMethodName,
-                method.getParameterTypes(), pjp.getArgs());
+        InvocationContext cancelInvocation = compactCancelContext
+                ? new InvocationContext(descriptor.getCancelMethodName())
+                : new InvocationContext(targetClass, descriptor.getCancelMethodName(), descriptor.getParameterTypes(), args);
 
         Participant participant =
                 new Participant(
                         xid,
                         confirmInvocation,
                         cancelInvocation,
-                        compensable.transactionContextEditor());
+                        descriptor.getTransactionContextEditorClass());
 
         transactionManager.enlistParticipant(participant);
 
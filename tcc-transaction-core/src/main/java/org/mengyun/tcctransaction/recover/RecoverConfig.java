@@ -11,6 +11,8 @@ public interface RecoverConfig {
 
     public int getRecoverDuration();
 
+    public int getRecoverBatchSize();
+
     public String getCronExpression();
 
     public Set<Class<? extends Exception>> getDelayCancelExceptions();
@@ -22,4 +24,12 @@ public interface RecoverConfig {
     public int getAsyncTerminateThreadMaxPoolSize();
 
     public int getAsyncTerminateThreadWorkQueueSize();
+
+    public boolean isParallelTerminate();
+
+    public int getParallelTerminateThreadCorePoolSize();
+
+    public int getParallelTerminateThreadMaxPoolSize();
+
+    public int getParallelTerminateThreadWorkQueueSize();
 }
@@ -0,0 +1,97 @@
+package org.mengyun.tcctransaction.recover;
+
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+
+import javax.transaction.xa.Xid;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A stored transaction found by a recovery scan, holding the fields recovery decides on.
+ * <p/>
+ * The content of the transaction is deserialized by {@link #getTransaction()} on first call, so the transactions
+ * recovery skips are never deserialized.
+ */
+public class RecoverableTransaction {
+
+    private final Xid xid;
+
+    private final TransactionStatus status;
+
+    private final TransactionType transactionType;
+
+    private final int retriedCount;
+
+    private final Date createTime;
+
+    private final Date lastUpdateTime;
+
+    private ContentLoader loader;
+
+    private Transaction transaction;
+
+    public RecoverableTransaction(Transaction transaction) {
+        this(transaction.getXid(), transaction.getStatus(), transaction.getTransactionType(), transaction.getRetriedCount(), transaction.getCreateTime(), transaction.getLastUpdateTime(), null);
+        this.transaction = transaction;
+    }
+
+    public RecoverableTransaction(Xid xid, TransactionStatus status, TransactionType transactionType, int retriedCount, Date createTime, Date lastUpdateTime, ContentLoader loader) {
+        this.xid = xid;
+        this.status = status;
+        this.transactionType = transactionType;
+        this.retriedCount = retriedCount;
+        this.createTime = createTime;
+        this.lastUpdateTime = lastUpdateTime;
+        this.loader = loader;
+    }
+
+    public Transaction getTransaction() {
+
+        if (transaction == null) {
+            transaction = loader.load();
+            loader = null;
+        }
+
+        return transaction;
+    }
+
+    public boolean isLoaded() {
+        return transaction != null;
+    }
+
+    public Xid getXid() {
+        return xid;
+    }
+
+    public TransactionStatus getStatus() {
+        return status;
+    }
+
+    public TransactionType getTransactionType() {
+        return transactionType;
+    }
+
+    public int getRetriedCount() {
+        return retriedCount;
+    }
+
+    public Date getCreateTime() {
+        return createTime;
+    }
+
+    public Date getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    public interface ContentLoader {
+
+        Transaction load();
+    }
+
+    public interface BatchHandler {
+
+        void handle(List<RecoverableTransaction> batch);
+    }
+}
@@ -25,42 +25,53 @@ public class TransactionRecovery {
 
     public void startRecover() {
 
-        List<Transaction> transactions = loadErrorTransactions();
-
-        recoverErrorTransactions(transactions);
-    }
-
-    private List<Transaction> loadErrorTransactions() {
-
-
         long currentTimeInMillis = Calendar.getInstance().getTimeInMillis();
 
         TransactionRepository transactionRepository = transactionConfigurator.getTransactionRepository();
         RecoverConfig recoverConfig = transactionConfigurator.getRecoverConfig();
 
-        return transactionRepository.findAllUnmodifiedSince(new Date(currentTimeInMillis - recoverConfig.getRecoverDuration() * 1000));
+        //each batch is recovered before the next one is read, so only one batch is held in memory.
+        transactionRepository.scanRecoverableUnmodifiedSince(new Date(currentTimeInMillis - recoverConfig.getRecoverDuration() * 1000),
+                recoverConfig.getRecoverBatchSize(),
+                new RecoverableTransaction.BatchHandler() {
+                    @Override
+                    public void handle(List<RecoverableTransaction> batch) {
+                        recoverErrorTransactions(batch);
+                    }
+                });
     }
 
-    private void recoverErrorTransactions(List<Transaction> transactions) {
+    private void recoverErrorTransactions(List<RecoverableTransaction> recoverableTransactions) {
 
 
-        for (Transaction transaction : transactions) {
+        for (RecoverableTransaction recoverableTransaction : recoverableTransactions) {
 
-            if (transaction.getRetriedCount() > transactionConfigurator.getRecoverConfig().getMaxRetryCount()) {
+            //skipped transactions are decided on the header fields, their content is not deserialized.
+            if (recoverableTransaction.getRetriedCount() > transactionConfigurator.getRecoverConfig().getMaxRetryCount()) {
 
-                logger.error(String.format("recover failed with max retry count,will not try again. txid:%s, status:%s,retried count:%d,transaction content:%s", transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount(), JSON.toJSONString(transaction)));
+                logger.error(String.format("recover failed with max retry count,will not try again. txid:%s, status:%s,retried count:%d", recoverableTransaction.getXid(), recoverableTransaction.getStatus().getId(), recoverableTransaction.getRetriedCount()));
                 continue;
             }
 
-            if (transaction.getTransactionType().equals(TransactionType.BRANCH)
-                    && (transaction.getCreateTime().getTime() +
+            if (recoverableTransaction.getTransactionType().equals(TransactionType.BRANCH)
+                    && (recoverableTransaction.getCreateTime().getTime() +
                     transactionConfigurator.getRecoverConfig().getMaxRetryCount() *
                             transactionConfigurator.getRecoverConfig().getRecoverDuration() * 1000
                     > System.currentTimeMillis())) {
                 continue;
             }
-            
+
+            if (!recoverableTransaction.getStatus().equals(TransactionStatus.CONFIRMING)
+                    && !recoverableTransaction.getStatus().equals(TransactionStatus.CANCELLING)
+                    && !recoverableTransaction.getTransactionType().equals(TransactionType.ROOT)) {
+                continue;
+            }
+
+            Transaction transaction = null;
+
             try {
+                transaction = recoverableTransaction.getTransaction();
+
                 transaction.addRetriedCount();
 
                 if (transaction.getStatus().equals(TransactionStatus.CONFIRMING)) {
@@ -81,11 +92,13 @@ public class TransactionRecovery {
 
             } catch (Throwable throwable) {
 
+                String content = transaction == null ? null : JSON.toJSONString(transaction);
+
                 if (throwable instanceof OptimisticLockException
                         || ExceptionUtils.getRootCause(throwable) instanceof OptimisticLockException) {
-                    logger.warn(String.format("optimisticLockException happened while recover. txid:%s, status:%s,retried count:%d,transaction content:%s", transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount(), JSON.toJSONString(transaction)), throwable);
+                    logger.warn(String.format("optimisticLockException happened while recover. txid:%s, status:%s,retried count:%d,transaction content:%s", recoverableTransaction.getXid(), recoverableTransaction.getStatus().getId(), recoverableTransaction.getRetriedCount(), content), throwable);
                 } else {
-                    logger.error(String.format("recover failed, txid:%s, status:%s,retried count:%d,transaction content:%s", transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount(), JSON.toJSONString(transaction)), throwable);
+                    logger.error(String.format("recover failed, txid:%s, status:%s,retried count:%d,transaction content:%s", recoverableTransaction.getXid(), recoverableTransaction.getStatus().getId(), recoverableTransaction.getRetriedCount(), content), throwable);
                 }
             }
         }
@@ -7,9 +7,14 @@ import org.mengyun.tcctransaction.ConcurrentTransactionException;
 import org.mengyun.tcctransaction.OptimisticLockException;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.TransactionRepository;
+import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
 
 import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -27,6 +32,7 @@ public abstract class CachableTransactionRepository implements TransactionReposi
     public int create(Transaction transaction) {
         int result = doCreate(transaction);
         if (result > 0) {
+            markPersisted(transaction);
             putToCache(transaction);
         } else {
             throw new ConcurrentTransactionException("transaction xid duplicated. xid:" + transaction.getXid().toString());
@@ -42,6 +48,7 @@ public abstract class CachableTransactionRepository implements TransactionReposi
         try {
             result = doUpdate(transaction);
             if (result > 0) {
+                markPersisted(transaction);
                 putToCache(transaction);
             } else {
                 throw new OptimisticLockException();
@@ -76,6 +83,7 @@ public abstract class CachableTransactionRepository implements TransactionReposi
             transaction = doFindOne(transactionXid);
 
             if (transaction != null) {
+                markPersisted(transaction);
                 putToCache(transaction);
             }
         }
@@ -83,22 +91,62 @@ public abstract class CachableTransactionRepository implements TransactionReposi
         return transaction;
     }
 
+    @Override
+    public List<Transaction> findByXids(Collection<TransactionXid> transactionXids) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>(transactionXids.size());
+
+        List<Xid> misses = new ArrayList<Xid>();
+
+        for (TransactionXid transactionXid : transactionXids) {
+
+            Transaction transaction = findFromCache(transactionXid);
+
+            if (transaction != null) {
+                transactions.add(transaction);
+            } else {
+                misses.add(transactionXid);
+            }
+        }
+
+        if (!misses.isEmpty()) {
+            for (Transaction transaction : doFind(misses)) {
+                markPersisted(transaction);
+                putToCache(transaction);
+                transactions.add(transaction);
+            }
+        }
+
+        return transactions;
+    }
+
     @Override
     public List<Transaction> findAllUnmodifiedSince(Date date) {
 
         List<Transaction> transactions = doFindAllUnmodifiedSince(date);
 
         for (Transaction transaction : transactions) {
+            markPersisted(transaction);
             putToCache(transaction);
         }
 
         return transactions;
     }
 
+    @Override
+    public void scanRecoverableUnmodifiedSince(Date date, int batchSize, RecoverableTransaction.BatchHandler handler) {
+        doScanRecoverableUnmodifiedSince(date, batchSize, handler);
+    }
+
     public CachableTransactionRepository() {
         transactionXidCompensableTransactionCache = CacheBuilder.newBuilder().expireAfterAccess(expireDuration, TimeUnit.SECONDS).maximumSize(1000).build();
     }
 
+    //repositories with delta updates write only the participants enlisted after this point.
+    private void markPersisted(Transaction transaction) {
+        transaction.setPersistedParticipantCount(transaction.getParticipants().size());
+    }
+
     protected void putToCache(Transaction transaction) {
         transactionXidCompensableTransactionCache.put(transaction.getXid(), transaction);
     }
@@ -124,4 +172,68 @@ public abstract class CachableTransactionRepository implements TransactionReposi
     protected abstract Transaction doFindOne(Xid xid);
 
     protected abstract List<Transaction> doFindAllUnmodifiedSince(Date date);
+
+    /**
+     * repositories able to read many transactions at once override this, the default reads them one by one.
+     */
+    protected List<Transaction> doFind(List<Xid> xids) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>(xids.size());
+
+        for (Xid xid : xids) {
+
+            Transaction transaction = doFindOne(xid);
+
+            if (transaction != null) {
+                transactions.add(transaction);
+            }
+        }
+
+        return transactions;
+    }
+
+    /**
+     * repositories able to read the header fields without the content override this to return lazily loaded
+     * transactions built by {@link #recoverable}.
+     */
+    protected List<RecoverableTransaction> doFindRecoverableUnmodifiedSince(Date date) {
+
+        List<Transaction> transactions = findAllUnmodifiedSince(date);
+
+        List<RecoverableTransaction> recoverableTransactions = new ArrayList<RecoverableTransaction>(transactions.size());
+
+        for (Transaction transaction : transactions) {
+            recoverableTransactions.add(new RecoverableTransaction(transaction));
+        }
+
+        return recoverableTransactions;
+    }
+
+    /**
+     * repositories able to read a page at a time override this, the default reads all transactions first.
+     */
+    protected void doScanRecoverableUnmodifiedSince(Date date, int batchSize, RecoverableTransaction.BatchHandler handler) {
+
+        List<RecoverableTransaction> recoverableTransactions = doFindRecoverableUnmodifiedSince(date);
+
+        for (int from = 0; from < recoverableTransactions.size(); from += batchSize) {
+            handler.handle(recoverableTransactions.subList(from, Math.min(from + batchSize, recoverableTransactions.size())));
+        }
+    }
+
+    //a transaction loaded from the content is cached like the transactions of findAllUnmodifiedSince.
+    protected RecoverableTransaction recoverable(Xid xid, TransactionStatus status, TransactionType transactionType,
+                                                 int retriedCount, Date createTime, Date lastUpdateTime,
+                                                 final RecoverableTransaction.ContentLoader loader) {
+
+        return new RecoverableTransaction(xid, status, transactionType, retriedCount, createTime, lastUpdateTime, new RecoverableTransaction.ContentLoader() {
+            @Override
+            public Transaction load() {
+                Transaction transaction = loader.load();
+                markPersisted(transaction);
+                putToCache(transaction);
+                return transaction;
+            }
+        });
+    }
 }
@@ -0,0 +1,594 @@
+package org.mengyun.tcctransaction.repository;
+
+import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
+import org.mengyun.tcctransaction.repository.helper.ExpandTransactionSerializer;
+import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.repository.helper.TransactionHeader;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+import org.mengyun.tcctransaction.utils.ByteUtils;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Stores the transactions in a Redis Cluster, in hashes of the same layout as RedisTransactionRepository.
+ * <p/>
+ * The key of a transaction is keyPrefix{globalTransactionId}:branchQualifier, the global transaction id is the hash
+ * tag, so a root transaction and its branches are in one slot. The write scripts touch that key only. keyPrefix must
+ * not hold braces.
+ * <p/>
+ * Reads of many keys are grouped by the master serving their slot and pipelined on that master, the masters are read
+ * in parallel. A key moved by a resharding is read again through the JedisCluster, which follows the redirection.
+ * Recovery scans every master in parallel with SCAN and reads each page of keys by a pipeline on the same master,
+ * a key listed by two masters while its slot is migrated may be handled twice.
+ * <p/>
+ * As the storage of transaction need safely durable, make sure every master is set as AOF mode and always fsync.
+ */
+public class ClusterRedisTransactionRepository extends CachableTransactionRepository {
+
+    static final Logger logger = Logger.getLogger(ClusterRedisTransactionRepository.class.getSimpleName());
+
+    private static final int SLOT_COUNT = 16384;
+
+    private JedisCluster jedisCluster;
+
+    private String keyPrefix = "TCC:";
+
+    private int fetchKeySize = 1000;
+
+    private ObjectSerializer serializer = new KryoPoolSerializer();
+
+    private boolean deltaUpdate = false;
+
+    private boolean contentView = true;
+
+    private int threads = 0;
+
+    private volatile ExecutorService executorService;
+
+    //the master serving each slot, host:port as the keys of JedisCluster.getClusterNodes
+    private volatile String[] slotNodes;
+
+    public void setJedisCluster(JedisCluster jedisCluster) {
+        this.jedisCluster = jedisCluster;
+    }
+
+    public JedisCluster getJedisCluster() {
+        return jedisCluster;
+    }
+
+    public void setKeyPrefix(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * the keys a SCAN page and a pipeline hold at most.
+     */
+    public void setFetchKeySize(int fetchKeySize) {
+        this.fetchKeySize = fetchKeySize;
+    }
+
+    public void setSerializer(ObjectSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    /**
+     * an update writes the header and the participants enlisted since the transaction was stored, as
+     * RedisTransactionRepository.setDeltaUpdate does.
+     */
+    public void setDeltaUpdate(boolean deltaUpdate) {
+        this.deltaUpdate = deltaUpdate;
+    }
+
+    /**
+     * write the CONTENT_VIEW json of a transaction on create and full update, on by default.
+     */
+    public void setContentView(boolean contentView) {
+        this.contentView = contentView;
+    }
+
+    /**
+     * the threads reading the masters in parallel, the number of masters by default.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    @Override
+    protected int doCreate(Transaction transaction) {
+
+        try {
+            Map<byte[], byte[]> fields = ExpandTransactionSerializer.serialize(serializer, transaction, contentView);
+
+            Long result = (Long) jedisCluster.eval(RedisTransactionRepository.CREATE_SCRIPT,
+                    Collections.singletonList(getKey(transaction.getXid())), buildParams(fields));
+
+            return result.intValue();
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    @Override
+    protected int doUpdate(Transaction transaction) {
+
+        try {
+            transaction.updateTime();
+            transaction.updateVersion();
+
+            Map<byte[], byte[]> fields = deltaUpdate ? ExpandTransactionSerializer.serializeDelta(serializer, transaction)
+                    : ExpandTransactionSerializer.serialize(serializer, transaction, contentView);
+
+            List<byte[]> params = new ArrayList<byte[]>();
+            params.add(ByteUtils.longToFixedBytes(transaction.getVersion() - 1));
+            params.add(ByteUtils.longToBytes(transaction.getVersion() - 1));
+            params.addAll(buildParams(fields));
+
+            Long result = (Long) jedisCluster.eval(deltaUpdate ? RedisTransactionRepository.DELTA_UPDATE_SCRIPT : RedisTransactionRepository.UPDATE_SCRIPT,
+                    Collections.singletonList(getKey(transaction.getXid())), params);
+
+            return result.intValue();
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    @Override
+    protected int doDelete(Transaction transaction) {
+        try {
+            return jedisCluster.del(getKey(transaction.getXid())).intValue();
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    @Override
+    protected Transaction doFindOne(Xid xid) {
+
+        try {
+            Map<byte[], byte[]> hash = jedisCluster.hgetAll(getKey(xid));
+
+            if (hash != null && hash.size() > 0) {
+                return ExpandTransactionSerializer.deserialize(serializer, hash);
+            }
+            return null;
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    /**
+     * the keys are grouped by master and read by a pipeline on each master, the masters in parallel.
+     */
+    @Override
+    protected List<Transaction> doFind(List<Xid> xids) {
+
+        List<byte[]> keys = new ArrayList<byte[]>(xids.size());
+
+        for (Xid xid : xids) {
+            keys.add(getKey(xid));
+        }
+
+        Map<String, List<byte[]>> keysOfNodes;
+
+        try {
+            keysOfNodes = RedisHelper.groupBySlotNode(getSlotNodes(), keys);
+        } catch (TransactionIOException e) {
+            //a slot without master, the slots are read again by the next call.
+            slotNodes = null;
+            throw e;
+        }
+
+        List<Callable<List<Transaction>>> tasks = new ArrayList<Callable<List<Transaction>>>();
+
+        for (final Map.Entry<String, List<byte[]>> entry : keysOfNodes.entrySet()) {
+            tasks.add(new Callable<List<Transaction>>() {
+                @Override
+                public List<Transaction> call() {
+
+                    List<Transaction> transactions = new ArrayList<Transaction>();
+
+                    for (Map<byte[], byte[]> hash : fetchHashes(entry.getKey(), entry.getValue())) {
+                        if (hash != null && hash.size() > 0) {
+                            transactions.add(ExpandTransactionSerializer.deserialize(serializer, hash));
+                        }
+                    }
+
+                    return transactions;
+                }
+            });
+        }
+
+        return invokeAll(tasks);
+    }
+
+    @Override
+    protected List<Transaction> doFindAllUnmodifiedSince(final Date date) {
+
+        List<Callable<List<Transaction>>> tasks = new ArrayList<Callable<List<Transaction>>>();
+
+        for (final String node : getMasterNodes()) {
+            tasks.add(new Callable<List<Transaction>>() {
+                @Override
+                public List<Transaction> call() {
+
+                    final List<Transaction> transactions = new ArrayList<Transaction>();
+
+                    scanNode(node, new PageHandler() {
+                        @Override
+                        public void handle(List<Map<byte[], byte[]>> hashes) {
+                            for (Map<byte[], byte[]> hash : hashes) {
+
+                                Transaction transaction = ExpandTransactionSerializer.deserialize(serializer, hash);
+
+                                if (transaction.getLastUpdateTime().compareTo(date) < 0) {
+                                    transactions.add(transaction);
+                                }
+                            }
+                        }
+                    });
+
+                    return transactions;
+                }
+            });
+        }
+
+        return invokeAll(tasks);
+    }
+
+    /**
+     * every master is scanned by its own task, the handler is called from these tasks at the same time.
+     */
+    @Override
+    protected void doScanRecoverableUnmodifiedSince(final Date date, final int batchSize, final RecoverableTransaction.BatchHandler handler) {
+
+        List<Callable<List<Object>>> tasks = new ArrayList<Callable<List<Object>>>();
+
+        for (final String node : getMasterNodes()) {
+            tasks.add(new Callable<List<Object>>() {
+                @Override
+                public List<Object> call() {
+
+                    final List<RecoverableTransaction> batch = new ArrayList<RecoverableTransaction>(batchSize);
+
+                    scanNode(node, new PageHandler() {
+                        @Override
+                        public void handle(List<Map<byte[], byte[]>> hashes) {
+                            for (Map<byte[], byte[]> hash : hashes) {
+
+                                RecoverableTransaction recoverableTransaction = toRecoverable(hash, date);
+
+                                if (recoverableTransaction == null) {
+                                    continue;
+                                }
+
+                                batch.add(recoverableTransaction);
+
+                                if (batch.size() >= batchSize) {
+                                    handler.handle(new ArrayList<RecoverableTransaction>(batch));
+                                    batch.clear();
+                                }
+                            }
+                        }
+                    });
+
+                    if (!batch.isEmpty()) {
+                        handler.handle(batch);
+                    }
+
+                    return Collections.emptyList();
+                }
+            });
+        }
+
+        invokeAll(tasks);
+    }
+
+    public byte[] getKey(Xid xid) {
+        return RedisHelper.getClusterRedisKey(keyPrefix, xid);
+    }
+
+    private RecoverableTransaction toRecoverable(final Map<byte[], byte[]> hash, Date date) {
+
+        TransactionXid xid = ExpandTransactionSerializer.deserializeXid(hash);
+        TransactionHeader header = ExpandTransactionSerializer.deserializeHeader(hash);
+
+        //a hash missing a header field is deserialized entirely, CONTENT of the others only when recovered.
+        if (xid == null || header == null) {
+            Transaction transaction = ExpandTransactionSerializer.deserialize(serializer, hash);
+            return transaction.getLastUpdateTime().compareTo(date) < 0 ? new RecoverableTransaction(transaction) : null;
+        }
+
+        if (header.getLastUpdateTime().compareTo(date) >= 0) {
+            return null;
+        }
+
+        return recoverable(xid, header.getStatus(), header.getTransactionType(),
+                header.getRetriedCount(), header.getCreateTime(), header.getLastUpdateTime(),
+                new RecoverableTransaction.ContentLoader() {
+                    @Override
+                    public Transaction load() {
+                        return ExpandTransactionSerializer.deserialize(serializer, hash);
+                    }
+                });
+    }
+
+    //the keys of keyPrefix on the node a SCAN page at a time, the hashes of each page read by a pipeline on the node.
+    private void scanNode(String node, PageHandler pageHandler) {
+
+        Jedis jedis = null;
+
+        try {
+            jedis = getPool(node).getResource();
+
+            ScanParams scanParams = RedisHelper.buildDefaultScanParams(keyPrefix + "*", fetchKeySize);
+            String cursor = RedisHelper.SCAN_INIT_CURSOR;
+
+            do {
+                ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+
+                List<byte[]> keys = new ArrayList<byte[]>(scanResult.getResult().size());
+
+                for (String key : scanResult.getResult()) {
+                    keys.add(key.getBytes());
+                }
+
+                List<Map<byte[], byte[]>> hashes = new ArrayList<Map<byte[], byte[]>>(keys.size());
+
+                for (Map<byte[], byte[]> hash : pipelineHashes(jedis, keys)) {
+                    if (hash != null && hash.size() > 0) {
+                        hashes.add(hash);
+                    }
+                }
+
+                pageHandler.handle(hashes);
+
+                cursor = scanResult.getStringCursor();
+            } while (!cursor.equals(RedisHelper.SCAN_INIT_CURSOR));
+
+        } catch (JedisConnectionException e) {
+            slotNodes = null;
+            throw new TransactionIOException(e);
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+    }
+
+    //the hashes of the keys in the same order, read by pipelines of fetchKeySize keys on the node.
+    private List<Map<byte[], byte[]>> fetchHashes(String node, List<byte[]> keys) {
+
+        List<Map<byte[], byte[]>> hashes = new ArrayList<Map<byte[], byte[]>>(keys.size());
+
+        Jedis jedis = null;
+
+        try {
+            jedis = getPool(node).getResource();
+
+            for (int from = 0; from < keys.size(); from += fetchKeySize) {
+                hashes.addAll(pipelineHashes(jedis, keys.subList(from, Math.min(from + fetchKeySize, keys.size()))));
+            }
+        } catch (JedisConnectionException e) {
+            //the node is gone, the keys are read through the cluster, which finds the new master of their slots.
+            slotNodes = null;
+            logger.warn(String.format("redis node %s is not reachable, %d keys are read one by one", node, keys.size()), e);
+
+            hashes.clear();
+
+            for (byte[] key : keys) {
+                hashes.add(jedisCluster.hgetAll(key));
+            }
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+
+        return hashes;
+    }
+
+    private List<Map<byte[], byte[]>> pipelineHashes(Jedis jedis, List<byte[]> keys) {
+
+        Pipeline pipeline = jedis.pipelined();
+
+        List<Response<Map<byte[], byte[]>>> responses = new ArrayList<Response<Map<byte[], byte[]>>>(keys.size());
+
+        for (byte[] key : keys) {
+            responses.add(pipeline.hgetAll(key));
+        }
+
+        pipeline.sync();
+
+        List<Map<byte[], byte[]>> hashes = new ArrayList<Map<byte[], byte[]>>(keys.size());
+
+        for (int i = 0; i < keys.size(); i++) {
+            try {
+                hashes.add(responses.get(i).get());
+            } catch (JedisDataException e) {
+                //MOVED or ASK, the slot of the key is served by another master now.
+                slotNodes = null;
+                hashes.add(jedisCluster.hgetAll(keys.get(i)));
+            }
+        }
+
+        return hashes;
+    }
+
+    private String[] getSlotNodes() {
+
+        String[] nodes = slotNodes;
+
+        if (nodes == null) {
+            synchronized (this) {
+                nodes = slotNodes;
+
+                if (nodes == null) {
+                    nodes = readSlotNodes();
+                    slotNodes = nodes;
+                }
+            }
+        }
+
+        return nodes;
+    }
+
+    //the masters of the slots by CLUSTER SLOTS, asked of the known nodes until one answers.
+    private String[] readSlotNodes() {
+
+        for (Map.Entry<String, JedisPool> entry : jedisCluster.getClusterNodes().entrySet()) {
+
+            Jedis jedis = null;
+
+            try {
+                jedis = entry.getValue().getResource();
+
+                String[] nodes = new String[SLOT_COUNT];
+
+                for (Object slotRange : jedis.clusterSlots()) {
+
+                    List<Object> range = (List<Object>) slotRange;
+                    List<Object> master = (List<Object>) range.get(2);
+
+                    String node = new String((byte[]) master.get(0)) + ":" + master.get(1);
+
+                    for (int slot = ((Long) range.get(0)).intValue(); slot <= ((Long) range.get(1)).intValue(); slot++) {
+                        nodes[slot] = node;
+                    }
+                }
+
+                return nodes;
+            } catch (Exception e) {
+                logger.warn(String.format("cannot read the slots of the redis cluster from node %s", entry.getKey()), e);
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+
+        throw new TransactionIOException("cannot read the slots of the redis cluster from any node");
+    }
+
+    private Set<String> getMasterNodes() {
+
+        Set<String> masters = new LinkedHashSet<String>();
+
+        for (String node : getSlotNodes()) {
+            if (node != null) {
+                masters.add(node);
+            }
+        }
+
+        return masters;
+    }
+
+    private JedisPool getPool(String node) {
+
+        JedisPool pool = jedisCluster.getClusterNodes().get(node);
+
+        if (pool == null) {
+            slotNodes = null;
+            throw new TransactionIOException("redis node " + node + " is not known to the cluster client");
+        }
+
+        return pool;
+    }
+
+    private List<byte[]> buildParams(Map<byte[], byte[]> fields) {
+
+        List<byte[]> params = new ArrayList<byte[]>();
+
+        for (Map.Entry<byte[], byte[]> entry : fields.entrySet()) {
+            params.add(entry.getKey());
+            params.add(entry.getValue());
+        }
+
+        return params;
+    }
+
+    //runs the tasks on the pool, every task runs to its end before the failure of one is thrown.
+    private <T> List<T> invokeAll(List<Callable<List<T>>> tasks) {
+
+        List<T> results = new ArrayList<T>();
+
+        Throwable failure = null;
+
+        try {
+            for (Future<List<T>> future : getExecutorService().invokeAll(tasks)) {
+                try {
+                    results.addAll(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    } else {
+                        logger.error("redis node task failed", e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionIOException(e);
+        }
+
+        if (failure != null) {
+            throw failure instanceof RuntimeException ? (RuntimeException) failure : new TransactionIOException(failure);
+        }
+
+        return results;
+    }
+
+    private ExecutorService getExecutorService() {
+
+        if (executorService == null) {
+            synchronized (this) {
+                if (executorService == null) {
+                    executorService = Executors.newFixedThreadPool(threads > 0 ? threads : Math.max(1, getMasterNodes().size()), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "tcc-redis-cluster");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+
+        return executorService;
+    }
+
+    private interface PageHandler {
+
+        void handle(List<Map<byte[], byte[]>> hashes);
+    }
+}
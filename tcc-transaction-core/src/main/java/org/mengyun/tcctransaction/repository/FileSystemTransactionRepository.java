@@ -1,7 +1,15 @@
 package org.mengyun.tcctransaction.repository;
 
+import org.apache.log4j.Logger;
 import org.mengyun.tcctransaction.ConcurrentTransactionException;
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.api.XidKeyCodec;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
+import org.mengyun.tcctransaction.repository.helper.GroupCommitter;
+import org.mengyun.tcctransaction.repository.helper.SyncJournal;
+import org.mengyun.tcctransaction.repository.helper.TransactionDelta;
+import org.mengyun.tcctransaction.repository.helper.TransactionHeader;
 import org.mengyun.tcctransaction.repository.helper.TransactionSerializer;
 import org.mengyun.tcctransaction.serializer.JacksonJsonSerializer;
 import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
@@ -11,9 +19,24 @@ import javax.transaction.xa.Xid;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by changming.xie on 2/24/16.
@@ -21,12 +44,50 @@ import java.util.List;
  */
 public class FileSystemTransactionRepository extends CachableTransactionRepository {
 
+    static final Logger logger = Logger.getLogger(FileSystemTransactionRepository.class.getSimpleName());
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private String rootPath = "/tcc";
 
     private volatile boolean initialized;
 
     private ObjectSerializer serializer = new KryoPoolSerializer();
 
+    private boolean deltaUpdate = false;
+
+    private int shardLevels = 0;
+
+    private int scanThreads = Runtime.getRuntime().availableProcessors();
+
+    private volatile ExecutorService scanExecutorService;
+
+    private boolean groupCommit = false;
+
+    private int groupCommitBatchSize = 100;
+
+    private long groupCommitMaxWaitMillis = 0;
+
+    private String groupCommitJournalPath;
+
+    private long groupCommitCheckpointSize = 16 * 1024 * 1024;
+
+    private volatile GroupCommitter<SyncJournal.Entry> groupCommitter;
+
+    private volatile SyncJournal syncJournal;
+
+    private final Map<String, Boolean> createdShardDirectories = new ConcurrentHashMap<String, Boolean>();
+
+    //with group commit a write and its journal entry are made under the lock of the file, so the entries of a file
+    //are in the journal in the order the file was written.
+    private final ReentrantLock[] fileLocks = new ReentrantLock[256];
+
+    {
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new ReentrantLock();
+        }
+    }
+
     public void setSerializer(ObjectSerializer serializer) {
         this.serializer = serializer;
     }
@@ -35,9 +96,69 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
         this.rootPath = rootPath;
     }
 
+    /**
+     * append the participants enlisted by an update to the file instead of rewriting it. updates without new
+     * participants still rewrite the file, which drops the appended frames.
+     */
+    public void setDeltaUpdate(boolean deltaUpdate) {
+        this.deltaUpdate = deltaUpdate;
+    }
+
+    /**
+     * the levels of shard directories under rootPath, each of 256 directories named by two hex digits of the hash of
+     * the file name. 0, the default, keeps all files in rootPath. files of the flat layout are moved on startup.
+     */
+    public void setShardLevels(int shardLevels) {
+        this.shardLevels = shardLevels;
+    }
+
+    /**
+     * the threads reading the files in parallel on a scan.
+     */
+    public void setScanThreads(int scanThreads) {
+        this.scanThreads = scanThreads;
+    }
+
+    /**
+     * writes are made durable by a sync journal instead of forcing every file, a committer thread appends the writes
+     * of concurrent writers to the journal and forces it once for all of them. the writer returns once its write is
+     * in the journal. a deletion is journaled as well, so it is not undone when the journal is applied on startup.
+     */
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    public void setGroupCommitBatchSize(int groupCommitBatchSize) {
+        this.groupCommitBatchSize = groupCommitBatchSize;
+    }
+
+    public void setGroupCommitMaxWaitMillis(long groupCommitMaxWaitMillis) {
+        this.groupCommitMaxWaitMillis = groupCommitMaxWaitMillis;
+    }
+
+    /**
+     * the sync journal of group commit, rootPath + ".sync" by default. it must not be in rootPath.
+     */
+    public void setGroupCommitJournalPath(String groupCommitJournalPath) {
+        this.groupCommitJournalPath = groupCommitJournalPath;
+    }
+
+    /**
+     * the size of the sync journal at which the files written are forced and the journal is emptied.
+     */
+    public void setGroupCommitCheckpointSize(long groupCommitCheckpointSize) {
+        this.groupCommitCheckpointSize = groupCommitCheckpointSize;
+    }
+
     @Override
     protected int doCreate(Transaction transaction) {
-        return createFile(transaction);
+
+        ReentrantLock lock = lockFile(transaction.getXid());
+        try {
+            return createFile(transaction);
+        } finally {
+            unlockFile(lock);
+        }
     }
 
     @Override
@@ -46,26 +167,62 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
         transaction.updateVersion();
         transaction.updateTime();
 
-        writeFile(transaction);
-        return 1;
+        ReentrantLock lock = lockFile(transaction.getXid());
+        try {
+            if (deltaUpdate && TransactionDelta.hasNewParticipants(transaction) && appendFile(transaction)) {
+                return 1;
+            }
+
+            writeFile(transaction);
+            return 1;
+        } finally {
+            unlockFile(lock);
+        }
     }
 
     @Override
     protected int doDelete(Transaction transaction) {
 
-        String fullFileName = getFullFileName(transaction.getXid());
-        File file = new File(fullFileName);
-        if (file.exists()) {
-            return file.delete() ? 1 : 0;
+        ReentrantLock lock = lockFile(transaction.getXid());
+        try {
+            File file = getFile(transaction.getXid());
+            if (file.exists()) {
+                if (!file.delete()) {
+                    return 0;
+                }
+
+                if (groupCommit) {
+                    getGroupCommitter().submit(new SyncJournal.Entry(SyncJournal.DELETE, getRelativePath(file), 0, new byte[0]));
+                }
+            }
+            return 1;
+        } finally {
+            unlockFile(lock);
+        }
+    }
+
+    //null without group commit, the writes are forced by the writers themselves then.
+    private ReentrantLock lockFile(Xid xid) {
+
+        if (!groupCommit) {
+            return null;
+        }
+
+        ReentrantLock lock = fileLocks[(xid.hashCode() & Integer.MAX_VALUE) % fileLocks.length];
+        lock.lock();
+        return lock;
+    }
+
+    private static void unlockFile(ReentrantLock lock) {
+        if (lock != null) {
+            lock.unlock();
         }
-        return 1;
     }
 
     @Override
     protected Transaction doFindOne(Xid xid) {
 
-        String fullFileName = getFullFileName(xid);
-        File file = new File(fullFileName);
+        File file = getFile(xid);
 
         if (file.exists()) {
             return readTransaction(file);
@@ -74,39 +231,425 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
         return null;
     }
 
+    /**
+     * reads the files of the xids in parallel on the scan pool.
+     */
     @Override
-    protected List<Transaction> doFindAllUnmodifiedSince(Date date) {
-
-        List<Transaction> allTransactions = doFindAll();
+    protected List<Transaction> doFind(List<Xid> xids) {
 
-        List<Transaction> allUnmodifiedSince = new ArrayList<Transaction>();
+        if (xids.size() == 1) {
+            return super.doFind(xids);
+        }
 
-        for (Transaction transaction : allTransactions) {
-            if (transaction.getLastUpdateTime().compareTo(date) < 0) {
-                allUnmodifiedSince.add(transaction);
+        final RecordVisitor<Transaction> visitor = new RecordVisitor<Transaction>() {
+            @Override
+            public Transaction visit(File file) {
+                return readTransaction(file);
             }
+        };
+
+        List<Callable<List<Transaction>>> tasks = new ArrayList<Callable<List<Transaction>>>();
+
+        int chunkSize = Math.max(1, (xids.size() + scanThreads - 1) / scanThreads);
+
+        for (int from = 0; from < xids.size(); from += chunkSize) {
+
+            final List<Xid> chunk = xids.subList(from, Math.min(from + chunkSize, xids.size()));
+
+            tasks.add(new Callable<List<Transaction>>() {
+                @Override
+                public List<Transaction> call() {
+
+                    List<Path> files = new ArrayList<Path>(chunk.size());
+
+                    for (Xid xid : chunk) {
+
+                        File file = getFile(xid);
+
+                        if (file.exists()) {
+                            files.add(file.toPath());
+                        }
+                    }
+
+                    return visit(files, visitor);
+                }
+            });
         }
 
-        return allUnmodifiedSince;
+        return invokeAll(tasks);
+    }
+
+    @Override
+    protected List<Transaction> doFindAllUnmodifiedSince(final Date date) {
+
+        return scan(new RecordVisitor<Transaction>() {
+            @Override
+            public Transaction visit(File file) {
+
+                //only the header is read for transactions modified since, a record in the legacy format is read entirely.
+                TransactionHeader header = readHeader(file);
+
+                if (header != null && header.getLastUpdateTime().compareTo(date) >= 0) {
+                    return null;
+                }
+
+                Transaction transaction = readTransaction(file);
+
+                return transaction.getLastUpdateTime().compareTo(date) < 0 ? transaction : null;
+            }
+        });
+    }
+
+
+    @Override
+    protected List<RecoverableTransaction> doFindRecoverableUnmodifiedSince(final Date date) {
+
+        return scan(new RecordVisitor<RecoverableTransaction>() {
+            @Override
+            public RecoverableTransaction visit(File file) {
+
+                TransactionHeader header = readHeader(file);
+
+                if (header != null && header.getLastUpdateTime().compareTo(date) >= 0) {
+                    return null;
+                }
+
+                final byte[] content = readRecord(file);
+
+                TransactionHeader lastHeader = TransactionSerializer.deserializeLastHeader(content);
+                TransactionXid xid = decodeXid(file.getName());
+
+                //records in the legacy format and files named in the legacy form are deserialized entirely.
+                if (lastHeader == null || xid == null) {
+                    Transaction transaction = TransactionSerializer.deserialize(serializer, content);
+                    return transaction.getLastUpdateTime().compareTo(date) < 0 ? new RecoverableTransaction(transaction) : null;
+                }
+
+                if (lastHeader.getLastUpdateTime().compareTo(date) >= 0) {
+                    return null;
+                }
+
+                return recoverable(xid, lastHeader.getStatus(), lastHeader.getTransactionType(),
+                        lastHeader.getRetriedCount(), lastHeader.getCreateTime(), lastHeader.getLastUpdateTime(),
+                        new RecoverableTransaction.ContentLoader() {
+                            @Override
+                            public Transaction load() {
+                                return TransactionSerializer.deserialize(serializer, content);
+                            }
+                        });
+            }
+        });
     }
 
+    private static TransactionXid decodeXid(String fileName) {
+        try {
+            return XidKeyCodec.decode(fileName);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 
     protected List<Transaction> doFindAll() {
 
-        List<Transaction> transactions = new ArrayList<Transaction>();
-        File path = new File(rootPath);
-        File[] files = path.listFiles();
+        return scan(new RecordVisitor<Transaction>() {
+            @Override
+            public Transaction visit(File file) {
+                return readTransaction(file);
+            }
+        });
+    }
+
+    //writes acknowledged by group commit and lost from the files in a crash are redone from the sync journal.
+    private void replaySyncJournal() {
 
-        for (File file : files) {
-            Transaction transaction = readTransaction(file);
-            transactions.add(transaction);
+        if (!new File(getGroupCommitJournalPath()).exists()) {
+            return;
         }
 
-        return transactions;
+        try {
+            getSyncJournal().replay();
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    /**
+     * moves the files of the flat layout into their shard directories, run on startup when shardLevels is set.
+     */
+    public void migrateToShards() {
+
+        if (shardLevels <= 0) {
+            return;
+        }
+
+        int moved = 0;
+
+        DirectoryStream<Path> stream = null;
+
+        try {
+            stream = Files.newDirectoryStream(Paths.get(rootPath));
+
+            for (Path path : stream) {
+
+                if (!Files.isRegularFile(path)) {
+                    continue;
+                }
+
+                File target = getShardedFile(path.getFileName().toString());
+                makeShardDirIfNecessary(target.getParentFile());
+
+                Files.move(path, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                moved++;
+            }
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            closeQuietly(stream);
+        }
+
+        if (moved > 0) {
+            logger.info(String.format("moved %d transaction files of %s into shard directories", moved, rootPath));
+        }
+    }
+
+    //reads the record files with the visitor on the scan pool, one task per top level shard, in chunks for the flat layout.
+    private <T> List<T> scan(final RecordVisitor<T> visitor) {
+
+        makeDirIfNecessary();
+
+        return doScan(visitor);
+    }
+
+    private <T> List<T> doScan(final RecordVisitor<T> visitor) {
+
+        List<Callable<List<T>>> tasks = new ArrayList<Callable<List<T>>>();
+
+        if (shardLevels <= 0) {
+
+            final List<Path> files = listFiles(Paths.get(rootPath), 0);
+            int chunkSize = Math.max(1, (files.size() + scanThreads - 1) / scanThreads);
+
+            for (int from = 0; from < files.size(); from += chunkSize) {
+
+                final List<Path> chunk = files.subList(from, Math.min(from + chunkSize, files.size()));
+
+                tasks.add(new Callable<List<T>>() {
+                    @Override
+                    public List<T> call() {
+                        return visit(chunk, visitor);
+                    }
+                });
+            }
+        } else {
+
+            for (final Path shard : listDirectories(Paths.get(rootPath))) {
+
+                tasks.add(new Callable<List<T>>() {
+                    @Override
+                    public List<T> call() {
+                        return visit(listFiles(shard, shardLevels - 1), visitor);
+                    }
+                });
+            }
+        }
+
+        return invokeAll(tasks);
+    }
+
+    private <T> List<T> invokeAll(List<Callable<List<T>>> tasks) {
+
+        List<T> results = new ArrayList<T>();
+
+        try {
+            for (Future<List<T>> future : getScanExecutorService().invokeAll(tasks)) {
+                results.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionIOException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof TransactionIOException ? (TransactionIOException) e.getCause() : new TransactionIOException(e.getCause());
+        }
+
+        return results;
+    }
+
+    private <T> List<T> visit(List<Path> files, RecordVisitor<T> visitor) {
+
+        List<T> results = new ArrayList<T>();
+
+        for (Path path : files) {
+
+            File file = path.toFile();
+            T result;
+
+            try {
+                result = visitor.visit(file);
+            } catch (TransactionIOException e) {
+                //the transaction completed and its file was deleted after it was listed.
+                if (!file.exists()) {
+                    continue;
+                }
+                throw e;
+            }
+
+            if (result != null) {
+                results.add(result);
+            }
+        }
+
+        return results;
+    }
+
+    //the regular files in the directory and, depth levels down, in its sub directories.
+    private static List<Path> listFiles(Path directory, int depth) {
+
+        List<Path> files = new ArrayList<Path>();
+
+        DirectoryStream<Path> stream = null;
+
+        try {
+            stream = Files.newDirectoryStream(directory);
+
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    if (depth > 0) {
+                        files.addAll(listFiles(path, depth - 1));
+                    }
+                } else {
+                    files.add(path);
+                }
+            }
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            closeQuietly(stream);
+        }
+
+        return files;
+    }
+
+    private static List<Path> listDirectories(Path directory) {
+
+        List<Path> directories = new ArrayList<Path>();
+
+        DirectoryStream<Path> stream = null;
+
+        try {
+            stream = Files.newDirectoryStream(directory);
+
+            for (Path path : stream) {
+                if (Files.isDirectory(path)) {
+                    directories.add(path);
+                }
+            }
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            closeQuietly(stream);
+        }
+
+        return directories;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                logger.warn("close failed", e);
+            }
+        }
+    }
+
+    private ExecutorService getScanExecutorService() {
+
+        if (scanExecutorService == null) {
+            synchronized (this) {
+                if (scanExecutorService == null) {
+                    scanExecutorService = Executors.newFixedThreadPool(scanThreads, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "tcc-file-scan");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+
+        return scanExecutorService;
     }
 
     private String getFullFileName(Xid xid) {
-        return String.format("%s/%s", rootPath, xid);
+        return getShardedFile(xid.toString()).getPath();
+    }
+
+    //the file of the name in the shard directories taken from the hash of the name, two hex digits a level.
+    private File getShardedFile(String name) {
+
+        if (shardLevels <= 0) {
+            return new File(rootPath, name);
+        }
+
+        //the bits of String.hashCode are mixed, names of xids created one after another differ in few of them.
+        int hash = name.hashCode();
+        hash = (hash ^ (hash >>> 16)) * 0x85ebca6b;
+        hash = (hash ^ (hash >>> 13)) * 0xc2b2ae35;
+        hash = hash ^ (hash >>> 16);
+
+        StringBuilder builder = new StringBuilder(rootPath);
+
+        for (int level = 0; level < shardLevels; level++) {
+            builder.append(File.separatorChar).append(HEX_DIGITS[(hash >>> (8 * level + 4)) & 0x0F]).append(HEX_DIGITS[(hash >>> (8 * level)) & 0x0F]);
+        }
+
+        return new File(builder.toString(), name);
+    }
+
+    private void makeShardDirIfNecessary(File directory) {
+
+        if (shardLevels <= 0 || createdShardDirectories.containsKey(directory.getPath())) {
+            return;
+        }
+
+        if (!directory.mkdirs() && !directory.isDirectory()) {
+            throw new TransactionIOException("cannot create shard directory:" + directory);
+        }
+
+        createdShardDirectories.put(directory.getPath(), Boolean.TRUE);
+    }
+
+    /**
+     * the file of the xid, a file still named in the form used before XidKeyCodec or still in the flat layout
+     * is moved to the current name and shard on first access.
+     */
+    private File getFile(Xid xid) {
+
+        makeDirIfNecessary();
+
+        File file = new File(getFullFileName(xid));
+
+        if (!file.exists()) {
+
+            String legacyName = XidKeyCodec.encodeLegacy(xid);
+
+            File[] candidates = new File[]{new File(rootPath, xid.toString()), new File(rootPath, legacyName), getShardedFile(legacyName)};
+
+            for (File candidate : candidates) {
+
+                if (candidate.equals(file) || !candidate.exists()) {
+                    continue;
+                }
+
+                makeShardDirIfNecessary(file.getParentFile());
+
+                return candidate.renameTo(file) ? file : candidate;
+            }
+        }
+
+        return file;
     }
 
     private void makeDirIfNecessary() {
@@ -125,6 +668,15 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
                         initialized = true;
                     } else if (!rootPathFile.isDirectory()) {
                         throw new TransactionIOException("rootPath is not directory");
+                    } else {
+                        replaySyncJournal();
+                        migrateToShards();
+
+                        if (deltaUpdate) {
+                            repairRecords();
+                        }
+
+                        initialized = true;
                     }
                 }
             }
@@ -141,6 +693,8 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
         RandomAccessFile raf = null;
         File file = null;
 
+        makeShardDirIfNecessary(new File(filePath).getParentFile());
+
         byte[] content = TransactionSerializer.serialize(serializer, transaction);
 
         try {
@@ -163,7 +717,7 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
                 channel.write(buffer);
             }
 
-            channel.force(true);
+            sync(channel, SyncJournal.WRITE, file, 0, content);
 
             return 1;
 
@@ -186,7 +740,7 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
 
         makeDirIfNecessary();
 
-        String filePath = getFullFileName(transaction.getXid());
+        File file = getFile(transaction.getXid());
 
         FileChannel channel = null;
         RandomAccessFile raf = null;
@@ -195,7 +749,7 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
 
         try {
 
-            raf = new RandomAccessFile(filePath, "rw");
+            raf = new RandomAccessFile(file, "rw");
             channel = raf.getChannel();
             ByteBuffer buffer = ByteBuffer.allocate(content.length);
             buffer.put(content);
@@ -205,7 +759,10 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
                 channel.write(buffer);
             }
 
-            channel.force(true);
+            //the record has a length and a checksum, a longer previous record must not leave bytes behind.
+            channel.truncate(content.length);
+
+            sync(channel, SyncJournal.WRITE, file, 0, content);
 
         } catch (Exception e) {
             throw new TransactionIOException(e);
@@ -220,31 +777,263 @@ public class FileSystemTransactionRepository extends CachableTransactionReposito
         }
     }
 
-    private Transaction readTransaction(File file) {
+    //appends a delta frame, false if the file is not a record a frame can be appended to.
+    private boolean appendFile(Transaction transaction) {
+
+        File file = getFile(transaction.getXid());
+
+        if (readHeader(file) == null) {
+            return false;
+        }
+
+        byte[] frame = TransactionSerializer.serializeDelta(serializer, transaction);
+
+        FileChannel channel = null;
+        long offset = -1;
 
-        FileInputStream fis = null;
         try {
-            fis = new FileInputStream(file);
+            channel = new RandomAccessFile(file, "rw").getChannel();
 
-            byte[] content = new byte[(int) file.length()];
+            offset = channel.size();
+            channel.position(offset);
 
-            fis.read(content);
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
 
-            if (content != null) {
-                return TransactionSerializer.deserialize(serializer, content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
             }
-        } catch (Exception e) {
+
+            sync(channel, SyncJournal.APPEND, file, offset, frame);
+
+            return true;
+
+        } catch (IOException e) {
+            dropFailedAppend(channel, offset, file);
             throw new TransactionIOException(e);
+        } catch (RuntimeException e) {
+            //a failed group commit leaves the frame written but not durable, it is dropped the same way.
+            dropFailedAppend(channel, offset, file);
+            throw e;
         } finally {
-            if (fis != null) {
+            if (channel != null && channel.isOpen()) {
                 try {
-                    fis.close();
+                    channel.close();
                 } catch (IOException e) {
                     throw new TransactionIOException(e);
                 }
             }
         }
+    }
+
+    //a frame partly written by a failed append is dropped by the writer itself.
+    private static void dropFailedAppend(FileChannel channel, long offset, File file) {
+
+        if (offset < 0) {
+            return;
+        }
 
-        return null;
+        try {
+            channel.truncate(offset);
+        } catch (IOException truncateException) {
+            logger.warn(String.format("cannot drop the failed append from transaction file %s", file), truncateException);
+        }
+    }
+
+    //makes the bytes written to the file durable, with group commit on by the sync journal instead of forcing the file.
+    private void sync(FileChannel channel, byte type, File file, long offset, byte[] content) throws IOException {
+
+        if (groupCommit) {
+            getGroupCommitter().submit(new SyncJournal.Entry(type, getRelativePath(file), offset, content));
+        } else {
+            channel.force(true);
+        }
+    }
+
+    private String getRelativePath(File file) {
+        return new File(rootPath).toPath().relativize(file.toPath()).toString();
+    }
+
+    /**
+     * flushes the writes queued and stops the group commit thread, then closes the sync journal and stops the scan threads.
+     * set it as the destroy method of the bean.
+     */
+    public void close() {
+
+        GroupCommitter<SyncJournal.Entry> committer = groupCommitter;
+
+        if (committer != null) {
+            committer.shutdown();
+        }
+
+        ExecutorService executorService = scanExecutorService;
+
+        if (executorService != null) {
+            executorService.shutdown();
+        }
+
+        synchronized (this) {
+            if (syncJournal != null) {
+                try {
+                    syncJournal.close();
+                } catch (IOException e) {
+                    throw new TransactionIOException(e);
+                }
+            }
+        }
+    }
+
+    private GroupCommitter<SyncJournal.Entry> getGroupCommitter() {
+
+        if (groupCommitter == null) {
+            synchronized (this) {
+                if (groupCommitter == null) {
+                    GroupCommitter<SyncJournal.Entry> committer = new GroupCommitter<SyncJournal.Entry>("tcc-file-group-commit", new GroupCommitter.BatchExecutor<SyncJournal.Entry>() {
+                        @Override
+                        public void execute(List<GroupCommitter.Request<SyncJournal.Entry>> requests) {
+                            appendBatch(requests);
+                        }
+                    });
+                    committer.setBatchSize(groupCommitBatchSize);
+                    committer.setMaxWaitMillis(groupCommitMaxWaitMillis);
+                    groupCommitter = committer;
+                }
+            }
+        }
+
+        return groupCommitter;
+    }
+
+    private void appendBatch(List<GroupCommitter.Request<SyncJournal.Entry>> requests) {
+
+        List<SyncJournal.Entry> entries = new ArrayList<SyncJournal.Entry>(requests.size());
+
+        for (GroupCommitter.Request<SyncJournal.Entry> request : requests) {
+            entries.add(request.getOperation());
+        }
+
+        try {
+            getSyncJournal().append(entries);
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        }
+
+        for (GroupCommitter.Request<SyncJournal.Entry> request : requests) {
+            request.complete(1);
+        }
+    }
+
+    private SyncJournal getSyncJournal() {
+
+        if (syncJournal == null) {
+            synchronized (this) {
+                if (syncJournal == null) {
+
+                    File journalFile = new File(getGroupCommitJournalPath()).getAbsoluteFile();
+
+                    //the journal would be listed and read as a transaction file.
+                    if (journalFile.toPath().normalize().startsWith(new File(rootPath).getAbsoluteFile().toPath().normalize())) {
+                        throw new TransactionIOException("groupCommitJournalPath must not be in rootPath, the path is:" + journalFile);
+                    }
+
+                    syncJournal = new SyncJournal(new File(rootPath), journalFile, groupCommitCheckpointSize);
+                }
+            }
+        }
+
+        return syncJournal;
+    }
+
+    public String getGroupCommitJournalPath() {
+        //the absolute path has no trailing separator, which would put the journal in rootPath.
+        return groupCommitJournalPath != null ? groupCommitJournalPath : new File(rootPath).getAbsoluteFile().getPath() + ".sync";
+    }
+
+    private Transaction readTransaction(File file) {
+        return TransactionSerializer.deserialize(serializer, readRecord(file));
+    }
+
+    //a frame cut off at the end is ignored by the deserializer, readers never change the file.
+    private byte[] readRecord(File file) {
+        return readFile(file, (int) file.length());
+    }
+
+    //drops the appends cut off by a crash on startup, so the next frame is not written behind them.
+    private void repairRecords() {
+
+        doScan(new RecordVisitor<Object>() {
+            @Override
+            public Object visit(File file) {
+
+                byte[] content = readRecord(file);
+
+                int readableLength = TransactionSerializer.readableLength(content);
+
+                //a record without a valid first frame is left as it is for the deserializer to report.
+                if (readableLength > 0 && readableLength < content.length) {
+                    logger.warn(String.format("dropped %d bytes of a cut off append from transaction file %s", content.length - readableLength, file));
+                    truncateFile(file, readableLength);
+                }
+
+                return null;
+            }
+        });
+    }
+
+    private void truncateFile(File file, long length) {
+
+        RandomAccessFile raf = null;
+
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.getChannel().truncate(length);
+            raf.getChannel().force(true);
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    throw new TransactionIOException(e);
+                }
+            }
+        }
+    }
+
+    private TransactionHeader readHeader(File file) {
+
+        if (file.length() < TransactionSerializer.HEADER_LENGTH) {
+            return null;
+        }
+
+        return TransactionSerializer.deserializeHeader(readFile(file, TransactionSerializer.HEADER_LENGTH));
+    }
+
+    private byte[] readFile(File file, int length) {
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("transaction file " + file + " is shorter than " + length + " bytes");
+                }
+            }
+
+            return buffer.array();
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    private interface RecordVisitor<T> {
+
+        //null to leave the file out of the result.
+        T visit(File file);
     }
 }
@@ -3,6 +3,11 @@ package org.mengyun.tcctransaction.repository;
 
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
+import org.mengyun.tcctransaction.repository.helper.GroupCommitter;
+import org.mengyun.tcctransaction.repository.helper.TransactionDelta;
 import org.mengyun.tcctransaction.serializer.JacksonJsonSerializer;
 import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
@@ -29,6 +34,22 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
 
     private ObjectSerializer serializer = new KryoPoolSerializer();
 
+    private boolean groupCommit = false;
+
+    private int groupCommitBatchSize = 100;
+
+    private long groupCommitMaxWaitMillis = 0;
+
+    private volatile GroupCommitter<JdbcOperation> groupCommitter;
+
+    private volatile boolean batchRowCounts = true;
+
+    private boolean deltaUpdate = false;
+
+    private int findBatchSize = 100;
+
+    private boolean rowValueIn = false;
+
     public String getDomain() {
         return domain;
     }
@@ -57,34 +78,57 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         return dataSource;
     }
 
+    /**
+     * the xids a query of findByXids selects at most.
+     */
+    public void setFindBatchSize(int findBatchSize) {
+        this.findBatchSize = findBatchSize;
+    }
+
+    /**
+     * select the xids of findByXids by a row value IN list, (GLOBAL_TX_ID, BRANCH_QUALIFIER) IN ((?, ?), ...), which
+     * MySQL, PostgreSQL, Oracle and H2 read by the unique key UX_TX_BQ. off by default for databases without row values.
+     */
+    public void setRowValueIn(boolean rowValueIn) {
+        this.rowValueIn = rowValueIn;
+    }
+
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    public void setGroupCommitBatchSize(int groupCommitBatchSize) {
+        this.groupCommitBatchSize = groupCommitBatchSize;
+    }
+
+    public void setGroupCommitMaxWaitMillis(long groupCommitMaxWaitMillis) {
+        this.groupCommitMaxWaitMillis = groupCommitMaxWaitMillis;
+    }
+
+    /**
+     * store the participants enlisted by an update as rows of the participant table (TCC_TRANSACTION[suffix]_PARTICIPANT)
+     * instead of rewriting CONTENT. the header update and the row insert run in one local transaction, so updates are
+     * not group committed. all nodes sharing the table must use the same setting.
+     */
+    public void setDeltaUpdate(boolean deltaUpdate) {
+        this.deltaUpdate = deltaUpdate;
+    }
+
     protected int doCreate(Transaction transaction) {
 
+        if (groupCommit) {
+            return getGroupCommitter().submit(new JdbcOperation(JdbcOperation.CREATE, transaction, serializer.serialize(transaction), transaction.getVersion()));
+        }
+
         Connection connection = null;
         PreparedStatement stmt = null;
 
         try {
             connection = this.getConnection();
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("INSERT INTO " + getTableName() +
-                    "(GLOBAL_TX_ID,BRANCH_QUALIFIER,TRANSACTION_TYPE,CONTENT,STATUS,RETRIED_COUNT,CREATE_TIME,LAST_UPDATE_TIME,VERSION");
-            builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN ) VALUES (?,?,?,?,?,?,?,?,?,?)" : ") VALUES (?,?,?,?,?,?,?,?,?)");
-
-            stmt = connection.prepareStatement(builder.toString());
-
-            stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
-            stmt.setBytes(2, transaction.getXid().getBranchQualifier());
-            stmt.setInt(3, transaction.getTransactionType().getId());
-            stmt.setBytes(4, serializer.serialize(transaction));
-            stmt.setInt(5, transaction.getStatus().getId());
-            stmt.setInt(6, transaction.getRetriedCount());
-            stmt.setTimestamp(7, new java.sql.Timestamp(transaction.getCreateTime().getTime()));
-            stmt.setTimestamp(8, new java.sql.Timestamp(transaction.getLastUpdateTime().getTime()));
-            stmt.setLong(9, transaction.getVersion());
-
-            if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(10, domain);
-            }
+            stmt = connection.prepareStatement(buildInsertSql());
+
+            bindInsert(stmt, transaction, serializer.serialize(transaction));
 
             stmt.executeUpdate();
             return 1;
@@ -113,28 +157,19 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         transaction.updateVersion();
 
         try {
-            connection = this.getConnection();
-
-            StringBuilder builder = new StringBuilder();
-            builder.append("UPDATE " + getTableName() + " SET " +
-                    "CONTENT = ?,STATUS = ?,LAST_UPDATE_TIME = ?, RETRIED_COUNT = ?,VERSION = VERSION+1 WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? AND VERSION = ?");
-
-            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+            if (deltaUpdate) {
+                return updateDelta(transaction, currentVersion);
+            }
 
-            stmt = connection.prepareStatement(builder.toString());
+            if (groupCommit) {
+                return getGroupCommitter().submit(new JdbcOperation(JdbcOperation.UPDATE, transaction, serializer.serialize(transaction), currentVersion));
+            }
 
-            stmt.setBytes(1, serializer.serialize(transaction));
-            stmt.setInt(2, transaction.getStatus().getId());
-            stmt.setTimestamp(3, new Timestamp(transaction.getLastUpdateTime().getTime()));
+            connection = this.getConnection();
 
-            stmt.setInt(4, transaction.getRetriedCount());
-            stmt.setBytes(5, transaction.getXid().getGlobalTransactionId());
-            stmt.setBytes(6, transaction.getXid().getBranchQualifier());
-            stmt.setLong(7, currentVersion);
+            stmt = connection.prepareStatement(buildUpdateSql());
 
-            if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(8, domain);
-            }
+            bindUpdate(stmt, transaction, serializer.serialize(transaction), currentVersion);
 
             int result = stmt.executeUpdate();
 
@@ -151,37 +186,386 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
     }
 
     protected int doDelete(Transaction transaction) {
+
+        int result;
+
+        if (groupCommit) {
+            result = getGroupCommitter().submit(new JdbcOperation(JdbcOperation.DELETE, transaction, null, transaction.getVersion()));
+        } else {
+            result = executeDelete(transaction, false);
+        }
+
+        //participant rows are deleted after the transaction row, rows left by a failure here are never read.
+        if (deltaUpdate) {
+            executeDelete(transaction, true);
+        }
+
+        return result;
+    }
+
+    private int executeDelete(Transaction transaction, boolean participants) {
+
         Connection connection = null;
         PreparedStatement stmt = null;
 
         try {
             connection = this.getConnection();
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("DELETE FROM " + getTableName() +
-                    " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?");
+            if (participants) {
+                stmt = connection.prepareStatement(buildParticipantDeleteSql());
+                stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
+                stmt.setBytes(2, transaction.getXid().getBranchQualifier());
+            } else {
+                stmt = connection.prepareStatement(buildDeleteSql());
+                bindDelete(stmt, transaction);
+            }
 
-            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+            return stmt.executeUpdate();
 
-            stmt = connection.prepareStatement(builder.toString());
+        } catch (SQLException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            closeStatement(stmt);
+            this.releaseConnection(connection);
+        }
+    }
+
+    private int updateDelta(Transaction transaction, long currentVersion) throws SQLException {
 
-            stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
-            stmt.setBytes(2, transaction.getXid().getBranchQualifier());
+        Connection connection = null;
+        PreparedStatement stmt = null;
+        boolean autoCommit = false;
 
-            if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(3, domain);
+        try {
+            connection = this.getConnection();
+
+            //a connection already in a transaction, e.g. bound by spring, is committed by its owner.
+            autoCommit = connection.getAutoCommit();
+            if (autoCommit) {
+                connection.setAutoCommit(false);
             }
 
-            return stmt.executeUpdate();
+            stmt = connection.prepareStatement(buildUpdateSql(false));
+            bindUpdate(stmt, transaction, null, currentVersion);
+
+            int result = stmt.executeUpdate();
+
+            if (result > 0 && TransactionDelta.hasNewParticipants(transaction)) {
+                closeStatement(stmt);
+
+                stmt = connection.prepareStatement(buildParticipantInsertSql());
+                stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
+                stmt.setBytes(2, transaction.getXid().getBranchQualifier());
+                stmt.setInt(3, transaction.getPersistedParticipantCount());
+                stmt.setBytes(4, serializer.serialize(TransactionDelta.newParticipants(transaction)));
+                stmt.executeUpdate();
+            }
+
+            if (autoCommit) {
+                connection.commit();
+            }
+
+            return result;
 
         } catch (SQLException e) {
-            throw new TransactionIOException(e);
+            if (autoCommit) {
+                connection.rollback();
+            }
+            throw e;
         } finally {
             closeStatement(stmt);
+            if (autoCommit) {
+                connection.setAutoCommit(true);
+            }
             this.releaseConnection(connection);
         }
     }
 
+    private String buildInsertSql() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("INSERT INTO " + getTableName() +
+                "(GLOBAL_TX_ID,BRANCH_QUALIFIER,TRANSACTION_TYPE,CONTENT,STATUS,RETRIED_COUNT,CREATE_TIME,LAST_UPDATE_TIME,VERSION");
+        builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN ) VALUES (?,?,?,?,?,?,?,?,?,?)" : ") VALUES (?,?,?,?,?,?,?,?,?)");
+        return builder.toString();
+    }
+
+    private void bindInsert(PreparedStatement stmt, Transaction transaction, byte[] content) throws SQLException {
+        stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
+        stmt.setBytes(2, transaction.getXid().getBranchQualifier());
+        stmt.setInt(3, transaction.getTransactionType().getId());
+        stmt.setBytes(4, content);
+        stmt.setInt(5, transaction.getStatus().getId());
+        stmt.setInt(6, transaction.getRetriedCount());
+        stmt.setTimestamp(7, new java.sql.Timestamp(transaction.getCreateTime().getTime()));
+        stmt.setTimestamp(8, new java.sql.Timestamp(transaction.getLastUpdateTime().getTime()));
+        stmt.setLong(9, transaction.getVersion());
+
+        if (StringUtils.isNotEmpty(domain)) {
+            stmt.setString(10, domain);
+        }
+    }
+
+    private String buildUpdateSql() {
+        return buildUpdateSql(true);
+    }
+
+    private String buildUpdateSql(boolean withContent) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("UPDATE " + getTableName() + " SET " + (withContent ? "CONTENT = ?," : "") +
+                "STATUS = ?,LAST_UPDATE_TIME = ?, RETRIED_COUNT = ?,VERSION = VERSION+1 WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? AND VERSION = ?");
+
+        builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+        return builder.toString();
+    }
+
+    //content is null for the statement of buildUpdateSql(false).
+    private void bindUpdate(PreparedStatement stmt, Transaction transaction, byte[] content, long currentVersion) throws SQLException {
+        int i = 0;
+
+        if (content != null) {
+            stmt.setBytes(++i, content);
+        }
+
+        stmt.setInt(++i, transaction.getStatus().getId());
+        stmt.setTimestamp(++i, new Timestamp(transaction.getLastUpdateTime().getTime()));
+
+        stmt.setInt(++i, transaction.getRetriedCount());
+        stmt.setBytes(++i, transaction.getXid().getGlobalTransactionId());
+        stmt.setBytes(++i, transaction.getXid().getBranchQualifier());
+        stmt.setLong(++i, currentVersion);
+
+        if (StringUtils.isNotEmpty(domain)) {
+            stmt.setString(++i, domain);
+        }
+    }
+
+    private String buildDeleteSql() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("DELETE FROM " + getTableName() +
+                " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?");
+
+        builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+        return builder.toString();
+    }
+
+    private void bindDelete(PreparedStatement stmt, Transaction transaction) throws SQLException {
+        stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
+        stmt.setBytes(2, transaction.getXid().getBranchQualifier());
+
+        if (StringUtils.isNotEmpty(domain)) {
+            stmt.setString(3, domain);
+        }
+    }
+
+    //participant rows are keyed by the xid only, as the transaction row is unique on it.
+    private String buildParticipantInsertSql() {
+        return "INSERT INTO " + getParticipantTableName() + "(GLOBAL_TX_ID,BRANCH_QUALIFIER,PARTICIPANT_INDEX,CONTENT) VALUES (?,?,?,?)";
+    }
+
+    private String buildParticipantDeleteSql() {
+        return "DELETE FROM " + getParticipantTableName() + " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?";
+    }
+
+    private String buildParticipantSelectSql() {
+        return "SELECT PARTICIPANT_INDEX, CONTENT FROM " + getParticipantTableName() + " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? ORDER BY PARTICIPANT_INDEX";
+    }
+
+    /**
+     * stops the group commit thread once the writes queued are flushed. set it as the destroy method of the bean.
+     */
+    public void close() {
+
+        GroupCommitter<JdbcOperation> committer = groupCommitter;
+
+        if (committer != null) {
+            committer.shutdown();
+        }
+    }
+
+    private GroupCommitter<JdbcOperation> getGroupCommitter() {
+
+        if (groupCommitter == null) {
+            synchronized (this) {
+                if (groupCommitter == null) {
+                    GroupCommitter<JdbcOperation> committer = new GroupCommitter<JdbcOperation>("tcc-jdbc-group-commit", new GroupCommitter.BatchExecutor<JdbcOperation>() {
+                        @Override
+                        public void execute(List<GroupCommitter.Request<JdbcOperation>> requests) {
+                            executeBatch(requests);
+                        }
+                    });
+                    committer.setBatchSize(groupCommitBatchSize);
+                    committer.setMaxWaitMillis(groupCommitMaxWaitMillis);
+                    groupCommitter = committer;
+                }
+            }
+        }
+
+        return groupCommitter;
+    }
+
+    private void executeBatch(List<GroupCommitter.Request<JdbcOperation>> requests) {
+
+        Connection connection = null;
+
+        try {
+            connection = this.getConnection();
+
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try {
+                int[] results;
+
+                try {
+                    results = executeInBatch(connection, requests);
+                } catch (SQLException e) {
+                    connection.rollback();
+
+                    //a duplicated key fails the whole batch, replay one by one so that every caller gets its own result.
+                    for (GroupCommitter.Request<JdbcOperation> request : requests) {
+                        executeSingle(connection, request);
+                    }
+                    return;
+                }
+
+                //the outcome of a failed commit is unknown, the requests fail rather than being replayed.
+                connection.commit();
+
+                for (int i = 0; i < requests.size(); i++) {
+                    requests.get(i).complete(results[i]);
+                }
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (Throwable e) {
+            for (GroupCommitter.Request<JdbcOperation> request : requests) {
+                if (!request.isDone()) {
+                    request.fail(new TransactionIOException(e));
+                }
+            }
+        } finally {
+            this.releaseConnection(connection);
+        }
+    }
+
+    private int[] executeInBatch(Connection connection, List<GroupCommitter.Request<JdbcOperation>> requests) throws SQLException {
+
+        int[] results = new int[requests.size()];
+
+        //statements are executed in the order insert, update, delete, so an operation never runs before
+        //an earlier operation of another type on the same row in the same batch.
+        for (int type = JdbcOperation.CREATE; type <= JdbcOperation.DELETE; type++) {
+
+            //the version check of an update or delete needs the row count, which a driver may not return for a batch.
+            boolean batched = type == JdbcOperation.CREATE || batchRowCounts;
+
+            List<Integer> indexes = new ArrayList<Integer>();
+            PreparedStatement stmt = null;
+
+            try {
+                for (int i = 0; i < requests.size(); i++) {
+                    JdbcOperation operation = requests.get(i).getOperation();
+
+                    if (operation.type != type) {
+                        continue;
+                    }
+
+                    if (stmt == null) {
+                        stmt = connection.prepareStatement(buildSql(type));
+                    }
+
+                    bind(stmt, operation);
+
+                    if (batched) {
+                        stmt.addBatch();
+                        indexes.add(i);
+                    } else {
+                        results[i] = stmt.executeUpdate();
+                    }
+                }
+
+                if (stmt != null && batched) {
+                    int[] counts = stmt.executeBatch();
+
+                    if (counts.length != indexes.size()) {
+                        throw new SQLException("batch returned " + counts.length + " update counts for " + indexes.size() + " statements");
+                    }
+
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] == Statement.EXECUTE_FAILED) {
+                            throw new SQLException("batch statement failed");
+                        }
+
+                        if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                            if (type != JdbcOperation.CREATE) {
+                                //updates and deletes of this and the later batches run one by one.
+                                batchRowCounts = false;
+                                throw new SQLException("batch returned no row count for an update or delete");
+                            }
+                            results[indexes.get(i)] = 1;
+                        } else {
+                            results[indexes.get(i)] = counts[i];
+                        }
+                    }
+                }
+            } finally {
+                closeStatement(stmt);
+            }
+        }
+
+        return results;
+    }
+
+    private void executeSingle(Connection connection, GroupCommitter.Request<JdbcOperation> request) throws SQLException {
+
+        JdbcOperation operation = request.getOperation();
+        PreparedStatement stmt = null;
+
+        try {
+            stmt = connection.prepareStatement(buildSql(operation.type));
+            bind(stmt, operation);
+
+            int result = stmt.executeUpdate();
+            connection.commit();
+
+            request.complete(operation.type == JdbcOperation.CREATE ? 1 : result);
+        } catch (SQLException e) {
+            connection.rollback();
+
+            if (operation.type == JdbcOperation.CREATE && e instanceof SQLIntegrityConstraintViolationException) {
+                request.complete(0);
+            } else {
+                request.fail(new TransactionIOException(e));
+            }
+        } finally {
+            closeStatement(stmt);
+        }
+    }
+
+    private String buildSql(int type) {
+        switch (type) {
+            case JdbcOperation.CREATE:
+                return buildInsertSql();
+            case JdbcOperation.UPDATE:
+                return buildUpdateSql();
+            default:
+                return buildDeleteSql();
+        }
+    }
+
+    private void bind(PreparedStatement stmt, JdbcOperation operation) throws SQLException {
+        switch (operation.type) {
+            case JdbcOperation.CREATE:
+                bindInsert(stmt, operation.transaction, operation.content);
+                break;
+            case JdbcOperation.UPDATE:
+                bindUpdate(stmt, operation.transaction, operation.content, operation.currentVersion);
+                break;
+            default:
+                bindDelete(stmt, operation.transaction);
+        }
+    }
+
     protected Transaction doFindOne(Xid xid) {
 
         List<Transaction> transactions = doFind(Arrays.asList(xid));
@@ -203,25 +587,15 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         try {
             connection = this.getConnection();
 
-            StringBuilder builder = new StringBuilder();
-
-            builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
-            builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
-            builder.append("  FROM " + getTableName() + " WHERE LAST_UPDATE_TIME < ?");
-            builder.append(" AND IS_DELETE = 0 ");
-            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
-
-            stmt = connection.prepareStatement(builder.toString());
-
-            stmt.setTimestamp(1, new Timestamp(date.getTime()));
-
-            if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(2, domain);
-            }
+            stmt = prepareFindUnmodifiedSince(connection, date);
 
             ResultSet resultSet = stmt.executeQuery();
 
             this.constructTransactions(resultSet, transactions);
+
+            if (deltaUpdate) {
+                mergeParticipants(connection, transactions);
+            }
         } catch (Throwable e) {
             throw new TransactionIOException(e);
         } finally {
@@ -232,6 +606,166 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         return transactions;
     }
 
+    /**
+     * reads the rows in pages of batchSize ordered by (LAST_UPDATE_TIME, GLOBAL_TX_ID, BRANCH_QUALIFIER), each page
+     * starting after the key of the last row of the previous one, so the rows updated or deleted while a page is
+     * handled do not shift the next page. The connection is released before the handler is called.
+     */
+    @Override
+    protected void doScanRecoverableUnmodifiedSince(java.util.Date date, int batchSize, RecoverableTransaction.BatchHandler handler) {
+
+        Timestamp lastUpdateTime = null;
+        byte[] globalTransactionId = null;
+        byte[] branchQualifier = null;
+
+        while (true) {
+
+            List<RecoverableTransaction> batch = new ArrayList<RecoverableTransaction>(batchSize);
+
+            Connection connection = null;
+            PreparedStatement stmt = null;
+
+            try {
+                connection = this.getConnection();
+
+                stmt = prepareScanUnmodifiedSince(connection, date, batchSize, lastUpdateTime, globalTransactionId, branchQualifier);
+
+                ResultSet resultSet = stmt.executeQuery();
+
+                while (resultSet.next()) {
+                    batch.add(readRecoverable(resultSet));
+
+                    globalTransactionId = resultSet.getBytes(1);
+                    branchQualifier = resultSet.getBytes(2);
+                    lastUpdateTime = resultSet.getTimestamp(7);
+                }
+            } catch (Throwable e) {
+                throw new TransactionIOException(e);
+            } finally {
+                closeStatement(stmt);
+                this.releaseConnection(connection);
+            }
+
+            if (!batch.isEmpty()) {
+                handler.handle(batch);
+            }
+
+            if (batch.size() < batchSize) {
+                break;
+            }
+        }
+    }
+
+    private RecoverableTransaction readRecoverable(ResultSet resultSet) throws SQLException {
+
+        final byte[] content = resultSet.getBytes(3);
+        final int status = resultSet.getInt(4);
+        final java.util.Date lastUpdateTime = resultSet.getTimestamp(7);
+        final int retriedCount = resultSet.getInt(8);
+        final long version = resultSet.getLong(9);
+
+        //the content bytes are kept and deserialized only for the transactions recovery goes on with.
+        return recoverable(new TransactionXid(resultSet.getBytes(1), resultSet.getBytes(2)),
+                TransactionStatus.valueOf(status),
+                TransactionType.valueOf(resultSet.getInt(5)),
+                retriedCount,
+                resultSet.getTimestamp(6),
+                lastUpdateTime,
+                new RecoverableTransaction.ContentLoader() {
+                    @Override
+                    public Transaction load() {
+                        return loadTransaction(restoreTransaction(content, status, lastUpdateTime, retriedCount, version));
+                    }
+                });
+    }
+
+    private PreparedStatement prepareScanUnmodifiedSince(Connection connection, java.util.Date date, int batchSize,
+                                                         Timestamp lastUpdateTime, byte[] globalTransactionId, byte[] branchQualifier) throws SQLException {
+
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
+        builder.append("  FROM " + getTableName() + " WHERE LAST_UPDATE_TIME < ?");
+        builder.append(" AND IS_DELETE = 0 ");
+        builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+
+        if (lastUpdateTime != null) {
+            builder.append(" AND (LAST_UPDATE_TIME > ? OR (LAST_UPDATE_TIME = ? AND (GLOBAL_TX_ID > ? OR (GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER > ?))))");
+        }
+
+        builder.append(" ORDER BY LAST_UPDATE_TIME, GLOBAL_TX_ID, BRANCH_QUALIFIER");
+
+        PreparedStatement stmt = connection.prepareStatement(builder.toString());
+
+        //max rows instead of a LIMIT clause, which is not supported by every database.
+        stmt.setMaxRows(batchSize);
+        stmt.setFetchSize(batchSize);
+
+        int i = 0;
+
+        stmt.setTimestamp(++i, new Timestamp(date.getTime()));
+
+        if (StringUtils.isNotEmpty(domain)) {
+            stmt.setString(++i, domain);
+        }
+
+        if (lastUpdateTime != null) {
+            stmt.setTimestamp(++i, lastUpdateTime);
+            stmt.setTimestamp(++i, lastUpdateTime);
+            stmt.setBytes(++i, globalTransactionId);
+            stmt.setBytes(++i, globalTransactionId);
+            stmt.setBytes(++i, branchQualifier);
+        }
+
+        return stmt;
+    }
+
+    //merges the participants of delta updates into a transaction read without them.
+    private Transaction loadTransaction(Transaction transaction) {
+
+        if (!deltaUpdate) {
+            return transaction;
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = this.getConnection();
+            mergeParticipants(connection, Arrays.asList(transaction));
+        } catch (SQLException e) {
+            throw new TransactionIOException(e);
+        } finally {
+            this.releaseConnection(connection);
+        }
+
+        return transaction;
+    }
+
+    private PreparedStatement prepareFindUnmodifiedSince(Connection connection, java.util.Date date) throws SQLException {
+
+        StringBuilder builder = new StringBuilder();
+
+        builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
+        builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
+        builder.append("  FROM " + getTableName() + " WHERE LAST_UPDATE_TIME < ?");
+        builder.append(" AND IS_DELETE = 0 ");
+        builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+
+        PreparedStatement stmt = connection.prepareStatement(builder.toString());
+
+        stmt.setTimestamp(1, new Timestamp(date.getTime()));
+
+        if (StringUtils.isNotEmpty(domain)) {
+            stmt.setString(2, domain);
+        }
+
+        return stmt;
+    }
+
+    /**
+     * reads the rows of findBatchSize xids a query.
+     */
+    @Override
     protected List<Transaction> doFind(List<Xid> xids) {
 
         List<Transaction> transactions = new ArrayList<Transaction>();
@@ -246,37 +780,38 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         try {
             connection = this.getConnection();
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
-            builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
-            builder.append("  FROM " + getTableName() + " WHERE");
+            for (int from = 0; from < xids.size(); from += findBatchSize) {
 
-            if (!CollectionUtils.isEmpty(xids)) {
-                for (Xid xid : xids) {
-                    builder.append(" ( GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? ) OR");
-                }
+                List<Xid> chunk = xids.subList(from, Math.min(from + findBatchSize, xids.size()));
 
-                builder.delete(builder.length() - 2, builder.length());
-            }
+                stmt = connection.prepareStatement(buildFindSql(chunk.size()));
 
-            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+                int i = 0;
 
-            stmt = connection.prepareStatement(builder.toString());
+                for (Xid xid : chunk) {
+                    stmt.setBytes(++i, xid.getGlobalTransactionId());
+                    stmt.setBytes(++i, xid.getBranchQualifier());
+                }
 
-            int i = 0;
+                if (StringUtils.isNotEmpty(domain)) {
+                    stmt.setString(++i, domain);
+                }
 
-            for (Xid xid : xids) {
-                stmt.setBytes(++i, xid.getGlobalTransactionId());
-                stmt.setBytes(++i, xid.getBranchQualifier());
-            }
+                List<Transaction> found = new ArrayList<Transaction>(chunk.size());
 
-            if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(++i, domain);
-            }
+                ResultSet resultSet = stmt.executeQuery();
 
-            ResultSet resultSet = stmt.executeQuery();
+                this.constructTransactions(resultSet, found);
 
-            this.constructTransactions(resultSet, transactions);
+                closeStatement(stmt);
+                stmt = null;
+
+                if (deltaUpdate) {
+                    mergeParticipants(connection, found);
+                }
+
+                transactions.addAll(found);
+            }
         } catch (Throwable e) {
             throw new TransactionIOException(e);
         } finally {
@@ -287,18 +822,76 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
         return transactions;
     }
 
+    private String buildFindSql(int count) {
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
+        builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
+        builder.append("  FROM " + getTableName() + " WHERE");
+
+        if (rowValueIn) {
+            builder.append(" (GLOBAL_TX_ID, BRANCH_QUALIFIER) IN (");
+
+            for (int i = 0; i < count; i++) {
+                builder.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+            }
+
+            builder.append(")");
+        } else {
+            //the OR chain is in parentheses, so the DOMAIN condition applies to every xid.
+            builder.append(" (");
+
+            for (int i = 0; i < count; i++) {
+                builder.append(i == 0 ? " ( GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? )" : " OR ( GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? )");
+            }
+
+            builder.append(" )");
+        }
+
+        builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+
+        return builder.toString();
+    }
+
+    private void mergeParticipants(Connection connection, List<Transaction> transactions) throws SQLException {
+
+        PreparedStatement stmt = null;
+
+        try {
+            stmt = connection.prepareStatement(buildParticipantSelectSql());
+
+            for (Transaction transaction : transactions) {
+                stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
+                stmt.setBytes(2, transaction.getXid().getBranchQualifier());
+
+                ResultSet resultSet = stmt.executeQuery();
+
+                while (resultSet.next()) {
+                    TransactionDelta.merge(transaction, resultSet.getInt(1), (Transaction) serializer.deserialize(resultSet.getBytes(2)));
+                }
+
+                resultSet.close();
+            }
+        } finally {
+            closeStatement(stmt);
+        }
+    }
+
     protected void constructTransactions(ResultSet resultSet, List<Transaction> transactions) throws SQLException {
         while (resultSet.next()) {
-            byte[] transactionBytes = resultSet.getBytes(3);
-            Transaction transaction = (Transaction) serializer.deserialize(transactionBytes);
-            transaction.changeStatus(TransactionStatus.valueOf(resultSet.getInt(4)));
-            transaction.setLastUpdateTime(resultSet.getDate(7));
-            transaction.setVersion(resultSet.getLong(9));
-            transaction.resetRetriedCount(resultSet.getInt(8));
-            transactions.add(transaction);
+            transactions.add(restoreTransaction(resultSet.getBytes(3), resultSet.getInt(4), resultSet.getDate(7), resultSet.getInt(8), resultSet.getLong(9)));
         }
     }
 
+    private Transaction restoreTransaction(byte[] content, int status, java.util.Date lastUpdateTime, int retriedCount, long version) {
+        Transaction transaction = (Transaction) serializer.deserialize(content);
+        transaction.changeStatus(TransactionStatus.valueOf(status));
+        transaction.setLastUpdateTime(lastUpdateTime);
+        transaction.setVersion(version);
+        transaction.resetRetriedCount(retriedCount);
+        return transaction;
+    }
+
 
     protected Connection getConnection() {
         try {
@@ -331,4 +924,32 @@ public class JdbcTransactionRepository extends CachableTransactionRepository {
     private String getTableName() {
         return StringUtils.isNotEmpty(tbSuffix) ? "TCC_TRANSACTION" + tbSuffix : "TCC_TRANSACTION";
     }
+
+    private String getParticipantTableName() {
+        return getTableName() + "_PARTICIPANT";
+    }
+
+    private static class JdbcOperation {
+
+        static final int CREATE = 1;
+
+        static final int UPDATE = 2;
+
+        static final int DELETE = 3;
+
+        final int type;
+
+        final Transaction transaction;
+
+        final byte[] content;
+
+        final long currentVersion;
+
+        JdbcOperation(int type, Transaction transaction, byte[] content, long currentVersion) {
+            this.type = type;
+            this.transaction = transaction;
+            this.content = content;
+            this.currentVersion = currentVersion;
+        }
+    }
 }
@@ -0,0 +1,753 @@
+package org.mengyun.tcctransaction.repository;
+
+import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
+import org.mengyun.tcctransaction.repository.helper.TransactionHeader;
+import org.mengyun.tcctransaction.repository.helper.TransactionSerializer;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+
+import javax.transaction.xa.Xid;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Stores transactions as records appended to memory mapped segment files, for single node deployments.
+ * <p/>
+ * Segments are pre-allocated files of segmentSize bytes named by a sequence number. A create or update appends a
+ * record holding the xid and the transaction in the record format of {@link TransactionSerializer}, a delete appends
+ * a record holding only the xid. All records are written by one appender, writers then force the mapped segment
+ * outside the lock, so one msync covers the records of every writer appended before it. An index of the live xids
+ * to their last record is kept in memory and rebuilt on startup by reading the segments in order; a record cut off
+ * by a crash ends the scan of its segment and is overwritten.
+ * <p/>
+ * A background task compacts the oldest segment once less than compactThreshold of it is live: its live records are
+ * appended again and the file is unmapped and deleted. Segments are compacted oldest first only, so a delete record
+ * is never dropped while an older segment still holds a record of that xid. Readers and forces of a segment hold the
+ * read lock of segmentLock, the unmap waits for them with the write lock.
+ * <p/>
+ * Record layout, all numbers big endian:
+ * <pre>
+ * magic(4) type(1) globalTransactionIdLength(2) globalTransactionId branchQualifierLength(2) branchQualifier
+ * bodyLength(4) body(bodyLength) checksum(4)
+ * </pre>
+ */
+public class JournalTransactionRepository extends CachableTransactionRepository {
+
+    static final Logger logger = Logger.getLogger(JournalTransactionRepository.class.getSimpleName());
+
+    static final int RECORD_MAGIC = 0x54434A52;
+
+    static final byte PUT = 1;
+
+    static final byte DELETE = 2;
+
+    static final int RECORD_OVERHEAD = 4 + 1 + 2 + 2 + 4 + 4;
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private String rootPath = "/tcc-journal";
+
+    private int segmentSize = 64 * 1024 * 1024;
+
+    private double compactThreshold = 0.5;
+
+    private long compactIntervalSeconds = 60;
+
+    private ObjectSerializer serializer = new KryoPoolSerializer();
+
+    private final ReentrantLock appendLock = new ReentrantLock();
+
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+    //guarded by appendLock
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+
+    //guarded by appendLock
+    private Segment activeSegment;
+
+    private final Map<TransactionXid, Location> index = new ConcurrentHashMap<TransactionXid, Location>();
+
+    private volatile boolean opened;
+
+    private volatile ScheduledExecutorService compactExecutor;
+
+    public void setRootPath(String rootPath) {
+        this.rootPath = rootPath;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * the live fraction of the oldest segment below which it is compacted.
+     */
+    public void setCompactThreshold(double compactThreshold) {
+        this.compactThreshold = compactThreshold;
+    }
+
+    /**
+     * interval of the background compaction, 0 or less disables it.
+     */
+    public void setCompactIntervalSeconds(long compactIntervalSeconds) {
+        this.compactIntervalSeconds = compactIntervalSeconds;
+    }
+
+    public void setSerializer(ObjectSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    @Override
+    protected int doCreate(Transaction transaction) {
+
+        openIfNecessary();
+
+        TransactionXid xid = toTransactionXid(transaction.getXid());
+        byte[] body = TransactionSerializer.serialize(serializer, transaction);
+
+        Location location;
+
+        appendLock.lock();
+        try {
+            if (index.containsKey(xid)) {
+                return 0;
+            }
+
+            location = append(PUT, xid, body, headerOf(body));
+            index.put(xid, location);
+        } finally {
+            appendLock.unlock();
+        }
+
+        force(location.segment);
+        return 1;
+    }
+
+    @Override
+    protected int doUpdate(Transaction transaction) {
+
+        openIfNecessary();
+
+        transaction.updateVersion();
+        transaction.updateTime();
+
+        TransactionXid xid = toTransactionXid(transaction.getXid());
+        byte[] body = TransactionSerializer.serialize(serializer, transaction);
+
+        Location location;
+
+        appendLock.lock();
+        try {
+            Location current = index.get(xid);
+
+            if (current == null || current.header.getVersion() != transaction.getVersion() - 1) {
+                return 0;
+            }
+
+            location = append(PUT, xid, body, headerOf(body));
+            index.put(xid, location);
+            current.release();
+        } finally {
+            appendLock.unlock();
+        }
+
+        force(location.segment);
+        return 1;
+    }
+
+    @Override
+    protected int doDelete(Transaction transaction) {
+
+        openIfNecessary();
+
+        TransactionXid xid = toTransactionXid(transaction.getXid());
+
+        Location location;
+
+        appendLock.lock();
+        try {
+            Location current = index.get(xid);
+
+            if (current == null) {
+                return 0;
+            }
+
+            location = append(DELETE, xid, new byte[0], null);
+            index.remove(xid);
+            current.release();
+            location.release();
+        } finally {
+            appendLock.unlock();
+        }
+
+        force(location.segment);
+        return 1;
+    }
+
+    @Override
+    protected Transaction doFindOne(Xid xid) {
+
+        openIfNecessary();
+
+        TransactionXid transactionXid = toTransactionXid(xid);
+
+        byte[] body = readBody(transactionXid, index.get(transactionXid));
+
+        return body == null ? null : TransactionSerializer.deserialize(serializer, body);
+    }
+
+    @Override
+    protected List<Transaction> doFindAllUnmodifiedSince(Date date) {
+
+        openIfNecessary();
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (Map.Entry<TransactionXid, Location> entry : index.entrySet()) {
+            if (entry.getValue().header.getLastUpdateTime().compareTo(date) < 0) {
+
+                byte[] body = readBody(entry.getKey(), entry.getValue());
+
+                if (body != null) {
+                    transactions.add(TransactionSerializer.deserialize(serializer, body));
+                }
+            }
+        }
+
+        return transactions;
+    }
+
+    @Override
+    protected List<RecoverableTransaction> doFindRecoverableUnmodifiedSince(Date date) {
+
+        openIfNecessary();
+
+        List<RecoverableTransaction> recoverableTransactions = new ArrayList<RecoverableTransaction>();
+
+        for (Map.Entry<TransactionXid, Location> entry : index.entrySet()) {
+
+            final TransactionXid xid = entry.getKey();
+            TransactionHeader header = entry.getValue().header;
+
+            if (header.getLastUpdateTime().compareTo(date) < 0) {
+                recoverableTransactions.add(recoverable(entry.getKey(), header.getStatus(), header.getTransactionType(),
+                        header.getRetriedCount(), header.getCreateTime(), header.getLastUpdateTime(),
+                        new RecoverableTransaction.ContentLoader() {
+                            @Override
+                            public Transaction load() {
+                                //the record listed may have been updated or compacted since, the current one is read.
+                                byte[] body = readBody(xid, index.get(xid));
+
+                                if (body == null) {
+                                    throw new TransactionIOException("transaction " + xid + " was deleted after it was listed");
+                                }
+
+                                return TransactionSerializer.deserialize(serializer, body);
+                            }
+                        }));
+            }
+        }
+
+        return recoverableTransactions;
+    }
+
+    /**
+     * compacts the oldest segments while less than compactThreshold of them is live, run by the background task.
+     */
+    public void compact() {
+
+        openIfNecessary();
+
+        while (true) {
+
+            Segment oldest;
+            Set<Segment> written = new HashSet<Segment>();
+
+            appendLock.lock();
+            try {
+                oldest = segments.firstEntry().getValue();
+
+                if (oldest == activeSegment || (oldest.liveBytes > 0 && oldest.liveBytes >= compactThreshold * oldest.position)) {
+                    return;
+                }
+
+                for (Map.Entry<TransactionXid, Location> entry : index.entrySet()) {
+
+                    Location location = entry.getValue();
+
+                    if (location.segment == oldest) {
+                        Location moved = append(PUT, entry.getKey(), location.readBody(), location.header);
+                        entry.setValue(moved);
+                        written.add(moved.segment);
+                    }
+                }
+
+                segments.remove(oldest.id);
+            } finally {
+                appendLock.unlock();
+            }
+
+            //the moved records are durable before the segment holding them is gone.
+            for (Segment segment : written) {
+                force(segment);
+            }
+
+            segmentLock.writeLock().lock();
+            try {
+                oldest.delete();
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+
+            logger.info(String.format("journal segment %s compacted", oldest.file.getName()));
+        }
+    }
+
+    //guarded by appendLock
+    private Location append(byte type, TransactionXid xid, byte[] body, TransactionHeader header) {
+
+        byte[] globalTransactionId = xid.getGlobalTransactionId();
+        byte[] branchQualifier = xid.getBranchQualifier();
+
+        int length = RECORD_OVERHEAD + globalTransactionId.length + branchQualifier.length + body.length;
+
+        if (activeSegment.remaining() < length) {
+            activeSegment = createSegment(activeSegment.id + 1, Math.max(segmentSize, length));
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(RECORD_MAGIC);
+        record.put(type);
+        record.putShort((short) globalTransactionId.length);
+        record.put(globalTransactionId);
+        record.putShort((short) branchQualifier.length);
+        record.put(branchQualifier);
+        record.putInt(body.length);
+        record.put(body);
+        record.putInt(checksum(record.array(), 0, length - 4));
+
+        Segment segment = activeSegment;
+        int offset = segment.position;
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(record.array());
+
+        segment.position += length;
+        segment.liveBytes += length;
+
+        return new Location(segment, offset, length, length - 4 - body.length, body.length, header);
+    }
+
+    //a segment compacted in the meantime had its records moved and forced by the compaction.
+    private void force(Segment segment) {
+        segmentLock.readLock().lock();
+        try {
+            if (!segment.deleted) {
+                segment.buffer.force();
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    //the body of the record of the xid at the location, looked up again when its segment was compacted, null once deleted.
+    private byte[] readBody(TransactionXid xid, Location location) {
+
+        while (location != null) {
+
+            segmentLock.readLock().lock();
+            try {
+                if (!location.segment.deleted) {
+                    return location.readBody();
+                }
+            } finally {
+                segmentLock.readLock().unlock();
+            }
+
+            location = index.get(xid);
+        }
+
+        return null;
+    }
+
+    private void openIfNecessary() {
+
+        if (opened) {
+            return;
+        }
+
+        appendLock.lock();
+        try {
+            if (opened) {
+                return;
+            }
+
+            File root = new File(rootPath);
+
+            if (!root.exists() && !root.mkdirs() && !root.exists()) {
+                throw new TransactionIOException("can not create journal directory " + rootPath);
+            }
+
+            File[] files = root.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(SEGMENT_SUFFIX);
+                }
+            });
+
+            long[] ids = new long[files.length];
+
+            for (int i = 0; i < files.length; i++) {
+                String name = files[i].getName();
+                ids[i] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            }
+
+            Arrays.sort(ids);
+
+            for (long id : ids) {
+                Segment segment = openSegment(id);
+                segments.put(id, segment);
+                replay(segment);
+                activeSegment = segment;
+            }
+
+            if (activeSegment == null) {
+                activeSegment = createSegment(1, segmentSize);
+            } else {
+                activeSegment.clearTail();
+            }
+
+            startCompactor();
+
+            opened = true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    //applies the records of a segment to the index in order, stopping at the first incomplete one.
+    private void replay(Segment segment) {
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+
+        while (true) {
+
+            int length = recordLength(buffer, offset);
+
+            if (length < 0) {
+                break;
+            }
+
+            buffer.position(offset + 5);
+
+            byte type = buffer.get(offset + 4);
+            byte[] globalTransactionId = new byte[buffer.getShort()];
+            buffer.get(globalTransactionId);
+            byte[] branchQualifier = new byte[buffer.getShort()];
+            buffer.get(branchQualifier);
+            int bodyLength = buffer.getInt();
+            int bodyOffset = buffer.position() - offset;
+
+            TransactionXid xid = new TransactionXid(globalTransactionId, branchQualifier);
+
+            Location location = new Location(segment, offset, length, bodyOffset, bodyLength, null);
+            segment.liveBytes += length;
+
+            Location previous;
+
+            if (type == PUT) {
+                location.header = headerOf(location.readBody());
+                previous = index.put(xid, location);
+            } else {
+                previous = index.remove(xid);
+                location.release();
+            }
+
+            if (previous != null) {
+                previous.release();
+            }
+
+            offset += length;
+        }
+
+        segment.position = offset;
+    }
+
+    //length of the complete record at offset with a valid checksum, -1 otherwise.
+    private static int recordLength(ByteBuffer buffer, int offset) {
+
+        int limit = buffer.capacity();
+
+        if (limit - offset < RECORD_OVERHEAD || buffer.getInt(offset) != RECORD_MAGIC) {
+            return -1;
+        }
+
+        int position = offset + 5;
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+
+        if (position + 2 > limit) {
+            return -1;
+        }
+
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+
+        if (position + 4 > limit) {
+            return -1;
+        }
+
+        int bodyLength = buffer.getInt(position);
+
+        if (bodyLength < 0 || bodyLength > limit - position - 8) {
+            return -1;
+        }
+
+        int end = position + 4 + bodyLength + 4;
+
+        byte[] bytes = new byte[end - 4 - offset];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        duplicate.get(bytes);
+
+        if (buffer.getInt(end - 4) != checksum(bytes, 0, bytes.length)) {
+            return -1;
+        }
+
+        return end - offset;
+    }
+
+    private Segment createSegment(long id, int size) {
+
+        File file = segmentFile(id);
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(size);
+            Segment segment = new Segment(id, file, raf);
+            segments.put(id, segment);
+
+            //the new file entry itself is made durable once, records are forced through the mapping.
+            raf.getChannel().force(true);
+            return segment;
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    private Segment openSegment(long id) {
+        try {
+            return new Segment(id, segmentFile(id), new RandomAccessFile(segmentFile(id), "rw"));
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(rootPath, String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private void startCompactor() {
+
+        if (compactIntervalSeconds <= 0) {
+            return;
+        }
+
+        compactExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "tcc-journal-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        compactExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Throwable e) {
+                    logger.error("journal compaction failed", e);
+                }
+            }
+        }, compactIntervalSeconds, compactIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private static TransactionHeader headerOf(byte[] body) {
+        return TransactionSerializer.deserializeHeader(body);
+    }
+
+    private static TransactionXid toTransactionXid(Xid xid) {
+        return xid instanceof TransactionXid ? (TransactionXid) xid : new TransactionXid(xid.getGlobalTransactionId(), xid.getBranchQualifier());
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, offset, length);
+        return (int) crc32.getValue();
+    }
+
+    private static class Segment {
+
+        final long id;
+
+        final File file;
+
+        final RandomAccessFile raf;
+
+        final MappedByteBuffer buffer;
+
+        //guarded by appendLock
+        int position;
+
+        //bytes of the records still in the index, guarded by appendLock
+        long liveBytes;
+
+        //set with the write lock of segmentLock once the buffer is unmapped
+        volatile boolean deleted;
+
+        Segment(long id, File file, RandomAccessFile raf) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = raf;
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+
+        int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        //zeroes the bytes after the last complete record, so a cut off record is not read after new ones.
+        void clearTail() {
+
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(position);
+
+            byte[] zeros = new byte[Math.min(8192, duplicate.remaining())];
+
+            while (duplicate.hasRemaining()) {
+                duplicate.put(zeros, 0, Math.min(zeros.length, duplicate.remaining()));
+            }
+
+            buffer.force();
+        }
+
+        void delete() {
+
+            deleted = true;
+
+            try {
+                raf.close();
+            } catch (IOException e) {
+                logger.warn("close journal segment failed, " + file.getName(), e);
+            }
+
+            //a mapped file cannot be deleted on windows and keeps its disk space elsewhere until it is unmapped.
+            unmap(buffer);
+
+            if (!file.delete()) {
+                logger.warn("delete journal segment failed, " + file.getName());
+            }
+        }
+    }
+
+    //releases the mapping now instead of when the buffer is collected, through the cleaner of java 8 or unsafe of java 9+.
+    private static void unmap(MappedByteBuffer buffer) {
+
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+
+            Method invokeCleaner;
+
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                invokeCleaner = null;
+            }
+
+            if (invokeCleaner != null) {
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+                return;
+            }
+
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (Exception e) {
+            logger.warn("unmap journal segment failed, it is released when collected", e);
+        }
+    }
+
+    private static class Location {
+
+        final Segment segment;
+
+        final int offset;
+
+        final int length;
+
+        final int bodyOffset;
+
+        final int bodyLength;
+
+        //null for a delete record
+        TransactionHeader header;
+
+        Location(Segment segment, int offset, int length, int bodyOffset, int bodyLength, TransactionHeader header) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.header = header;
+        }
+
+        byte[] readBody() {
+            byte[] body = new byte[bodyLength];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset + bodyOffset);
+            buffer.get(body);
+            return body;
+        }
+
+        //the record is no longer live.
+        void release() {
+            segment.liveBytes -= length;
+        }
+    }
+}
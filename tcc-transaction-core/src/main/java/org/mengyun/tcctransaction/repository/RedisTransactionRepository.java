@@ -1,17 +1,28 @@
 package org.mengyun.tcctransaction.repository;
 
+import com.alibaba.fastjson.JSON;
 import org.apache.log4j.Logger;
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
+import org.mengyun.tcctransaction.repository.helper.ContentViewPolicy;
 import org.mengyun.tcctransaction.repository.helper.ExpandTransactionSerializer;
+import org.mengyun.tcctransaction.repository.helper.GroupCommitter;
 import org.mengyun.tcctransaction.repository.helper.JedisCallback;
 import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.repository.helper.TransactionHeader;
 import org.mengyun.tcctransaction.serializer.JacksonJsonSerializer;
 import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+import org.mengyun.tcctransaction.utils.ByteUtils;
 import redis.clients.jedis.*;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 import javax.transaction.xa.Xid;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Created by changming.xie on 2/24/16.
@@ -25,6 +36,25 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
 
     private static final Logger logger = Logger.getLogger(RedisTransactionRepository.class.getSimpleName());
 
+    static final byte[] CREATE_SCRIPT = "if redis.call('exists', KEYS[1]) == 0 then redis.call('hmset', KEYS[1], unpack(ARGV)); return 1; end; return 0;".getBytes();
+
+    private static final byte[] CONTENT_VIEW_SCRIPT = "if redis.call('hget', KEYS[1], 'VERSION') == ARGV[1] then redis.call('hset', KEYS[1], 'CONTENT_VIEW', ARGV[2]); return 1; end; return 0;".getBytes();
+
+    //the CONTENT_VIEW of the previous version is removed, the fields set it again when the update carries the view.
+    static final byte[] UPDATE_SCRIPT = "local version = redis.call('hget', KEYS[1], 'VERSION'); if version == ARGV[1] or version == ARGV[2] then redis.call('hdel', KEYS[1], 'CONTENT_VIEW'); redis.call('hmset', KEYS[1], unpack(ARGV, 3)); return 1; end; return 0;".getBytes();
+
+    //CONTENT_VIEW no longer shows all participants after a delta update, it is removed and rendered from the fields when needed.
+    static final byte[] DELTA_UPDATE_SCRIPT = "local version = redis.call('hget', KEYS[1], 'VERSION'); if version == ARGV[1] or version == ARGV[2] then redis.call('hmset', KEYS[1], unpack(ARGV, 3)); redis.call('hdel', KEYS[1], 'CONTENT_VIEW'); return 1; end; return 0;".getBytes();
+
+    //variants of the scripts above also keeping the key in the recovery index, KEYS[2], scored by ARGV[1] or ARGV[3].
+    private static final byte[] CREATE_INDEXED_SCRIPT = "if redis.call('exists', KEYS[1]) == 0 then redis.call('hmset', KEYS[1], unpack(ARGV, 2)); redis.call('zadd', KEYS[2], ARGV[1], KEYS[1]); return 1; end; return 0;".getBytes();
+
+    private static final byte[] UPDATE_INDEXED_SCRIPT = "local version = redis.call('hget', KEYS[1], 'VERSION'); if version == ARGV[1] or version == ARGV[2] then redis.call('hdel', KEYS[1], 'CONTENT_VIEW'); redis.call('hmset', KEYS[1], unpack(ARGV, 4)); redis.call('zadd', KEYS[2], ARGV[3], KEYS[1]); return 1; end; return 0;".getBytes();
+
+    private static final byte[] DELTA_UPDATE_INDEXED_SCRIPT = "local version = redis.call('hget', KEYS[1], 'VERSION'); if version == ARGV[1] or version == ARGV[2] then redis.call('hmset', KEYS[1], unpack(ARGV, 4)); redis.call('hdel', KEYS[1], 'CONTENT_VIEW'); redis.call('zadd', KEYS[2], ARGV[3], KEYS[1]); return 1; end; return 0;".getBytes();
+
+    private static final byte[] DELETE_INDEXED_SCRIPT = "redis.call('zrem', KEYS[2], KEYS[1]); return redis.call('del', KEYS[1]);".getBytes();
+
     private JedisPool jedisPool;
 
     private String keyPrefix = "TCC:";
@@ -35,6 +65,24 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
 
     private boolean isForbiddenKeys = false;
 
+    private boolean groupCommit = false;
+
+    private int groupCommitBatchSize = 100;
+
+    private long groupCommitMaxWaitMillis = 0;
+
+    private volatile GroupCommitter<RedisOperation> groupCommitter;
+
+    private ContentViewPolicy contentViewPolicy = ContentViewPolicy.ALWAYS;
+
+    private volatile ExecutorService contentViewExecutorService;
+
+    private boolean deltaUpdate = false;
+
+    private boolean recoveryIndex = false;
+
+    private String recoveryIndexKey;
+
     public void setKeyPrefix(String keyPrefix) {
         this.keyPrefix = keyPrefix;
     }
@@ -79,32 +127,75 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
         isForbiddenKeys = forbiddenKeys;
     }
 
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    public void setGroupCommitBatchSize(int groupCommitBatchSize) {
+        this.groupCommitBatchSize = groupCommitBatchSize;
+    }
+
+    public void setGroupCommitMaxWaitMillis(long groupCommitMaxWaitMillis) {
+        this.groupCommitMaxWaitMillis = groupCommitMaxWaitMillis;
+    }
+
+    public void setContentViewPolicy(ContentViewPolicy contentViewPolicy) {
+        this.contentViewPolicy = contentViewPolicy;
+    }
+
+    public void setContentViewExecutorService(ExecutorService contentViewExecutorService) {
+        this.contentViewExecutorService = contentViewExecutorService;
+    }
+
+    /**
+     * write only the header fields and the participants enlisted since the last write on update, as PARTICIPANTS_n fields,
+     * instead of rewriting CONTENT. all nodes reading the hashes must be able to merge these fields.
+     */
+    public void setDeltaUpdate(boolean deltaUpdate) {
+        this.deltaUpdate = deltaUpdate;
+    }
+
+    /**
+     * keep the keys in a sorted set scored by the last update time, so recovery reads only the transactions due
+     * instead of all keys. transactions stored before it is enabled are added by {@link #rebuildRecoveryIndex()}.
+     */
+    public void setRecoveryIndex(boolean recoveryIndex) {
+        this.recoveryIndex = recoveryIndex;
+    }
+
+    /**
+     * the key of the recovery index, INDEX: followed by the key prefix by default, outside the keys of the transactions.
+     */
+    public void setRecoveryIndexKey(String recoveryIndexKey) {
+        this.recoveryIndexKey = recoveryIndexKey;
+    }
+
+    public String getRecoveryIndexKey() {
+        return recoveryIndexKey != null ? recoveryIndexKey : "INDEX:" + keyPrefix;
+    }
+
     @Override
     protected int doCreate(final Transaction transaction) {
 
-
         try {
-            Long statusCode = RedisHelper.execute(jedisPool, new JedisCallback<Long>() {
-
-                @Override
-                public Long doInJedis(Jedis jedis) {
+            Map<byte[], byte[]> fields = serializeFields(transaction);
+            byte[] key = RedisHelper.getRedisKey(keyPrefix, transaction.getXid());
 
+            List<byte[]> params = new ArrayList<byte[]>();
 
-                    List<byte[]> params = new ArrayList<byte[]>();
+            if (recoveryIndex) {
+                params.add(getIndexScore(transaction));
+            }
 
-                    for (Map.Entry<byte[], byte[]> entry : ExpandTransactionSerializer.serialize(serializer, transaction).entrySet()) {
-                        params.add(entry.getKey());
-                        params.add(entry.getValue());
-                    }
+            params.addAll(buildParams(fields));
 
-                    Object result = jedis.eval("if redis.call('exists', KEYS[1]) == 0 then redis.call('hmset', KEYS[1], unpack(ARGV)); return 1; end; return 0;".getBytes(),
-                            Arrays.asList(RedisHelper.getRedisKey(keyPrefix, transaction.getXid())), params);
+            int result = execute(recoveryIndex ? CREATE_INDEXED_SCRIPT : CREATE_SCRIPT, key, params);
 
-                    return (Long) result;
-                }
-            });
-            return statusCode.intValue();
+            if (result > 0) {
+                writeContentViewAsync(key, fields);
+            }
 
+            return result;
         } catch (Exception e) {
             throw new TransactionIOException(e);
         }
@@ -115,29 +206,37 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
 
         try {
 
-            Long statusCode = RedisHelper.execute(jedisPool, new JedisCallback<Long>() {
-                @Override
-                public Long doInJedis(Jedis jedis) {
+            transaction.updateTime();
+            transaction.updateVersion();
 
-                    transaction.updateTime();
-                    transaction.updateVersion();
+            //the expected version is passed in both layouts, a hash still in the string layout is rewritten in the binary one.
+            Map<byte[], byte[]> fields = deltaUpdate ? ExpandTransactionSerializer.serializeDelta(serializer, transaction) : serializeFields(transaction);
+            byte[] script = recoveryIndex ? (deltaUpdate ? DELTA_UPDATE_INDEXED_SCRIPT : UPDATE_INDEXED_SCRIPT) : (deltaUpdate ? DELTA_UPDATE_SCRIPT : UPDATE_SCRIPT);
 
-                    List<byte[]> params = new ArrayList<byte[]>();
+            List<byte[]> params = new ArrayList<byte[]>();
+            params.add(ByteUtils.longToFixedBytes(transaction.getVersion() - 1));
+            params.add(ByteUtils.longToBytes(transaction.getVersion() - 1));
 
-                    for (Map.Entry<byte[], byte[]> entry : ExpandTransactionSerializer.serialize(serializer, transaction).entrySet()) {
-                        params.add(entry.getKey());
-                        params.add(entry.getValue());
-                    }
+            if (recoveryIndex) {
+                params.add(getIndexScore(transaction));
+            }
 
-                    Object result = jedis.eval(String.format("if redis.call('hget',KEYS[1],'VERSION') == '%s' then redis.call('hmset', KEYS[1], unpack(ARGV)); return 1; end; return 0;",
-                                    transaction.getVersion() - 1).getBytes(),
-                            Arrays.asList(RedisHelper.getRedisKey(keyPrefix, transaction.getXid())), params);
+            params.addAll(buildParams(fields));
 
-                    return (Long) result;
-                }
-            });
+            byte[] key = RedisHelper.getRedisKey(keyPrefix, transaction.getXid());
+            int result = execute(script, key, params);
+
+            if (result == 0) {
+                //the transaction may still be stored under the key form used before XidKeyCodec.
+                key = RedisHelper.getLegacyRedisKey(keyPrefix, transaction.getXid());
+                result = execute(script, key, params);
+            }
+
+            if (result > 0) {
+                writeContentViewAsync(key, fields);
+            }
 
-            return statusCode.intValue();
+            return result;
         } catch (Exception e) {
             throw new TransactionIOException(e);
         }
@@ -147,20 +246,204 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
     protected int doDelete(final Transaction transaction) {
         try {
 
-            Long result = RedisHelper.execute(jedisPool, new JedisCallback<Long>() {
-                @Override
-                public Long doInJedis(Jedis jedis) {
+            byte[] script = recoveryIndex ? DELETE_INDEXED_SCRIPT : null;
+            List<byte[]> params = Collections.emptyList();
 
-                    return jedis.del(RedisHelper.getRedisKey(keyPrefix, transaction.getXid()));
-                }
-            });
+            int result = execute(script, RedisHelper.getRedisKey(keyPrefix, transaction.getXid()), params);
+
+            if (result == 0) {
+                result = execute(script, RedisHelper.getLegacyRedisKey(keyPrefix, transaction.getXid()), params);
+            }
 
-            return result.intValue();
+            return result;
         } catch (Exception e) {
             throw new TransactionIOException(e);
         }
     }
 
+    //runs a write script on the key, or deletes the key when script is null.
+    private int execute(final byte[] script, final byte[] key, final List<byte[]> params) {
+
+        if (groupCommit) {
+            return getGroupCommitter().submit(new RedisOperation(script, key, params));
+        }
+
+        Long result = RedisHelper.execute(jedisPool, new JedisCallback<Long>() {
+            @Override
+            public Long doInJedis(Jedis jedis) {
+
+                if (script == null) {
+                    return jedis.del(key);
+                }
+
+                return (Long) jedis.eval(script, getScriptKeys(key), params);
+            }
+        });
+
+        return result.intValue();
+    }
+
+    private List<byte[]> getScriptKeys(byte[] key) {
+        return recoveryIndex ? Arrays.asList(key, getRecoveryIndexKey().getBytes()) : Arrays.asList(key);
+    }
+
+    private static byte[] getIndexScore(Transaction transaction) {
+        return String.valueOf(transaction.getLastUpdateTime().getTime()).getBytes();
+    }
+
+    private Map<byte[], byte[]> serializeFields(Transaction transaction) {
+
+        boolean withContentView;
+
+        switch (contentViewPolicy) {
+            case NEVER:
+            case ASYNC:
+                withContentView = false;
+                break;
+            case ON_FAILURE:
+                withContentView = transaction.getRetriedCount() > 0 || transaction.getStatus() == TransactionStatus.CANCELLING;
+                break;
+            default:
+                withContentView = true;
+        }
+
+        return ExpandTransactionSerializer.serialize(serializer, transaction, withContentView);
+    }
+
+    private void writeContentViewAsync(final byte[] key, Map<byte[], byte[]> fields) {
+
+        //the view is rendered from the serialized content, the transaction itself keeps changing in the request thread.
+        final byte[] content = fields.get(ExpandTransactionSerializer.CONTENT);
+
+        if (contentViewPolicy != ContentViewPolicy.ASYNC || content == null) {
+            return;
+        }
+
+        final byte[] version = fields.get(ExpandTransactionSerializer.VERSION);
+
+        getContentViewExecutorService().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final byte[] contentView = JSON.toJSONString(serializer.deserialize(content)).getBytes();
+
+                    RedisHelper.execute(jedisPool, new JedisCallback<Object>() {
+                        @Override
+                        public Object doInJedis(Jedis jedis) {
+                            return jedis.eval(CONTENT_VIEW_SCRIPT, Arrays.asList(key), Arrays.asList(version, contentView));
+                        }
+                    });
+                } catch (Throwable e) {
+                    logger.warn("write content view failed, key:" + new String(key), e);
+                }
+            }
+        });
+    }
+
+    private ExecutorService getContentViewExecutorService() {
+
+        if (contentViewExecutorService == null) {
+            synchronized (this) {
+                if (contentViewExecutorService == null) {
+                    //the view is best effort, views that do not fit in the queue are dropped.
+                    contentViewExecutorService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                            new LinkedBlockingQueue<Runnable>(1024),
+                            new ThreadFactory() {
+                                @Override
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, "tcc-content-view");
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            },
+                            new ThreadPoolExecutor.DiscardPolicy());
+                }
+            }
+        }
+
+        return contentViewExecutorService;
+    }
+
+    private List<byte[]> buildParams(Map<byte[], byte[]> fields) {
+
+        List<byte[]> params = new ArrayList<byte[]>();
+
+        for (Map.Entry<byte[], byte[]> entry : fields.entrySet()) {
+            params.add(entry.getKey());
+            params.add(entry.getValue());
+        }
+
+        return params;
+    }
+
+    /**
+     * stops the group commit thread once the writes queued are flushed. set it as the destroy method of the bean.
+     */
+    public void close() {
+
+        GroupCommitter<RedisOperation> committer = groupCommitter;
+
+        if (committer != null) {
+            committer.shutdown();
+        }
+    }
+
+    private GroupCommitter<RedisOperation> getGroupCommitter() {
+
+        if (groupCommitter == null) {
+            synchronized (this) {
+                if (groupCommitter == null) {
+                    GroupCommitter<RedisOperation> committer = new GroupCommitter<RedisOperation>("tcc-redis-group-commit", new GroupCommitter.BatchExecutor<RedisOperation>() {
+                        @Override
+                        public void execute(List<GroupCommitter.Request<RedisOperation>> requests) {
+                            executeBatch(requests);
+                        }
+                    });
+                    committer.setBatchSize(groupCommitBatchSize);
+                    committer.setMaxWaitMillis(groupCommitMaxWaitMillis);
+                    groupCommitter = committer;
+                }
+            }
+        }
+
+        return groupCommitter;
+    }
+
+    private void executeBatch(final List<GroupCommitter.Request<RedisOperation>> requests) {
+
+        RedisHelper.execute(jedisPool, new JedisCallback<Void>() {
+            @Override
+            public Void doInJedis(Jedis jedis) {
+
+                Pipeline pipeline = jedis.pipelined();
+
+                List<Response<?>> responses = new ArrayList<Response<?>>(requests.size());
+
+                for (GroupCommitter.Request<RedisOperation> request : requests) {
+                    RedisOperation operation = request.getOperation();
+
+                    if (operation.script == null) {
+                        responses.add(pipeline.del(operation.key));
+                    } else {
+                        responses.add(pipeline.eval(operation.script, getScriptKeys(operation.key), operation.params));
+                    }
+                }
+
+                pipeline.sync();
+
+                for (int i = 0; i < requests.size(); i++) {
+                    try {
+                        requests.get(i).complete(((Long) responses.get(i).get()).intValue());
+                    } catch (JedisDataException e) {
+                        requests.get(i).fail(new TransactionIOException(e));
+                    }
+                }
+
+                return null;
+            }
+        });
+    }
+
     @Override
     protected Transaction doFindOne(final Xid xid) {
 
@@ -169,7 +452,13 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
             Map<byte[], byte[]> content = RedisHelper.execute(jedisPool, new JedisCallback<Map<byte[], byte[]>>() {
                 @Override
                 public Map<byte[], byte[]> doInJedis(Jedis jedis) {
-                    return jedis.hgetAll(RedisHelper.getRedisKey(keyPrefix, xid));
+                    Map<byte[], byte[]> content = jedis.hgetAll(RedisHelper.getRedisKey(keyPrefix, xid));
+
+                    if (content == null || content.isEmpty()) {
+                        content = jedis.hgetAll(RedisHelper.getLegacyRedisKey(keyPrefix, xid));
+                    }
+
+                    return content;
                 }
             });
             logger.info("redis find cost time :" + (System.currentTimeMillis() - startTime));
@@ -183,6 +472,52 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
         }
     }
 
+    /**
+     * reads the hashes of fetchKeySize xids a pipeline, the xids not found under their key are looked up again under
+     * the legacy key.
+     */
+    @Override
+    protected List<Transaction> doFind(List<Xid> xids) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>(xids.size());
+
+        for (int from = 0; from < xids.size(); from += fetchKeySize) {
+
+            List<Xid> chunk = xids.subList(from, Math.min(from + fetchKeySize, xids.size()));
+
+            List<byte[]> keys = new ArrayList<byte[]>(chunk.size());
+
+            for (Xid xid : chunk) {
+                keys.add(RedisHelper.getRedisKey(keyPrefix, xid));
+            }
+
+            List<Map<byte[], byte[]>> hashes = fetchHashes(keys);
+
+            List<byte[]> legacyKeys = new ArrayList<byte[]>();
+
+            for (int i = 0; i < chunk.size(); i++) {
+
+                Map<byte[], byte[]> hash = hashes.get(i);
+
+                if (hash != null && hash.size() > 0) {
+                    transactions.add(ExpandTransactionSerializer.deserialize(serializer, hash));
+                } else {
+                    legacyKeys.add(RedisHelper.getLegacyRedisKey(keyPrefix, chunk.get(i)));
+                }
+            }
+
+            if (!legacyKeys.isEmpty()) {
+                for (Map<byte[], byte[]> hash : fetchHashes(legacyKeys)) {
+                    if (hash != null && hash.size() > 0) {
+                        transactions.add(ExpandTransactionSerializer.deserialize(serializer, hash));
+                    }
+                }
+            }
+        }
+
+        return transactions;
+    }
+
     @Override
     protected List<Transaction> doFindAllUnmodifiedSince(Date date) {
 
@@ -199,12 +534,220 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
         return allUnmodifiedSince;
     }
 
+    @Override
+    protected List<RecoverableTransaction> doFindRecoverableUnmodifiedSince(Date date) {
+
+        List<RecoverableTransaction> recoverableTransactions = new ArrayList<RecoverableTransaction>();
+
+        for (Map<byte[], byte[]> hash : doFindAllHashes()) {
+
+            RecoverableTransaction recoverableTransaction = toRecoverable(hash, date);
+
+            if (recoverableTransaction != null) {
+                recoverableTransactions.add(recoverableTransaction);
+            }
+        }
+
+        return recoverableTransactions;
+    }
+
+    /**
+     * with the recovery index, reads the keys scored before the date a batch at a time with ZRANGEBYSCORE, each
+     * batch starting at the score of the last key of the previous one. keys recovered meanwhile leave the range,
+     * the keys of the previous batch with that score are skipped.
+     */
+    @Override
+    protected void doScanRecoverableUnmodifiedSince(Date date, int batchSize, RecoverableTransaction.BatchHandler handler) {
+
+        if (!recoveryIndex) {
+            super.doScanRecoverableUnmodifiedSince(date, batchSize, handler);
+            return;
+        }
+
+        final byte[] indexKey = getRecoveryIndexKey().getBytes();
+        final byte[] max = ("(" + date.getTime()).getBytes();
+
+        byte[] min = "-inf".getBytes();
+        Set<ByteBuffer> seenAtMin = new HashSet<ByteBuffer>();
+
+        while (true) {
+
+            final byte[] from = min;
+            final int count = batchSize + seenAtMin.size();
+
+            Set<Tuple> tuples = RedisHelper.execute(jedisPool, new JedisCallback<Set<Tuple>>() {
+                @Override
+                public Set<Tuple> doInJedis(Jedis jedis) {
+                    return jedis.zrangeByScoreWithScores(indexKey, from, max, 0, count);
+                }
+            });
+
+            List<byte[]> keys = new ArrayList<byte[]>();
+            Set<ByteBuffer> seenAtLast = new HashSet<ByteBuffer>();
+            double lastScore = Double.NaN;
+
+            for (Tuple tuple : tuples) {
+
+                ByteBuffer member = ByteBuffer.wrap(tuple.getBinaryElement());
+
+                if (tuple.getScore() != lastScore) {
+                    lastScore = tuple.getScore();
+                    seenAtLast.clear();
+                }
+
+                seenAtLast.add(member);
+
+                if (!seenAtMin.contains(member)) {
+                    keys.add(tuple.getBinaryElement());
+                }
+            }
+
+            if (keys.isEmpty()) {
+                break;
+            }
+
+            List<RecoverableTransaction> batch = new ArrayList<RecoverableTransaction>(keys.size());
+            List<byte[]> staleKeys = new ArrayList<byte[]>();
+
+            List<Map<byte[], byte[]>> hashes = fetchHashes(keys);
+
+            for (int i = 0; i < keys.size(); i++) {
+
+                Map<byte[], byte[]> hash = hashes.get(i);
+
+                if (hash == null || hash.isEmpty()) {
+                    staleKeys.add(keys.get(i));
+                    continue;
+                }
+
+                RecoverableTransaction recoverableTransaction = toRecoverable(hash, date);
+
+                if (recoverableTransaction != null) {
+                    batch.add(recoverableTransaction);
+                }
+            }
+
+            removeFromRecoveryIndex(staleKeys);
+
+            byte[] next = String.valueOf((long) lastScore).getBytes();
+
+            if (!Arrays.equals(next, min)) {
+                seenAtMin = seenAtLast;
+            } else {
+                seenAtMin.addAll(seenAtLast);
+            }
+
+            min = next;
+
+            if (!batch.isEmpty()) {
+                handler.handle(batch);
+            }
+
+            if (tuples.size() < count) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * adds the keys of all stored transactions to the recovery index, scored by their last update time. run it once
+     * after enabling the index on a repository holding transactions.
+     */
+    public void rebuildRecoveryIndex() {
+
+        final byte[] indexKey = getRecoveryIndexKey().getBytes();
+
+        for (final byte[] key : findAllKeys()) {
+
+            Map<byte[], byte[]> hash = fetchHashes(Arrays.asList(key)).get(0);
+
+            if (hash == null || hash.isEmpty()) {
+                continue;
+            }
+
+            final TransactionHeader header = ExpandTransactionSerializer.deserializeHeader(hash);
+            final long lastUpdateTime = header != null ? header.getLastUpdateTime().getTime()
+                    : ExpandTransactionSerializer.deserialize(serializer, hash).getLastUpdateTime().getTime();
+
+            RedisHelper.execute(jedisPool, new JedisCallback<Long>() {
+                @Override
+                public Long doInJedis(Jedis jedis) {
+                    return jedis.zadd(indexKey, lastUpdateTime, key);
+                }
+            });
+        }
+    }
+
+    private void removeFromRecoveryIndex(final List<byte[]> keys) {
+
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        RedisHelper.execute(jedisPool, new JedisCallback<Long>() {
+            @Override
+            public Long doInJedis(Jedis jedis) {
+                return jedis.zrem(getRecoveryIndexKey().getBytes(), keys.toArray(new byte[keys.size()][]));
+            }
+        });
+    }
+
+    //null if the transaction was modified since the date.
+    private RecoverableTransaction toRecoverable(final Map<byte[], byte[]> hash, Date date) {
+
+        TransactionXid xid = ExpandTransactionSerializer.deserializeXid(hash);
+        TransactionHeader header = ExpandTransactionSerializer.deserializeHeader(hash);
+
+        //a hash missing a header field is deserialized entirely, CONTENT of the others only when recovered.
+        if (xid == null || header == null) {
+            Transaction transaction = ExpandTransactionSerializer.deserialize(serializer, hash);
+            return transaction.getLastUpdateTime().compareTo(date) < 0 ? new RecoverableTransaction(transaction) : null;
+        }
+
+        if (header.getLastUpdateTime().compareTo(date) >= 0) {
+            return null;
+        }
+
+        return recoverable(xid, header.getStatus(), header.getTransactionType(),
+                header.getRetriedCount(), header.getCreateTime(), header.getLastUpdateTime(),
+                new RecoverableTransaction.ContentLoader() {
+                    @Override
+                    public Transaction load() {
+                        return ExpandTransactionSerializer.deserialize(serializer, hash);
+                    }
+                });
+    }
+
     //    @Override
     protected List<Transaction> doFindAll() {
 
+        List<Transaction> list = new ArrayList<Transaction>();
+
+        for (Map<byte[], byte[]> hash : doFindAllHashes()) {
+            list.add(ExpandTransactionSerializer.deserialize(serializer, hash));
+        }
+
+        return list;
+    }
+
+    private List<Map<byte[], byte[]>> doFindAllHashes() {
+
+        List<Map<byte[], byte[]>> list = new ArrayList<Map<byte[], byte[]>>();
+
+        for (Map<byte[], byte[]> hash : fetchHashes(new ArrayList<byte[]>(findAllKeys()))) {
+            if (hash != null && hash.size() > 0) {
+                list.add(hash);
+            }
+        }
+
+        return list;
+    }
+
+    private Set<byte[]> findAllKeys() {
+
         try {
 
-            final Set<byte[]> keys = RedisHelper.execute(jedisPool, new JedisCallback<Set<byte[]>>() {
+            return RedisHelper.execute(jedisPool, new JedisCallback<Set<byte[]>>() {
                 @Override
                 public Set<byte[]> doInJedis(Jedis jedis) {
 
@@ -232,10 +775,19 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
                 }
             });
 
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    //the hashes of the keys in the same order, empty or null for a missing key.
+    private List<Map<byte[], byte[]>> fetchHashes(final List<byte[]> keys) {
 
-            return RedisHelper.execute(jedisPool, new JedisCallback<List<Transaction>>() {
+        try {
+
+            return RedisHelper.execute(jedisPool, new JedisCallback<List<Map<byte[], byte[]>>>() {
                 @Override
-                public List<Transaction> doInJedis(Jedis jedis) {
+                public List<Map<byte[], byte[]>> doInJedis(Jedis jedis) {
 
                     Pipeline pipeline = jedis.pipelined();
 
@@ -244,14 +796,9 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
                     }
                     List<Object> result = pipeline.syncAndReturnAll();
 
-                    List<Transaction> list = new ArrayList<Transaction>();
+                    List<Map<byte[], byte[]>> list = new ArrayList<Map<byte[], byte[]>>(result.size());
                     for (Object data : result) {
-
-                        if (data != null && ((Map<byte[], byte[]>) data).size() > 0) {
-
-                            list.add(ExpandTransactionSerializer.deserialize(serializer, (Map<byte[], byte[]>) data));
-                        }
-
+                        list.add((Map<byte[], byte[]>) data);
                     }
 
                     return list;
@@ -262,4 +809,20 @@ public class RedisTransactionRepository extends CachableTransactionRepository {
             throw new TransactionIOException(e);
         }
     }
+
+    private static class RedisOperation {
+
+        //null for a delete
+        final byte[] script;
+
+        final byte[] key;
+
+        final List<byte[]> params;
+
+        RedisOperation(byte[] script, byte[] key, List<byte[]> params) {
+            this.script = script;
+            this.key = key;
+            this.params = params;
+        }
+    }
 }
@@ -0,0 +1,359 @@
+package org.mengyun.tcctransaction.repository;
+
+import com.google.common.hash.Hashing;
+import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
+
+import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Spreads the transactions over several JdbcTransactionRepository shards, each with its own DataSource or table.
+ * <p/>
+ * The global transaction id is hashed to one of bucketCount virtual buckets, so a root transaction and its branches
+ * are in the same shard. A bucket belongs to the shard given by the jump consistent hash of the bucket over the
+ * number of shards, unless bucketMapping assigns it to another shard. Appending a shard moves about 1/n of the
+ * buckets to it, bucketMapping can pin buckets to their old shard until their rows are moved. bucketCount must not
+ * change once transactions are stored.
+ * <p/>
+ * To reshard, stop writing transactions, change the shards or bucketMapping and call {@link #rebalance()}, which moves
+ * the rows stored in a shard their bucket no longer belongs to.
+ * <p/>
+ * Recovery scans all shards in parallel, the batches of different shards are handled at the same time.
+ */
+public class ShardedJdbcTransactionRepository extends CachableTransactionRepository {
+
+    static final Logger logger = Logger.getLogger(ShardedJdbcTransactionRepository.class.getSimpleName());
+
+    private static final int REBALANCE_BATCH_SIZE = 1000;
+
+    private List<JdbcTransactionRepository> shards = new ArrayList<JdbcTransactionRepository>();
+
+    private int bucketCount = 1024;
+
+    private Map<Integer, Integer> bucketMapping = new HashMap<Integer, Integer>();
+
+    private int threads = 0;
+
+    private volatile ExecutorService executorService;
+
+    public void setShards(List<JdbcTransactionRepository> shards) {
+        this.shards = shards;
+    }
+
+    public List<JdbcTransactionRepository> getShards() {
+        return shards;
+    }
+
+    public void setBucketCount(int bucketCount) {
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * buckets assigned to a shard other than the one of the consistent hash, bucket to shard index.
+     */
+    public void setBucketMapping(Map<Integer, Integer> bucketMapping) {
+        this.bucketMapping = bucketMapping;
+    }
+
+    /**
+     * the threads reading the shards in parallel, the number of shards by default.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public void setExecutorService(ExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    public int getBucket(Xid xid) {
+        return (Hashing.murmur3_32().hashBytes(xid.getGlobalTransactionId()).asInt() & Integer.MAX_VALUE) % bucketCount;
+    }
+
+    public int getShardIndex(Xid xid) {
+
+        if (shards.isEmpty()) {
+            throw new SystemException("no shard configured for the sharded jdbc transaction repository");
+        }
+
+        int bucket = getBucket(xid);
+
+        Integer shardIndex = bucketMapping.get(bucket);
+
+        if (shardIndex != null) {
+
+            if (shardIndex < 0 || shardIndex >= shards.size()) {
+                throw new SystemException("bucket " + bucket + " is mapped to shard " + shardIndex + " of " + shards.size() + " shards");
+            }
+
+            return shardIndex;
+        }
+
+        return Hashing.consistentHash(bucket, shards.size());
+    }
+
+    private JdbcTransactionRepository getShard(Xid xid) {
+        return shards.get(getShardIndex(xid));
+    }
+
+    @Override
+    protected int doCreate(Transaction transaction) {
+        return getShard(transaction.getXid()).doCreate(transaction);
+    }
+
+    @Override
+    protected int doUpdate(Transaction transaction) {
+        return getShard(transaction.getXid()).doUpdate(transaction);
+    }
+
+    @Override
+    protected int doDelete(Transaction transaction) {
+        return getShard(transaction.getXid()).doDelete(transaction);
+    }
+
+    @Override
+    protected Transaction doFindOne(Xid xid) {
+        return getShard(xid).doFindOne(xid);
+    }
+
+    /**
+     * the xids are grouped by shard and the shards are read in parallel.
+     */
+    @Override
+    protected List<Transaction> doFind(List<Xid> xids) {
+
+        final Map<Integer, List<Xid>> xidsOfShards = new HashMap<Integer, List<Xid>>();
+
+        for (Xid xid : xids) {
+
+            int shardIndex = getShardIndex(xid);
+
+            List<Xid> xidsOfShard = xidsOfShards.get(shardIndex);
+
+            if (xidsOfShard == null) {
+                xidsOfShard = new ArrayList<Xid>();
+                xidsOfShards.put(shardIndex, xidsOfShard);
+            }
+
+            xidsOfShard.add(xid);
+        }
+
+        if (xidsOfShards.size() == 1) {
+            Map.Entry<Integer, List<Xid>> entry = xidsOfShards.entrySet().iterator().next();
+            return shards.get(entry.getKey()).doFind(entry.getValue());
+        }
+
+        List<Callable<List<Transaction>>> tasks = new ArrayList<Callable<List<Transaction>>>();
+
+        for (final Map.Entry<Integer, List<Xid>> entry : xidsOfShards.entrySet()) {
+            tasks.add(new Callable<List<Transaction>>() {
+                @Override
+                public List<Transaction> call() {
+                    return shards.get(entry.getKey()).doFind(entry.getValue());
+                }
+            });
+        }
+
+        return invokeAll(tasks);
+    }
+
+    @Override
+    protected List<Transaction> doFindAllUnmodifiedSince(final Date date) {
+
+        List<Callable<List<Transaction>>> tasks = new ArrayList<Callable<List<Transaction>>>();
+
+        for (final JdbcTransactionRepository shard : shards) {
+            tasks.add(new Callable<List<Transaction>>() {
+                @Override
+                public List<Transaction> call() {
+                    return shard.doFindAllUnmodifiedSince(date);
+                }
+            });
+        }
+
+        return invokeAll(tasks);
+    }
+
+    /**
+     * every shard is scanned by its own task, the handler is called from these tasks at the same time.
+     */
+    @Override
+    protected void doScanRecoverableUnmodifiedSince(final Date date, final int batchSize, final RecoverableTransaction.BatchHandler handler) {
+
+        List<Callable<List<Object>>> tasks = new ArrayList<Callable<List<Object>>>();
+
+        for (final JdbcTransactionRepository shard : shards) {
+            tasks.add(new Callable<List<Object>>() {
+                @Override
+                public List<Object> call() {
+                    shard.doScanRecoverableUnmodifiedSince(date, batchSize, new RecoverableTransaction.BatchHandler() {
+                        @Override
+                        public void handle(List<RecoverableTransaction> batch) {
+                            handler.handle(rewrap(batch));
+                        }
+                    });
+                    return Collections.emptyList();
+                }
+            });
+        }
+
+        invokeAll(tasks);
+    }
+
+    /**
+     * moves the rows stored in a shard other than the one of their bucket to that shard, returns the number of rows
+     * moved. the transactions must not be written while this runs.
+     */
+    public int rebalance() {
+
+        List<Callable<List<Integer>>> tasks = new ArrayList<Callable<List<Integer>>>();
+
+        for (int i = 0; i < shards.size(); i++) {
+
+            final int shardIndex = i;
+
+            tasks.add(new Callable<List<Integer>>() {
+                @Override
+                public List<Integer> call() {
+                    return Collections.singletonList(rebalance(shardIndex));
+                }
+            });
+        }
+
+        int moved = 0;
+
+        for (Integer count : invokeAll(tasks)) {
+            moved += count;
+        }
+
+        return moved;
+    }
+
+    private int rebalance(final int shardIndex) {
+
+        final JdbcTransactionRepository source = shards.get(shardIndex);
+
+        final int[] moved = new int[1];
+
+        //rows are read by the keyset scan of recovery, which is not shifted by the rows deleted here. only the rows
+        //to move are deserialized. the day ahead covers the clock differences of the nodes that wrote them.
+        source.doScanRecoverableUnmodifiedSince(new Date(System.currentTimeMillis() + 24 * 3600 * 1000L), REBALANCE_BATCH_SIZE, new RecoverableTransaction.BatchHandler() {
+            @Override
+            public void handle(List<RecoverableTransaction> batch) {
+
+                for (RecoverableTransaction recoverableTransaction : batch) {
+
+                    int targetIndex = getShardIndex(recoverableTransaction.getXid());
+
+                    if (targetIndex == shardIndex) {
+                        continue;
+                    }
+
+                    Transaction transaction = recoverableTransaction.getTransaction();
+
+                    //a row found in the target already was copied by an earlier run that failed before deleting it here.
+                    if (shards.get(targetIndex).doCreate(transaction) <= 0) {
+                        logger.warn(String.format("transaction %s is stored in shard %d and %d, the copy in shard %d is kept", transaction.getXid(), shardIndex, targetIndex, targetIndex));
+                    }
+
+                    source.doDelete(transaction);
+                    moved[0]++;
+                }
+            }
+        });
+
+        if (moved[0] > 0) {
+            logger.info(String.format("moved %d transactions out of shard %d", moved[0], shardIndex));
+        }
+
+        return moved[0];
+    }
+
+    //the transactions loaded by recovery are cached here like those of the other repositories.
+    private List<RecoverableTransaction> rewrap(List<RecoverableTransaction> batch) {
+
+        List<RecoverableTransaction> recoverableTransactions = new ArrayList<RecoverableTransaction>(batch.size());
+
+        for (final RecoverableTransaction recoverableTransaction : batch) {
+            recoverableTransactions.add(recoverable(recoverableTransaction.getXid(),
+                    recoverableTransaction.getStatus(),
+                    recoverableTransaction.getTransactionType(),
+                    recoverableTransaction.getRetriedCount(),
+                    recoverableTransaction.getCreateTime(),
+                    recoverableTransaction.getLastUpdateTime(),
+                    new RecoverableTransaction.ContentLoader() {
+                        @Override
+                        public Transaction load() {
+                            return recoverableTransaction.getTransaction();
+                        }
+                    }));
+        }
+
+        return recoverableTransactions;
+    }
+
+    //runs the tasks on the pool, every task runs to its end before the failure of one is thrown.
+    private <T> List<T> invokeAll(List<Callable<List<T>>> tasks) {
+
+        List<T> results = new ArrayList<T>();
+
+        Throwable failure = null;
+
+        try {
+            for (Future<List<T>> future : getExecutorService().invokeAll(tasks)) {
+                try {
+                    results.addAll(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    } else {
+                        logger.error("shard task failed", e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionIOException(e);
+        }
+
+        if (failure != null) {
+            throw failure instanceof RuntimeException ? (RuntimeException) failure : new TransactionIOException(failure);
+        }
+
+        return results;
+    }
+
+    private ExecutorService getExecutorService() {
+
+        if (executorService == null) {
+            synchronized (this) {
+                if (executorService == null) {
+                    executorService = Executors.newFixedThreadPool(threads > 0 ? threads : Math.max(1, shards.size()), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "tcc-jdbc-shard");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+
+        return executorService;
+    }
+}
@@ -0,0 +1,19 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+/**
+ * When the json copy of a transaction (CONTENT_VIEW) is written next to its binary CONTENT.
+ */
+public enum ContentViewPolicy {
+
+    //on every create and update, in the request thread.
+    ALWAYS,
+
+    //never, the admin server renders a view from CONTENT instead.
+    NEVER,
+
+    //only once the transaction is cancelling or retried by recovery.
+    ON_FAILURE,
+
+    //after every create and update, from a background thread.
+    ASYNC
+}
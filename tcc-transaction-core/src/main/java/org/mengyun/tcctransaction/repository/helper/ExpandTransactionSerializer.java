@@ -1,60 +1,270 @@
 package org.mengyun.tcctransaction.repository.helper;
 
 import com.alibaba.fastjson.JSON;
-import org.apache.commons.lang3.time.DateFormatUtils;
 import org.apache.commons.lang3.time.DateUtils;
 import org.mengyun.tcctransaction.SystemException;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
 import org.mengyun.tcctransaction.utils.ByteUtils;
 
 import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Created by changming.xie on 9/15/16.
+ * <p/>
+ * Hash fields are written in layout 1: STATUS, TRANSACTION_TYPE and RETRIED_COUNT as 4 bytes big endian ints,
+ * VERSION, CREATE_TIME and LAST_UPDATE_TIME as 8 bytes big endian longs (times in epoch millis), marked by the
+ * LAYOUT field. A hash without LAYOUT is in the original layout of decimal strings and yyyy-MM-dd HH:mm:ss dates,
+ * which is still read.
  */
 public class ExpandTransactionSerializer {
 
+    public static final byte LAYOUT_VERSION = 1;
+
+    public static final byte[] LAYOUT = "LAYOUT".getBytes();
+
+    public static final byte[] GLOBAL_TX_ID = "GLOBAL_TX_ID".getBytes();
+
+    public static final byte[] BRANCH_QUALIFIER = "BRANCH_QUALIFIER".getBytes();
+
+    public static final byte[] STATUS = "STATUS".getBytes();
+
+    public static final byte[] TRANSACTION_TYPE = "TRANSACTION_TYPE".getBytes();
+
+    public static final byte[] RETRIED_COUNT = "RETRIED_COUNT".getBytes();
+
+    public static final byte[] CREATE_TIME = "CREATE_TIME".getBytes();
+
+    public static final byte[] LAST_UPDATE_TIME = "LAST_UPDATE_TIME".getBytes();
+
+    public static final byte[] VERSION = "VERSION".getBytes();
+
+    public static final byte[] CONTENT = "CONTENT".getBytes();
+
+    public static final byte[] CONTENT_VIEW = "CONTENT_VIEW".getBytes();
+
+    //prefix of the fields written by delta updates, followed by the index of the first participant in decimal.
+    public static final byte[] PARTICIPANTS = "PARTICIPANTS_".getBytes();
+
+    private static final String LEGACY_DATE_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
     public static Map<byte[], byte[]> serialize(ObjectSerializer serializer, Transaction transaction) {
+        return serialize(serializer, transaction, true);
+    }
+
+    public static Map<byte[], byte[]> serialize(ObjectSerializer serializer, Transaction transaction, boolean withContentView) {
+
+        Map<byte[], byte[]> map = serializeHeader(transaction);
+
+        map.put(CONTENT, serializer.serialize(transaction));
+
+        if (withContentView) {
+            map.put(CONTENT_VIEW, JSON.toJSONString(transaction).getBytes());
+        }
+        return map;
+    }
+
+    /**
+     * the fields of a delta update: the header, in full so a hash in the string layout is converted, and the
+     * participants enlisted since the transaction was stored, if any.
+     */
+    public static Map<byte[], byte[]> serializeDelta(ObjectSerializer serializer, Transaction transaction) {
+
+        Map<byte[], byte[]> map = serializeHeader(transaction);
+
+        if (TransactionDelta.hasNewParticipants(transaction)) {
+            map.put(getParticipantsField(transaction.getPersistedParticipantCount()), serializer.serialize(TransactionDelta.newParticipants(transaction)));
+        }
+
+        return map;
+    }
+
+    private static Map<byte[], byte[]> serializeHeader(Transaction transaction) {
 
         Map<byte[], byte[]> map = new HashMap<byte[], byte[]>();
 
-        map.put("GLOBAL_TX_ID".getBytes(), transaction.getXid().getGlobalTransactionId());
-        map.put("BRANCH_QUALIFIER".getBytes(), transaction.getXid().getBranchQualifier());
-        map.put("STATUS".getBytes(), ByteUtils.intToBytes(transaction.getStatus().getId()));
-        map.put("TRANSACTION_TYPE".getBytes(), ByteUtils.intToBytes(transaction.getTransactionType().getId()));
-        map.put("RETRIED_COUNT".getBytes(), ByteUtils.intToBytes(transaction.getRetriedCount()));
-        map.put("CREATE_TIME".getBytes(), DateFormatUtils.format(transaction.getCreateTime(), "yyyy-MM-dd HH:mm:ss").getBytes());
-        map.put("LAST_UPDATE_TIME".getBytes(), DateFormatUtils.format(transaction.getLastUpdateTime(), "yyyy-MM-dd HH:mm:ss").getBytes());
-        map.put("VERSION".getBytes(), ByteUtils.longToBytes(transaction.getVersion()));
-        map.put("CONTENT".getBytes(), serializer.serialize(transaction));
-        map.put("CONTENT_VIEW".getBytes(), JSON.toJSONString(transaction).getBytes());
+        map.put(LAYOUT, new byte[]{LAYOUT_VERSION});
+        map.put(GLOBAL_TX_ID, transaction.getXid().getGlobalTransactionId());
+        map.put(BRANCH_QUALIFIER, transaction.getXid().getBranchQualifier());
+        map.put(STATUS, ByteUtils.intToFixedBytes(transaction.getStatus().getId()));
+        map.put(TRANSACTION_TYPE, ByteUtils.intToFixedBytes(transaction.getTransactionType().getId()));
+        map.put(RETRIED_COUNT, ByteUtils.intToFixedBytes(transaction.getRetriedCount()));
+        map.put(CREATE_TIME, ByteUtils.longToFixedBytes(transaction.getCreateTime().getTime()));
+        map.put(LAST_UPDATE_TIME, ByteUtils.longToFixedBytes(transaction.getLastUpdateTime().getTime()));
+        map.put(VERSION, ByteUtils.longToFixedBytes(transaction.getVersion()));
         return map;
     }
 
-    public static Transaction deserialize(ObjectSerializer serializer, Map<byte[], byte[]> map1) {
+    public static byte[] getParticipantsField(int firstParticipantIndex) {
+        return (new String(PARTICIPANTS) + firstParticipantIndex).getBytes();
+    }
+
+    public static Transaction deserialize(ObjectSerializer serializer, Map<byte[], byte[]> map) {
 
-        Map<String, byte[]> propertyMap = new HashMap<String, byte[]>();
+        boolean binaryLayout = false;
+        byte[] content = null;
+        byte[] status = null;
+        byte[] retriedCount = null;
+        byte[] lastUpdateTime = null;
+        byte[] version = null;
+        TreeMap<Integer, byte[]> participants = null;
 
-        for (Map.Entry<byte[], byte[]> entry : map1.entrySet()) {
-            propertyMap.put(new String(entry.getKey()), entry.getValue());
+        for (Map.Entry<byte[], byte[]> entry : map.entrySet()) {
+            byte[] key = entry.getKey();
+
+            if (Arrays.equals(CONTENT, key)) {
+                content = entry.getValue();
+            } else if (Arrays.equals(STATUS, key)) {
+                status = entry.getValue();
+            } else if (Arrays.equals(RETRIED_COUNT, key)) {
+                retriedCount = entry.getValue();
+            } else if (Arrays.equals(LAST_UPDATE_TIME, key)) {
+                lastUpdateTime = entry.getValue();
+            } else if (Arrays.equals(VERSION, key)) {
+                version = entry.getValue();
+            } else if (Arrays.equals(LAYOUT, key)) {
+                binaryLayout = isBinaryLayout(entry.getValue());
+            } else if (startsWith(key, PARTICIPANTS)) {
+                if (participants == null) {
+                    participants = new TreeMap<Integer, byte[]>();
+                }
+                participants.put(Integer.parseInt(new String(key, PARTICIPANTS.length, key.length - PARTICIPANTS.length)), entry.getValue());
+            }
         }
 
-        byte[] content = propertyMap.get("CONTENT");
         Transaction transaction = (Transaction) serializer.deserialize(content);
-        transaction.changeStatus(TransactionStatus.valueOf(ByteUtils.bytesToInt(propertyMap.get("STATUS"))));
-        transaction.resetRetriedCount(ByteUtils.bytesToInt(propertyMap.get("RETRIED_COUNT")));
+
+        if (participants != null) {
+            for (Map.Entry<Integer, byte[]> entry : participants.entrySet()) {
+                TransactionDelta.merge(transaction, entry.getKey(), (Transaction) serializer.deserialize(entry.getValue()));
+            }
+        }
+
+        transaction.changeStatus(TransactionStatus.valueOf(decodeInt(status, binaryLayout)));
+        transaction.resetRetriedCount(decodeInt(retriedCount, binaryLayout));
+        transaction.setLastUpdateTime(decodeDate(lastUpdateTime, binaryLayout));
+        transaction.setVersion(decodeLong(version, binaryLayout));
+        return transaction;
+    }
+
+    /**
+     * the header fields of a hash without deserializing CONTENT, null if a field is missing.
+     */
+    public static TransactionHeader deserializeHeader(Map<byte[], byte[]> map) {
+
+        boolean binaryLayout = false;
+        byte[] status = null;
+        byte[] transactionType = null;
+        byte[] retriedCount = null;
+        byte[] createTime = null;
+        byte[] lastUpdateTime = null;
+        byte[] version = null;
+
+        for (Map.Entry<byte[], byte[]> entry : map.entrySet()) {
+            byte[] key = entry.getKey();
+
+            if (Arrays.equals(STATUS, key)) {
+                status = entry.getValue();
+            } else if (Arrays.equals(TRANSACTION_TYPE, key)) {
+                transactionType = entry.getValue();
+            } else if (Arrays.equals(RETRIED_COUNT, key)) {
+                retriedCount = entry.getValue();
+            } else if (Arrays.equals(CREATE_TIME, key)) {
+                createTime = entry.getValue();
+            } else if (Arrays.equals(LAST_UPDATE_TIME, key)) {
+                lastUpdateTime = entry.getValue();
+            } else if (Arrays.equals(VERSION, key)) {
+                version = entry.getValue();
+            } else if (Arrays.equals(LAYOUT, key)) {
+                binaryLayout = isBinaryLayout(entry.getValue());
+            }
+        }
+
+        if (status == null || transactionType == null || retriedCount == null || createTime == null || lastUpdateTime == null || version == null) {
+            return null;
+        }
+
+        return new TransactionHeader(TransactionStatus.valueOf(decodeInt(status, binaryLayout)),
+                TransactionType.valueOf(decodeInt(transactionType, binaryLayout)),
+                decodeInt(retriedCount, binaryLayout),
+                decodeDate(createTime, binaryLayout),
+                decodeDate(lastUpdateTime, binaryLayout),
+                decodeLong(version, binaryLayout));
+    }
+
+    /**
+     * the xid of a hash, null if a field is missing.
+     */
+    public static TransactionXid deserializeXid(Map<byte[], byte[]> map) {
+
+        byte[] globalTransactionId = null;
+        byte[] branchQualifier = null;
+
+        for (Map.Entry<byte[], byte[]> entry : map.entrySet()) {
+            if (Arrays.equals(GLOBAL_TX_ID, entry.getKey())) {
+                globalTransactionId = entry.getValue();
+            } else if (Arrays.equals(BRANCH_QUALIFIER, entry.getKey())) {
+                branchQualifier = entry.getValue();
+            }
+        }
+
+        return globalTransactionId == null || branchQualifier == null ? null : new TransactionXid(globalTransactionId, branchQualifier);
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public static boolean isBinaryLayout(byte[] layout) {
+
+        if (layout == null || layout.length == 0) {
+            return false;
+        }
+
+        if (layout[0] != LAYOUT_VERSION) {
+            throw new SystemException("unknown transaction hash layout:" + layout[0]);
+        }
+
+        return true;
+    }
+
+    public static int decodeInt(byte[] value, boolean binaryLayout) {
+        return binaryLayout ? ByteUtils.fixedBytesToInt(value) : ByteUtils.bytesToInt(value);
+    }
+
+    public static long decodeLong(byte[] value, boolean binaryLayout) {
+        return binaryLayout ? ByteUtils.fixedBytesToLong(value) : ByteUtils.bytesToLong(value);
+    }
+
+    public static Date decodeDate(byte[] value, boolean binaryLayout) {
+
+        if (binaryLayout) {
+            return new Date(ByteUtils.fixedBytesToLong(value));
+        }
 
         try {
-            transaction.setLastUpdateTime(DateUtils.parseDate(new String(propertyMap.get("LAST_UPDATE_TIME")), "yyyy-MM-dd HH:mm:ss"));
+            return DateUtils.parseDate(new String(value), LEGACY_DATE_PATTERN);
         } catch (ParseException e) {
             throw new SystemException(e);
         }
-
-        transaction.setVersion(ByteUtils.bytesToLong(propertyMap.get("VERSION")));
-        return transaction;
     }
 }
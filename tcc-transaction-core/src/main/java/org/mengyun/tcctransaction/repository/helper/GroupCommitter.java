@@ -0,0 +1,247 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.SystemException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects write operations of concurrent callers and hands them to a single flusher thread,
+ * which executes them as one batch. Each caller blocks until its own operation is done and
+ * gets its own result back.
+ */
+public class GroupCommitter<T> {
+
+    static final Logger logger = Logger.getLogger(GroupCommitter.class.getSimpleName());
+
+    private static final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    private static final long STOP_CHECK_MILLIS = 100;
+
+    private final BlockingQueue<Request<T>> queue = new LinkedBlockingQueue<Request<T>>();
+
+    private final BatchExecutor<T> batchExecutor;
+
+    private final String name;
+
+    private int batchSize = 100;
+
+    private long maxWaitMillis = 0;
+
+    private volatile Thread flusher;
+
+    private volatile boolean stopped;
+
+    public GroupCommitter(String name, BatchExecutor<T> batchExecutor) {
+        this.name = name;
+        this.batchExecutor = batchExecutor;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setMaxWaitMillis(long maxWaitMillis) {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public int submit(T operation) {
+
+        startIfNecessary();
+
+        Request<T> request = new Request<T>(operation);
+
+        queue.add(request);
+
+        //a shutdown between the check above and the add may have drained the queue already.
+        if (stopped && queue.remove(request)) {
+            throw new SystemException("group committer " + name + " has been shutdown");
+        }
+
+        return request.await();
+    }
+
+    /**
+     * stops accepting operations and returns once the flusher has flushed the operations queued and stopped.
+     */
+    public void shutdown() {
+        stopped = true;
+
+        Thread thread = flusher;
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void startIfNecessary() {
+
+        if (stopped) {
+            throw new SystemException("group committer " + name + " has been shutdown");
+        }
+
+        if (flusher == null) {
+            synchronized (this) {
+                if (flusher == null) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushLoop();
+                        }
+                    }, name + "-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    thread.start();
+                    flusher = thread;
+                }
+            }
+        }
+    }
+
+    private void flushLoop() {
+
+        List<Request<T>> batch = new ArrayList<Request<T>>(batchSize);
+
+        while (true) {
+            try {
+                //the flusher is not interrupted on shutdown, an interrupt closes the channel a batch may be writing.
+                Request<T> first = queue.poll(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    if (stopped) {
+                        break;
+                    }
+                    continue;
+                }
+
+                batch.add(first);
+
+                queue.drainTo(batch, batchSize - batch.size());
+
+                if (maxWaitMillis > 0) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+                    while (batch.size() < batchSize) {
+                        Request<T> request = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (request == null) {
+                            break;
+                        }
+                        batch.add(request);
+                        queue.drainTo(batch, batchSize - batch.size());
+                    }
+                }
+
+                flush(batch);
+
+            } catch (InterruptedException e) {
+                failAll(batch, e);
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        List<Request<T>> remaining = new ArrayList<Request<T>>();
+        queue.drainTo(remaining);
+        failAll(remaining, new SystemException("group committer " + name + " has been shutdown"));
+    }
+
+    private void flush(List<Request<T>> batch) {
+        try {
+            batchExecutor.execute(batch);
+        } catch (Throwable throwable) {
+            logger.error(String.format("group commit of %d operations failed", batch.size()), throwable);
+            failAll(batch, throwable);
+            return;
+        }
+
+        failAll(batch, new SystemException("operation was not completed by the batch executor"));
+    }
+
+    private void failAll(List<Request<T>> requests, Throwable throwable) {
+        for (Request<T> request : requests) {
+            if (!request.isDone()) {
+                request.fail(throwable);
+            }
+        }
+    }
+
+    public interface BatchExecutor<T> {
+
+        /**
+         * execute all operations of the batch and complete or fail every request.
+         */
+        void execute(List<Request<T>> requests);
+    }
+
+    public static class Request<T> {
+
+        private final T operation;
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile int result;
+
+        private volatile Throwable failure;
+
+        Request(T operation) {
+            this.operation = operation;
+        }
+
+        public T getOperation() {
+            return operation;
+        }
+
+        public void complete(int result) {
+            this.result = result;
+            latch.countDown();
+        }
+
+        public void fail(Throwable failure) {
+            this.failure = failure;
+            latch.countDown();
+        }
+
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        int await() {
+
+            boolean interrupted = false;
+
+            while (true) {
+                try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    //the operation is already queued, its outcome must be known before returning.
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (failure != null) {
+                if (failure instanceof RuntimeException) {
+                    throw (RuntimeException) failure;
+                }
+                throw new SystemException(failure);
+            }
+
+            return result;
+        }
+    }
+}
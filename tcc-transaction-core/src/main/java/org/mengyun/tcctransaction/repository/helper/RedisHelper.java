@@ -1,12 +1,19 @@
 package org.mengyun.tcctransaction.repository.helper;
 
 import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.api.XidKeyCodec;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.ScanParams;
 import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.JedisClusterCRC16;
 
 import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by changming.xie on 9/15/16.
@@ -23,6 +30,51 @@ public class RedisHelper {
         return new StringBuilder().append(keyPrefix).append(xid.toString()).toString().getBytes();
     }
 
+    public static byte[] getLegacyRedisKey(String keyPrefix, Xid xid) {
+        return new StringBuilder().append(keyPrefix).append(XidKeyCodec.encodeLegacy(xid)).toString().getBytes();
+    }
+
+    /**
+     * the key of the xid with the global transaction id as hash tag, keyPrefix{globalTransactionId}:branchQualifier.
+     */
+    public static byte[] getClusterRedisKey(String keyPrefix, Xid xid) {
+
+        String key = xid.toString();
+        int index = key.indexOf(':');
+
+        return new StringBuilder().append(keyPrefix).append('{').append(key, 0, index).append('}')
+                .append(key, index, key.length()).toString().getBytes();
+    }
+
+    /**
+     * groups the keys by the master serving their slot, slotNodes holds the master of each slot.
+     */
+    public static Map<String, List<byte[]>> groupBySlotNode(String[] slotNodes, List<byte[]> keys) {
+
+        Map<String, List<byte[]>> keysOfNodes = new HashMap<String, List<byte[]>>();
+
+        for (byte[] key : keys) {
+
+            int slot = JedisClusterCRC16.getSlot(key);
+            String node = slotNodes[slot];
+
+            if (node == null) {
+                throw new TransactionIOException(String.format("slot %d of key %s is not served by any master of the redis cluster", slot, new String(key)));
+            }
+
+            List<byte[]> keysOfNode = keysOfNodes.get(node);
+
+            if (keysOfNode == null) {
+                keysOfNode = new ArrayList<byte[]>();
+                keysOfNodes.put(node, keysOfNode);
+            }
+
+            keysOfNode.add(key);
+        }
+
+        return keysOfNodes;
+    }
+
     public static byte[] getRedisKey(String keyPrefix, String globalTransactionId, String branchQualifier) {
 
         return new StringBuilder().append(keyPrefix)
@@ -0,0 +1,340 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A redo journal making the writes to the files under a root directory durable with one force for many writes.
+ * <p/>
+ * A writer writes its file without forcing it and appends an entry holding the same bytes, the entries of concurrent
+ * writers are appended and forced together. Once the journal grows past the checkpoint size the files written since
+ * the last checkpoint and their directories are forced and the journal is emptied. On startup the entries left in the
+ * journal are applied again to the files. An entry is, all numbers big endian:
+ * <pre>
+ * magic(4) type(1) pathLength(2) path(pathLength) offset(8) contentLength(4) content(contentLength) checksum(4)
+ * </pre>
+ * the path is relative to the root directory, an entry cut off by a crash and everything after it is ignored.
+ */
+public class SyncJournal {
+
+    static final Logger logger = Logger.getLogger(SyncJournal.class.getSimpleName());
+
+    public static final byte WRITE = 1;
+
+    public static final byte APPEND = 2;
+
+    public static final byte DELETE = 3;
+
+    private static final int MAGIC = 0x5443534A;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File root;
+
+    private final File file;
+
+    private final long checkpointSize;
+
+    private final Set<String> paths = new HashSet<String>();
+
+    private FileChannel channel;
+
+    private boolean failed = false;
+
+    public SyncJournal(File root, File file, long checkpointSize) {
+        this.root = root;
+        this.file = file;
+        this.checkpointSize = checkpointSize;
+    }
+
+    /**
+     * applies the entries left by the last run to the files and empties the journal.
+     */
+    public synchronized void replay() throws IOException {
+
+        FileChannel channel = getChannel();
+
+        if (channel.size() == 0) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+        }
+
+        buffer.flip();
+
+        int count = 0;
+
+        for (Entry entry = readEntry(buffer); entry != null; entry = readEntry(buffer)) {
+            apply(entry);
+            paths.add(entry.getPath());
+            count++;
+        }
+
+        checkpoint();
+
+        logger.info(String.format("applied %d entries of sync journal %s", count, file));
+    }
+
+    /**
+     * appends the entries and forces the journal once for all of them.
+     */
+    public synchronized void append(List<Entry> entries) throws IOException {
+
+        if (failed) {
+            throw new IOException("sync journal " + file + " failed to drop a partly written entry, it takes no more entries");
+        }
+
+        FileChannel channel = getChannel();
+
+        int length = 0;
+
+        byte[][] encoded = new byte[entries.size()][];
+
+        for (int i = 0; i < entries.size(); i++) {
+            encoded[i] = encode(entries.get(i));
+            length += encoded[i].length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        for (int i = 0; i < encoded.length; i++) {
+            buffer.put(encoded[i]);
+            paths.add(entries.get(i).getPath());
+        }
+
+        buffer.flip();
+
+        long start = channel.size();
+        long position = start;
+
+        try {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+
+            channel.force(false);
+        } catch (IOException e) {
+            //a partly written entry would hide every entry appended after it from the replay.
+            truncate(start);
+            throw e;
+        }
+
+        if (position >= checkpointSize) {
+            checkpoint();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    //drops the entries of a failed append, the journal takes no more entries if it cannot.
+    private void truncate(long size) {
+        try {
+            channel.truncate(size);
+        } catch (IOException e) {
+            failed = true;
+            logger.error(String.format("failed to truncate sync journal %s to %d bytes", file, size), e);
+        }
+    }
+
+    //forces the files the entries in the journal were written to, then the journal is no longer needed.
+    private void checkpoint() throws IOException {
+
+        Set<File> directories = new HashSet<File>();
+
+        for (String path : paths) {
+
+            File target = new File(root, path);
+            directories.add(target.getParentFile());
+
+            force(target);
+        }
+
+        //a created or deleted file is durable only once its directory is.
+        for (File directory : directories) {
+            force(directory);
+        }
+
+        paths.clear();
+
+        channel.truncate(0);
+        channel.force(true);
+    }
+
+    private void apply(Entry entry) throws IOException {
+
+        File target = new File(root, entry.getPath());
+
+        if (entry.getType() == DELETE) {
+            Files.deleteIfExists(target.toPath());
+            return;
+        }
+
+        if (entry.getType() == APPEND && !target.exists()) {
+            return;
+        }
+
+        target.getParentFile().mkdirs();
+
+        FileChannel targetChannel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(entry.getContent());
+            long position = entry.getOffset();
+
+            while (buffer.hasRemaining()) {
+                position += targetChannel.write(buffer, position);
+            }
+
+            targetChannel.truncate(position);
+        } finally {
+            targetChannel.close();
+        }
+    }
+
+    private static void force(File target) throws IOException {
+
+        FileChannel targetChannel;
+
+        try {
+            targetChannel = FileChannel.open(target.toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return;
+        } catch (IOException e) {
+            //directories cannot be opened on every platform, files written there are forced all the same.
+            if (target.isDirectory()) {
+                return;
+            }
+            throw e;
+        }
+
+        try {
+            targetChannel.force(true);
+        } finally {
+            targetChannel.close();
+        }
+    }
+
+    private FileChannel getChannel() throws IOException {
+
+        if (channel == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        return channel;
+    }
+
+    private static byte[] encode(Entry entry) {
+
+        byte[] path = entry.getPath().getBytes(UTF_8);
+        byte[] content = entry.getContent();
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 1 + 2 + path.length + 8 + 4 + content.length + 4);
+
+        buffer.putInt(MAGIC);
+        buffer.put(entry.getType());
+        buffer.putShort((short) path.length);
+        buffer.put(path);
+        buffer.putLong(entry.getOffset());
+        buffer.putInt(content.length);
+        buffer.put(content);
+        buffer.putInt(checksum(buffer.array(), 0, buffer.position()));
+
+        return buffer.array();
+    }
+
+    //the entry at the position of the buffer, null at the end of the entries or at an entry cut off by a crash.
+    private static Entry readEntry(ByteBuffer buffer) {
+
+        int start = buffer.position();
+
+        if (buffer.remaining() < 4 + 1 + 2 || buffer.getInt() != MAGIC) {
+            return null;
+        }
+
+        byte type = buffer.get();
+        int pathLength = buffer.getShort() & 0xFFFF;
+
+        if (buffer.remaining() < pathLength + 8 + 4) {
+            return null;
+        }
+
+        byte[] path = new byte[pathLength];
+        buffer.get(path);
+
+        long offset = buffer.getLong();
+        int contentLength = buffer.getInt();
+
+        if (contentLength < 0 || buffer.remaining() < contentLength + 4) {
+            return null;
+        }
+
+        byte[] content = new byte[contentLength];
+        buffer.get(content);
+
+        if (buffer.getInt() != checksum(buffer.array(), start, buffer.position() - 4 - start)) {
+            return null;
+        }
+
+        return new Entry(type, new String(path, UTF_8), offset, content);
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, offset, length);
+        return (int) crc32.getValue();
+    }
+
+    public static class Entry {
+
+        private final byte type;
+
+        private final String path;
+
+        private final long offset;
+
+        private final byte[] content;
+
+        public Entry(byte type, String path, long offset, byte[] content) {
+            this.type = type;
+            this.path = path;
+            this.offset = offset;
+            this.content = content;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+    }
+}
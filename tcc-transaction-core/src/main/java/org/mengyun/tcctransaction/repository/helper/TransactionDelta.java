@@ -0,0 +1,58 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+
+import java.util.List;
+
+/**
+ * Participants enlisted since a transaction was last stored. Repositories with delta updates store them as a
+ * transaction holding only these participants, next to the content written on create, and merge them on read.
+ * Attachments are stored with the content only.
+ */
+public class TransactionDelta {
+
+    public static boolean hasNewParticipants(Transaction transaction) {
+        return transaction.getParticipants().size() > transaction.getPersistedParticipantCount();
+    }
+
+    public static Transaction newParticipants(Transaction transaction) {
+
+        Transaction delta = new Transaction((TransactionXid) transaction.getXid(),
+                transaction.getStatus(),
+                transaction.getTransactionType(),
+                transaction.getRetriedCount(),
+                transaction.getCreateTime(),
+                transaction.getLastUpdateTime(),
+                transaction.getVersion());
+
+        List<Participant> participants = transaction.getParticipants();
+
+        for (int i = transaction.getPersistedParticipantCount(); i < participants.size(); i++) {
+            delta.enlistParticipant(participants.get(i));
+        }
+
+        return delta;
+    }
+
+    /**
+     * append the participants of a delta starting at firstParticipantIndex, the ones the transaction already has are skipped.
+     */
+    public static void merge(Transaction transaction, int firstParticipantIndex, Transaction delta) {
+
+        List<Participant> participants = transaction.getParticipants();
+
+        if (firstParticipantIndex > participants.size()) {
+            throw new TransactionIOException(String.format("participants from %d to %d are missing, xid:%s",
+                    participants.size(), firstParticipantIndex, transaction.getXid()));
+        }
+
+        List<Participant> deltaParticipants = delta.getParticipants();
+
+        for (int i = participants.size() - firstParticipantIndex; i < deltaParticipants.size(); i++) {
+            transaction.enlistParticipant(deltaParticipants.get(i));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+
+import java.util.Date;
+
+/**
+ * The fields of a stored transaction that are readable without deserializing its content.
+ */
+public class TransactionHeader {
+
+    private final TransactionStatus status;
+
+    private final TransactionType transactionType;
+
+    private final int retriedCount;
+
+    private final Date createTime;
+
+    private final Date lastUpdateTime;
+
+    private final long version;
+
+    public TransactionHeader(TransactionStatus status, TransactionType transactionType, int retriedCount, Date createTime, Date lastUpdateTime, long version) {
+        this.status = status;
+        this.transactionType = transactionType;
+        this.retriedCount = retriedCount;
+        this.createTime = createTime;
+        this.lastUpdateTime = lastUpdateTime;
+        this.version = version;
+    }
+
+    public TransactionStatus getStatus() {
+        return status;
+    }
+
+    public TransactionType getTransactionType() {
+        return transactionType;
+    }
+
+    public int getRetriedCount() {
+        return retriedCount;
+    }
+
+    public Date getCreateTime() {
+        return createTime;
+    }
+
+    public Date getLastUpdateTime() {
+        return lastUpdateTime;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -1,35 +1,247 @@
 package org.mengyun.tcctransaction.repository.helper;
 
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.CRC32;
 
 /**
  * Created by changming.xie on 9/15/16.
+ * <p/>
+ * A transaction is stored as one record, all numbers big endian:
+ * <pre>
+ * magic(4) format(1) status(4) transactionType(4) retriedCount(4) createTime(8) lastUpdateTime(8) version(8)
+ * contentLength(4) content(contentLength) checksum(4)
+ * </pre>
+ * The header is the first HEADER_LENGTH bytes and is read without the content, the checksum is the CRC32 of
+ * everything before it. Delta updates append frames in the same layout with format DELTA_FORMAT and the index of
+ * their first participant after the header, the header of the last frame is the current one. A frame cut off by a
+ * failed append is ignored. Records written before this format, a serialized map of the header fields and content,
+ * are still read.
  */
 public class TransactionSerializer {
 
+    public static final int MAGIC = 0x54434346;
+
+    public static final byte FORMAT_VERSION = 1;
+
+    public static final byte DELTA_FORMAT = 2;
+
+    public static final int HEADER_LENGTH = 4 + 1 + 4 + 4 + 4 + 8 + 8 + 8;
+
     public static byte[] serialize(ObjectSerializer serializer, Transaction transaction) {
-        Map<String, Object> map = new HashMap<String, Object>();
+        return frame(FORMAT_VERSION, transaction, serializer.serialize(transaction));
+    }
+
+    /**
+     * a frame to append to the record of the transaction, holding the participants enlisted since it was stored.
+     */
+    public static byte[] serializeDelta(ObjectSerializer serializer, Transaction transaction) {
+
+        byte[] content = TransactionDelta.hasNewParticipants(transaction) ? serializer.serialize(TransactionDelta.newParticipants(transaction)) : new byte[0];
+
+        return frame(DELTA_FORMAT, transaction, content);
+    }
 
-        map.put("GLOBAL_TX_ID", transaction.getXid().getGlobalTransactionId());
-        map.put("BRANCH_QUALIFIER", transaction.getXid().getBranchQualifier());
-        map.put("STATUS", transaction.getStatus().getId());
-        map.put("TRANSACTION_TYPE", transaction.getTransactionType().getId());
-        map.put("RETRIED_COUNT", transaction.getRetriedCount());
-        map.put("CREATE_TIME", transaction.getCreateTime());
-        map.put("LAST_UPDATE_TIME", transaction.getLastUpdateTime());
-        map.put("VERSION", transaction.getVersion());
-        map.put("CONTENT", serializer.serialize(transaction));
+    private static byte[] frame(byte format, Transaction transaction, byte[] content) {
 
-        return serializer.serialize(map);
+        int deltaLength = format == DELTA_FORMAT ? 4 : 0;
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + deltaLength + 4 + content.length + 4);
+
+        buffer.putInt(MAGIC);
+        buffer.put(format);
+        buffer.putInt(transaction.getStatus().getId());
+        buffer.putInt(transaction.getTransactionType().getId());
+        buffer.putInt(transaction.getRetriedCount());
+        buffer.putLong(transaction.getCreateTime().getTime());
+        buffer.putLong(transaction.getLastUpdateTime().getTime());
+        buffer.putLong(transaction.getVersion());
+
+        if (format == DELTA_FORMAT) {
+            buffer.putInt(transaction.getPersistedParticipantCount());
+        }
+
+        buffer.putInt(content.length);
+        buffer.put(content);
+        buffer.putInt(checksum(buffer.array(), 0, buffer.position()));
+
+        return buffer.array();
     }
 
     public static Transaction deserialize(ObjectSerializer serializer, byte[] value) {
 
+        if (!isRecord(value)) {
+            return deserializeLegacy(serializer, value);
+        }
+
+        int end = frameEnd(value, 0);
+
+        if (end < 0) {
+            throw new TransactionIOException("transaction record is truncated or corrupted, length:" + value.length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+
+        TransactionHeader header = readHeader(buffer);
+
+        if (value[4] != FORMAT_VERSION) {
+            throw new TransactionIOException("transaction record starts with a delta frame");
+        }
+
+        Transaction transaction = (Transaction) serializer.deserialize(readContent(buffer));
+
+        for (int next = frameEnd(value, end); next > 0; end = next, next = frameEnd(value, end)) {
+
+            buffer.position(end);
+            header = readHeader(buffer);
+
+            int firstParticipantIndex = buffer.getInt();
+            byte[] content = readContent(buffer);
+
+            if (content.length > 0) {
+                TransactionDelta.merge(transaction, firstParticipantIndex, (Transaction) serializer.deserialize(content));
+            }
+        }
+
+        transaction.changeStatus(header.getStatus());
+        transaction.resetRetriedCount(header.getRetriedCount());
+        transaction.setLastUpdateTime(header.getLastUpdateTime());
+        transaction.setVersion(header.getVersion());
+        return transaction;
+    }
+
+    /**
+     * the length of the complete frames of a record, less than the length of the value when an append was cut off.
+     */
+    public static int readableLength(byte[] value) {
+
+        if (!isRecord(value)) {
+            return value.length;
+        }
+
+        int end = 0;
+
+        for (int next = frameEnd(value, 0); next > 0; next = frameEnd(value, end)) {
+            end = next;
+        }
+
+        return end;
+    }
+
+    /**
+     * the header of a record from its first HEADER_LENGTH bytes at least, null if the bytes are not a record of this format.
+     */
+    public static TransactionHeader deserializeHeader(byte[] value) {
+
+        if (!isRecord(value) || value.length < HEADER_LENGTH) {
+            return null;
+        }
+
+        return readHeader(ByteBuffer.wrap(value));
+    }
+
+    /**
+     * the header of the last complete frame of a record, the current one after delta updates, null if the bytes
+     * are not a record of this format or hold no complete frame.
+     */
+    public static TransactionHeader deserializeLastHeader(byte[] value) {
+
+        if (!isRecord(value)) {
+            return null;
+        }
+
+        int start = -1;
+
+        for (int end = 0, next = frameEnd(value, 0); next > 0; end = next, next = frameEnd(value, end)) {
+            start = end;
+        }
+
+        if (start < 0) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        buffer.position(start);
+        return readHeader(buffer);
+    }
+
+    private static TransactionHeader readHeader(ByteBuffer buffer) {
+
+        buffer.getInt();
+
+        byte format = buffer.get();
+
+        if (format != FORMAT_VERSION && format != DELTA_FORMAT) {
+            throw new TransactionIOException("unknown transaction record format:" + format);
+        }
+
+        return new TransactionHeader(TransactionStatus.valueOf(buffer.getInt()),
+                TransactionType.valueOf(buffer.getInt()),
+                buffer.getInt(),
+                new Date(buffer.getLong()),
+                new Date(buffer.getLong()),
+                buffer.getLong());
+    }
+
+    private static byte[] readContent(ByteBuffer buffer) {
+        byte[] content = new byte[buffer.getInt()];
+        buffer.get(content);
+        return content;
+    }
+
+    //end offset of the frame at offset, -1 when the bytes from offset are not a complete frame with a valid checksum.
+    private static int frameEnd(byte[] value, int offset) {
+
+        if (value.length - offset < HEADER_LENGTH + 8) {
+            return -1;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+
+        if (buffer.getInt(offset) != MAGIC) {
+            return -1;
+        }
+
+        int contentLengthOffset = offset + HEADER_LENGTH + (value[offset + 4] == DELTA_FORMAT ? 4 : 0);
+
+        if (value.length - contentLengthOffset < 8) {
+            return -1;
+        }
+
+        int contentLength = buffer.getInt(contentLengthOffset);
+
+        if (contentLength < 0 || contentLength > value.length - contentLengthOffset - 8) {
+            return -1;
+        }
+
+        int end = contentLengthOffset + 4 + contentLength + 4;
+
+        if (buffer.getInt(end - 4) != checksum(value, offset, end - 4 - offset)) {
+            return -1;
+        }
+
+        return end;
+    }
+
+    private static boolean isRecord(byte[] value) {
+        return value.length >= 4 && ByteBuffer.wrap(value).getInt(0) == MAGIC;
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, offset, length);
+        return (int) crc32.getValue();
+    }
+
+    private static Transaction deserializeLegacy(ObjectSerializer serializer, byte[] value) {
+
         Map<String, Object> map = (Map<String, Object>) serializer.deserialize(value);
 
         byte[] content = (byte[]) map.get("CONTENT");
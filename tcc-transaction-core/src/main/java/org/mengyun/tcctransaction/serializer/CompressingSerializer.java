@@ -0,0 +1,151 @@
+package org.mengyun.tcctransaction.serializer;
+
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.Transaction;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates the output of another serializer when it is larger than the threshold.
+ * <p/>
+ * A compressed payload is the MARKER byte, the uncompressed length as 4 bytes and the deflated bytes. Other
+ * payloads are the bytes of the delegate as they are, none of the serializers here starts its output with MARKER,
+ * so data written without compression stays readable.
+ */
+public class CompressingSerializer implements ObjectSerializer<Transaction> {
+
+    static final byte MARKER = (byte) 0xDF;
+
+    //a stored length above it is taken for a corrupted payload rather than allocated.
+    static final int MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+
+    private final ObjectSerializer<Transaction> delegate;
+
+    private int threshold = 2048;
+
+    private int level = Deflater.BEST_SPEED;
+
+    //deflater and inflater hold native memory, they are reused per thread instead of created per call.
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(level);
+        }
+    };
+
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    public CompressingSerializer() {
+        this(new KryoPoolSerializer());
+    }
+
+    public CompressingSerializer(ObjectSerializer<Transaction> delegate) {
+        this.delegate = delegate;
+    }
+
+    public void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte[] serialize(Transaction transaction) {
+
+        byte[] bytes = delegate.serialize(transaction);
+
+        if (bytes.length <= threshold) {
+            return bytes;
+        }
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+
+        //a result not smaller than the input is not worth inflating on every read.
+        byte[] buffer = new byte[bytes.length];
+        buffer[0] = MARKER;
+        ByteBuffer.wrap(buffer, 1, 4).putInt(bytes.length);
+
+        int length = 5;
+
+        while (!deflater.finished() && length < buffer.length) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+
+        if (!deflater.finished()) {
+            return bytes;
+        }
+
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public Transaction deserialize(byte[] bytes) {
+
+        if (bytes == null || bytes.length == 0 || bytes[0] != MARKER) {
+            return delegate.deserialize(bytes);
+        }
+
+        if (bytes.length < 5) {
+            throw new SystemException("compressed transaction content is truncated, " + bytes.length + " bytes");
+        }
+
+        int inflatedLength = ByteBuffer.wrap(bytes, 1, 4).getInt();
+
+        if (inflatedLength <= 0 || inflatedLength > MAX_INFLATED_LENGTH) {
+            throw new SystemException("compressed transaction content is corrupted, stored length " + inflatedLength);
+        }
+
+        byte[] inflated = new byte[inflatedLength];
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(bytes, 5, bytes.length - 5);
+
+        try {
+            int length = 0;
+
+            while (length < inflated.length && !inflater.finished()) {
+
+                int count = inflater.inflate(inflated, length, inflated.length - length);
+
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                length += count;
+            }
+
+            if (length != inflated.length) {
+                throw new SystemException("compressed transaction content is truncated, " + length + " of " + inflated.length + " bytes");
+            }
+
+            //more deflated data than the stored length means the length does not belong to the content.
+            if (!inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                throw new SystemException("compressed transaction content is longer than its stored length " + inflated.length);
+            }
+        } catch (DataFormatException e) {
+            throw new SystemException("compressed transaction content is corrupted", e);
+        }
+
+        return delegate.deserialize(inflated);
+    }
+
+    @Override
+    public Transaction clone(Transaction object) {
+        return delegate.clone(object);
+    }
+}
@@ -1,11 +1,15 @@
 package org.mengyun.tcctransaction.serializer;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
 import org.mengyun.tcctransaction.SystemException;
 import org.mengyun.tcctransaction.Transaction;
 
@@ -24,6 +28,7 @@ public class JacksonJsonSerializer implements ObjectSerializer<Transaction> {
         objectMapper.disable(SerializationFeature.FAIL_ON_EMPTY_BEANS);
         objectMapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
         objectMapper.setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+        objectMapper.addMixIn(Participant.class, ParticipantMixIn.class);
 
     }
 
@@ -50,4 +55,14 @@ public class JacksonJsonSerializer implements ObjectSerializer<Transaction> {
         return deserialize(serialize(object));
     }
 
+    //the cancel context is written from its field, the getter resolves a shared invocation into a full copy.
+    abstract static class ParticipantMixIn {
+
+        @JsonProperty
+        private InvocationContext cancelInvocationContext;
+
+        @JsonIgnore
+        public abstract InvocationContext getCancelInvocationContext();
+    }
+
 }
@@ -0,0 +1,456 @@
+package org.mengyun.tcctransaction.serializer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.pool.KryoFactory;
+import com.esotericsoftware.kryo.pool.KryoPool;
+import com.esotericsoftware.kryo.util.DefaultClassResolver;
+import com.esotericsoftware.kryo.util.MapReferenceResolver;
+import org.apache.log4j.Logger;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionContextEditor;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.context.MethodTransactionContextEditor;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Kryo serializer writing registered class ids instead of class names.
+ * <p/>
+ * The framework classes are registered with fixed ids and written by the serializers below. Application
+ * classes are written by name, kryo writes a name the first time it appears in a payload and a short reference
+ * after that, so a payload is read by every node whatever classes it registered. Application classes may be
+ * registered by {@link #registerType(Class, int)} with an id every node must register the same way, a payload
+ * holding an id not registered on the reading node fails with a {@link SystemException} naming the id.
+ * Payloads of {@link KryoPoolSerializer} are still read.
+ */
+public class RegisteredKryoSerializer implements ObjectSerializer<Transaction> {
+
+    static final Logger logger = Logger.getLogger(RegisteredKryoSerializer.class.getSimpleName());
+
+    //first byte of a payload, KryoPoolSerializer payloads start with the null or class name marker (0 or 1).
+    static final byte FORMAT = (byte) 0xCB;
+
+    //ids from 100 to 999 are for explicit application registrations.
+    public static final int MIN_APPLICATION_TYPE_ID = 100;
+
+    public static final int MAX_APPLICATION_TYPE_ID = 999;
+
+    private static final Object registryLock = new Object();
+
+    private static final Map<Class, Integer> typeIds = new HashMap<Class, Integer>();
+
+    private static final Map<Integer, Class> idTypes = new HashMap<Integer, Class>();
+
+    private static final Set<Class> frameworkTypes = new HashSet<Class>();
+
+    private static volatile Registry registry = new Registry(0, Collections.<Class, Integer>emptyMap());
+
+    static KryoFactory factory = new KryoFactory() {
+        public Kryo create() {
+            Registry current = registry;
+
+            Kryo kryo = new RegistryKryo(current.version);
+            kryo.setReferences(true);
+            kryo.setRegistrationRequired(false);
+            ((Kryo.DefaultInstantiatorStrategy) kryo.getInstantiatorStrategy())
+                    .setFallbackInstantiatorStrategy(new StdInstantiatorStrategy());
+
+            //never change or reuse these ids, persisted transactions refer to them.
+            kryo.register(Transaction.class, new TransactionSerializer(), 20);
+            kryo.register(Participant.class, new ParticipantSerializer(), 21);
+            kryo.register(InvocationContext.class, new InvocationContextSerializer(), 22);
+            kryo.register(TransactionXid.class, new TransactionXidSerializer(), 23);
+            kryo.register(TransactionContext.class, 24);
+            kryo.register(TransactionStatus.class, 25);
+            kryo.register(TransactionType.class, 26);
+            kryo.register(Compensable.DefaultTransactionContextEditor.class, 27);
+            kryo.register(Compensable.NullableTransactionContextEditor.class, 28);
+            kryo.register(MethodTransactionContextEditor.class, 29);
+            kryo.register(Class.class, 30);
+            kryo.register(Class[].class, 31);
+            kryo.register(Object[].class, 32);
+            kryo.register(byte[].class, 33);
+            kryo.register(Date.class, 34);
+            kryo.register(ArrayList.class, 35);
+            kryo.register(LinkedList.class, 36);
+            kryo.register(HashMap.class, 37);
+            kryo.register(LinkedHashMap.class, 38);
+            kryo.register(ConcurrentHashMap.class, 39);
+            kryo.register(HashSet.class, 40);
+            kryo.register(BigDecimal.class, 41);
+            kryo.register(BigInteger.class, 42);
+
+            for (Map.Entry<Class, Integer> entry : current.typeIds.entrySet()) {
+                kryo.register(entry.getKey(), entry.getValue());
+            }
+
+            return kryo;
+        }
+    };
+
+    static {
+        Kryo kryo = factory.create();
+
+        for (int id = 0; id < MIN_APPLICATION_TYPE_ID; id++) {
+            Registration registration = kryo.getRegistration(id);
+            if (registration != null) {
+                frameworkTypes.add(registration.getType());
+            }
+        }
+    }
+
+    KryoPool pool = new KryoPool.Builder(factory).softReferences().build();
+
+    private final KryoPoolSerializer legacySerializer = new KryoPoolSerializer(0);
+
+    private int initPoolSize = 300;
+
+    public RegisteredKryoSerializer() {
+        init();
+    }
+
+    public RegisteredKryoSerializer(int initPoolSize) {
+        this.initPoolSize = initPoolSize;
+        init();
+    }
+
+    private void init() {
+
+        for (int i = 0; i < initPoolSize; i++) {
+            Kryo kryo = pool.borrow();
+            pool.release(kryo);
+        }
+    }
+
+    /**
+     * register an application class with an id between MIN_APPLICATION_TYPE_ID and MAX_APPLICATION_TYPE_ID, every
+     * node reading the transactions must register the class with the same id before reading them.
+     */
+    public static void registerType(Class type, int id) {
+
+        if (id < MIN_APPLICATION_TYPE_ID || id > MAX_APPLICATION_TYPE_ID) {
+            throw new SystemException(String.format("id of class %s must be in [%d, %d], but was %d", type.getName(), MIN_APPLICATION_TYPE_ID, MAX_APPLICATION_TYPE_ID, id));
+        }
+
+        if (!isRegistrable(type)) {
+            throw new SystemException(String.format("class %s cannot be registered", type == null ? null : type.getName()));
+        }
+
+        synchronized (registryLock) {
+
+            Class registered = idTypes.get(id);
+
+            if (registered != null && !registered.equals(type)) {
+                throw new SystemException(String.format("id %d is already registered for class %s", id, registered.getName()));
+            }
+
+            Integer previousId = typeIds.put(type, id);
+
+            if (previousId != null) {
+                idTypes.remove(previousId);
+            }
+
+            idTypes.put(id, type);
+            publish();
+        }
+    }
+
+    private static boolean isRegistrable(Class type) {
+
+        //java.lang classes are either registered by kryo already or never written.
+        return type != null && !type.isPrimitive() && !frameworkTypes.contains(type) && !type.getName().startsWith("java.lang.");
+    }
+
+    private static void publish() {
+        registry = new Registry(registry.version + 1, new HashMap<Class, Integer>(typeIds));
+    }
+
+    @Override
+    public byte[] serialize(final Transaction object) {
+
+        Kryo kryo = borrow();
+
+        try {
+            Output output = new Output(256, -1);
+            output.writeByte(FORMAT);
+            kryo.writeObject(output, object);
+            return output.toBytes();
+        } finally {
+            pool.release(kryo);
+        }
+    }
+
+    @Override
+    public Transaction deserialize(final byte[] bytes) {
+
+        if (bytes.length == 0 || bytes[0] != FORMAT) {
+            return legacySerializer.deserialize(bytes);
+        }
+
+        Kryo kryo = borrow();
+
+        try {
+            Input input = new Input(bytes, 1, bytes.length - 1);
+            return kryo.readObject(input, Transaction.class);
+        } finally {
+            pool.release(kryo);
+        }
+    }
+
+    @Override
+    public Transaction clone(Transaction object) {
+        return deserialize(serialize(object));
+    }
+
+    private Kryo borrow() {
+
+        Kryo kryo = pool.borrow();
+
+        //registrations changed after the instance was created, it is replaced rather than updated so removed ids are gone too.
+        if (((RegistryKryo) kryo).registryVersion != registry.version) {
+            kryo = factory.create();
+        }
+
+        return kryo;
+    }
+
+    private static class Registry {
+
+        final int version;
+
+        final Map<Class, Integer> typeIds;
+
+        Registry(int version, Map<Class, Integer> typeIds) {
+            this.version = version;
+            this.typeIds = typeIds;
+        }
+    }
+
+    private static class RegistryKryo extends Kryo {
+
+        final int registryVersion;
+
+        RegistryKryo(int registryVersion) {
+            super(new RegistryClassResolver(), new MapReferenceResolver());
+            this.registryVersion = registryVersion;
+        }
+    }
+
+    private static class RegistryClassResolver extends DefaultClassResolver {
+
+        @Override
+        public Registration readClass(Input input) {
+
+            int position = input.position();
+            int classId = input.readVarInt(true);
+            input.setPosition(position);
+
+            //0 and 1 are the null and class name markers, a registered class is written as its id plus 2.
+            if (classId > 1 && getRegistration(classId - 2) == null) {
+                throw new SystemException(String.format("class id %d is not registered on this node, register the class with registerType(Class, int) under the same id as on the node that wrote the transaction", classId - 2));
+            }
+
+            return super.readClass(input);
+        }
+    }
+
+    static class TransactionXidSerializer extends Serializer<TransactionXid> {
+
+        @Override
+        public void write(Kryo kryo, Output output, TransactionXid xid) {
+            writeBytes(output, xid.getGlobalTransactionId());
+            writeBytes(output, xid.getBranchQualifier());
+        }
+
+        @Override
+        public TransactionXid read(Kryo kryo, Input input, Class<TransactionXid> type) {
+            return new TransactionXid(readBytes(input), readBytes(input));
+        }
+    }
+
+    static class TransactionSerializer extends Serializer<Transaction> {
+
+        @Override
+        public void write(Kryo kryo, Output output, Transaction transaction) {
+
+            kryo.writeObject(output, transaction.getXid());
+            output.writeInt(transaction.getStatus().getId(), true);
+            output.writeInt(transaction.getTransactionType().getId(), true);
+            output.writeInt(transaction.getRetriedCount(), true);
+            output.writeLong(transaction.getCreateTime().getTime());
+            output.writeLong(transaction.getLastUpdateTime().getTime());
+            output.writeLong(transaction.getVersion(), true);
+
+            output.writeInt(transaction.getParticipants().size(), true);
+            for (Participant participant : transaction.getParticipants()) {
+                kryo.writeObject(output, participant);
+            }
+
+            output.writeInt(transaction.getAttachments().size(), true);
+            for (Map.Entry<String, Object> entry : transaction.getAttachments().entrySet()) {
+                output.writeString(entry.getKey());
+                kryo.writeClassAndObject(output, entry.getValue());
+            }
+        }
+
+        @Override
+        public Transaction read(Kryo kryo, Input input, Class<Transaction> type) {
+
+            TransactionXid xid = kryo.readObject(input, TransactionXid.class);
+
+            Transaction transaction = new Transaction(xid,
+                    TransactionStatus.valueOf(input.readInt(true)),
+                    TransactionType.valueOf(input.readInt(true)),
+                    input.readInt(true),
+                    new Date(input.readLong()),
+                    new Date(input.readLong()),
+                    input.readLong(true));
+
+            kryo.reference(transaction);
+
+            int participantCount = input.readInt(true);
+            for (int i = 0; i < participantCount; i++) {
+                transaction.enlistParticipant(kryo.readObject(input, Participant.class));
+            }
+
+            int attachmentCount = input.readInt(true);
+            for (int i = 0; i < attachmentCount; i++) {
+                String key = input.readString();
+                transaction.getAttachments().put(key, kryo.readClassAndObject(input));
+            }
+
+            return transaction;
+        }
+    }
+
+    static class ParticipantSerializer extends Serializer<Participant> {
+
+        @Override
+        public void write(Kryo kryo, Output output, Participant participant) {
+            kryo.writeObjectOrNull(output, participant.getXid(), TransactionXid.class);
+
+            InvocationContext confirmInvocationContext = participant.getConfirmInvocationContext();
+            InvocationContext cancelInvocationContext = participant.getCancelInvocationContext();
+
+            //a cancel context sharing the invocation of the confirm context is written as its method name only.
+            if (Participant.sharesInvocation(confirmInvocationContext, cancelInvocationContext)) {
+                cancelInvocationContext = new InvocationContext(cancelInvocationContext.getMethodName());
+            }
+
+            kryo.writeObjectOrNull(output, confirmInvocationContext, InvocationContext.class);
+            kryo.writeObjectOrNull(output, cancelInvocationContext, InvocationContext.class);
+            kryo.writeClass(output, participant.getTransactionContextEditorClass());
+        }
+
+        @Override
+        public Participant read(Kryo kryo, Input input, Class<Participant> type) {
+
+            TransactionXid xid = kryo.readObjectOrNull(input, TransactionXid.class);
+            InvocationContext confirmInvocationContext = kryo.readObjectOrNull(input, InvocationContext.class);
+            InvocationContext cancelInvocationContext = kryo.readObjectOrNull(input, InvocationContext.class);
+            Class<? extends TransactionContextEditor> transactionContextEditorClass = readClass(kryo, input);
+
+            return new Participant(xid, confirmInvocationContext, cancelInvocationContext, transactionContextEditorClass);
+        }
+    }
+
+    static class InvocationContextSerializer extends Serializer<InvocationContext> {
+
+        @Override
+        public void write(Kryo kryo, Output output, InvocationContext invocationContext) {
+
+            kryo.writeClass(output, invocationContext.getTargetClass());
+            output.writeString(invocationContext.getMethodName());
+
+            Class[] parameterTypes = invocationContext.getParameterTypes();
+
+            //length plus one, 0 for null.
+            output.writeInt(parameterTypes == null ? 0 : parameterTypes.length + 1, true);
+            if (parameterTypes != null) {
+                for (Class parameterType : parameterTypes) {
+                    kryo.writeClass(output, parameterType);
+                }
+            }
+
+            Object[] args = invocationContext.getArgs();
+
+            output.writeInt(args == null ? 0 : args.length + 1, true);
+            if (args != null) {
+                for (Object arg : args) {
+                    kryo.writeClassAndObject(output, arg);
+                }
+            }
+        }
+
+        @Override
+        public InvocationContext read(Kryo kryo, Input input, Class<InvocationContext> type) {
+
+            Class targetClass = readClass(kryo, input);
+            String methodName = input.readString();
+
+            Class[] parameterTypes = null;
+            int length = input.readInt(true);
+            if (length > 0) {
+                parameterTypes = new Class[length - 1];
+                for (int i = 0; i < parameterTypes.length; i++) {
+                    parameterTypes[i] = readClass(kryo, input);
+                }
+            }
+
+            Object[] args = null;
+            length = input.readInt(true);
+            if (length > 0) {
+                args = new Object[length - 1];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = kryo.readClassAndObject(input);
+                }
+            }
+
+            return new InvocationContext(targetClass, methodName, parameterTypes, args);
+        }
+    }
+
+    private static Class readClass(Kryo kryo, Input input) {
+        Registration registration = kryo.readClass(input);
+        return registration == null ? null : registration.getType();
+    }
+
+    private static void writeBytes(Output output, byte[] bytes) {
+
+        output.writeInt(bytes == null ? 0 : bytes.length + 1, true);
+
+        if (bytes != null) {
+            output.writeBytes(bytes);
+        }
+    }
+
+    private static byte[] readBytes(Input input) {
+
+        int length = input.readInt(true);
+
+        return length == 0 ? null : input.readBytes(length - 1);
+    }
+}
@@ -23,4 +23,28 @@ public class ByteUtils {
         return Integer.valueOf(new String(bytes));
     }
 
+    public static byte[] longToFixedBytes(long num) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) num;
+            num >>>= 8;
+        }
+        return bytes;
+    }
+
+    public static long fixedBytesToLong(byte[] bytes) {
+        long num = 0;
+        for (int i = 0; i < 8; i++) {
+            num = (num << 8) | (bytes[i] & 0xff);
+        }
+        return num;
+    }
+
+    public static byte[] intToFixedBytes(int num) {
+        return new byte[]{(byte) (num >>> 24), (byte) (num >>> 16), (byte) (num >>> 8), (byte) num};
+    }
+
+    public static int fixedBytesToInt(byte[] bytes) {
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+    }
 }
@@ -8,4 +8,14 @@ public class LuaScriptConstant {
             "\treturn 0\n" +
             "end";
 
+    //sets field KEYS[2] to ARGV[1] on a hash in the binary layout, or to ARGV[2] on a hash in the string layout.
+    public static String HSET_LAYOUT_VALUE_IF_KEY_EXISTS = "if redis.call(\"exists\",KEYS[1])==1 then\n" +
+            "\tif redis.call(\"hexists\",KEYS[1],\"LAYOUT\")==1 then\n" +
+            "\t\treturn redis.call(\"hset\",KEYS[1],KEYS[2],ARGV[1])\n" +
+            "\tend\n" +
+            "\treturn redis.call(\"hset\",KEYS[1],KEYS[2],ARGV[2])\n" +
+            "else\n" +
+            "\treturn 0\n" +
+            "end";
+
 }
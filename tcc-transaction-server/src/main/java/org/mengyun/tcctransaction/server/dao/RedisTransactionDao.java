@@ -1,18 +1,21 @@
 package org.mengyun.tcctransaction.server.dao;
 
-import org.apache.commons.lang3.time.DateUtils;
+import com.alibaba.fastjson.JSON;
 import org.apache.log4j.Logger;
-import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.api.XidKeyCodec;
 import org.mengyun.tcctransaction.repository.TransactionIOException;
+import org.mengyun.tcctransaction.repository.helper.ExpandTransactionSerializer;
 import org.mengyun.tcctransaction.repository.helper.JedisCallback;
 import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
 import org.mengyun.tcctransaction.server.constants.LuaScriptConstant;
 import org.mengyun.tcctransaction.server.dto.PageDto;
 import org.mengyun.tcctransaction.server.vo.TransactionVo;
 import org.mengyun.tcctransaction.utils.ByteUtils;
 import redis.clients.jedis.*;
 
-import java.text.ParseException;
 import java.util.*;
 
 /**
@@ -30,6 +33,8 @@ public class RedisTransactionDao implements TransactionDao {
 
     private String domain;
 
+    private ObjectSerializer serializer = new KryoPoolSerializer();
+
     @Override
     public String getDomain() {
         return domain;
@@ -39,6 +44,10 @@ public class RedisTransactionDao implements TransactionDao {
         this.domain = domain;
     }
 
+    public void setSerializer(ObjectSerializer serializer) {
+        this.serializer = serializer;
+    }
+
     public void setJedisPool(JedisPool jedisPool) {
         this.jedisPool = jedisPool;
     }
@@ -58,10 +67,10 @@ public class RedisTransactionDao implements TransactionDao {
             @Override
             public Boolean doInJedis(Jedis jedis) {
 
-                byte[] key = RedisHelper.getRedisKey(getKeyPrefix(), globalTxId, branchQualifier);
+                byte[] key = getRedisKey(jedis, "", globalTxId, branchQualifier);
 
-                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_KEY2_IF_KKEY1_EXISTS.getBytes(),
-                        3, key, key, "STATUS".getBytes(), ByteUtils.intToBytes(2));
+                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_LAYOUT_VALUE_IF_KEY_EXISTS.getBytes(),
+                        2, key, "STATUS".getBytes(), ByteUtils.intToFixedBytes(2), ByteUtils.intToBytes(2));
 
                 return result == 0;
             }
@@ -74,10 +83,10 @@ public class RedisTransactionDao implements TransactionDao {
             @Override
             public Boolean doInJedis(Jedis jedis) {
 
-                byte[] key = RedisHelper.getRedisKey(getKeyPrefix(), globalTxId, branchQualifier);
+                byte[] key = getRedisKey(jedis, "", globalTxId, branchQualifier);
 
-                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_KEY2_IF_KKEY1_EXISTS.getBytes(),
-                        3, key, key, "STATUS".getBytes(), ByteUtils.intToBytes(3));
+                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_LAYOUT_VALUE_IF_KEY_EXISTS.getBytes(),
+                        2, key, "STATUS".getBytes(), ByteUtils.intToFixedBytes(3), ByteUtils.intToBytes(3));
 
                 return result == 0;
             }
@@ -89,7 +98,7 @@ public class RedisTransactionDao implements TransactionDao {
         RedisHelper.execute(jedisPool, new JedisCallback<Boolean>() {
             @Override
             public Boolean doInJedis(Jedis jedis) {
-                String key = new String(RedisHelper.getRedisKey(getKeyPrefix(), globalTxId, branchQualifier));
+                String key = new String(getRedisKey(jedis, "", globalTxId, branchQualifier));
                 String delKeyName = DELETE_KEY_PREIFX + key;
                 if (jedis.del(delKeyName) > 0) {
                     return true;
@@ -106,7 +115,7 @@ public class RedisTransactionDao implements TransactionDao {
         RedisHelper.execute(jedisPool, new JedisCallback<Boolean>() {
             @Override
             public Boolean doInJedis(Jedis jedis) {
-                String restoreKeyName = new String(RedisHelper.getRedisKey(getKeyPrefix(), globalTxId, branchQualifier));
+                String restoreKeyName = new String(getRedisKey(jedis, DELETE_KEY_PREIFX, globalTxId, branchQualifier));
                 String deleteKeyName = DELETE_KEY_PREIFX + restoreKeyName;
                 Long result = jedis.renamenx(deleteKeyName, restoreKeyName);
                 jedis.persist(restoreKeyName);
@@ -122,11 +131,11 @@ public class RedisTransactionDao implements TransactionDao {
             @Override
             public Boolean doInJedis(Jedis jedis) {
 
-                byte[] key = RedisHelper.getRedisKey(getKeyPrefix(), globalTxId, branchQualifier);
+                byte[] key = getRedisKey(jedis, "", globalTxId, branchQualifier);
 
 
-                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_KEY2_IF_KKEY1_EXISTS.getBytes(),
-                        3, key, key, "RETRIED_COUNT".getBytes(), ByteUtils.intToBytes(0));
+                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_LAYOUT_VALUE_IF_KEY_EXISTS.getBytes(),
+                        2, key, "RETRIED_COUNT".getBytes(), ByteUtils.intToFixedBytes(0), ByteUtils.intToBytes(0));
 
                 return result == 0;
             }
@@ -228,60 +237,91 @@ public class RedisTransactionDao implements TransactionDao {
         List<TransactionVo> list = new ArrayList<TransactionVo>();
 
         for (Object data : result) {
-            try {
 
-                Map<byte[], byte[]> map1 = (Map<byte[], byte[]>) data;
+            Map<byte[], byte[]> map1 = (Map<byte[], byte[]>) data;
 
-                Map<String, byte[]> propertyMap = new HashMap<String, byte[]>();
+            Map<String, byte[]> propertyMap = new HashMap<String, byte[]>();
 
-                for (Map.Entry<byte[], byte[]> entry : map1.entrySet()) {
-                    propertyMap.put(new String(entry.getKey()), entry.getValue());
-                }
+            for (Map.Entry<byte[], byte[]> entry : map1.entrySet()) {
+                propertyMap.put(new String(entry.getKey()), entry.getValue());
+            }
 
 
-                TransactionVo transactionVo = new TransactionVo();
-                transactionVo.setDomain(domain);
-                if (propertyMap.get("GLOBAL_TX_ID") != null) {
-                    transactionVo.setGlobalTxId(UUID.nameUUIDFromBytes(propertyMap.get("GLOBAL_TX_ID")).toString());
-                } else {
-                    continue;
-                }
-                if (propertyMap.get("BRANCH_QUALIFIER") != null) {
-                    transactionVo.setBranchQualifier(UUID.nameUUIDFromBytes(propertyMap.get("BRANCH_QUALIFIER")).toString());
-                } else {
-                    continue;
-                }
-                if (propertyMap.get("STATUS") != null) {
-                    transactionVo.setStatus(ByteUtils.bytesToInt(propertyMap.get("STATUS")));
-                }
-                if (propertyMap.get("TRANSACTION_TYPE") != null) {
-                    transactionVo.setTransactionType(ByteUtils.bytesToInt(propertyMap.get("TRANSACTION_TYPE")));
-                }
-                if (propertyMap.get("RETRIED_COUNT") != null) {
-                    transactionVo.setRetriedCount(ByteUtils.bytesToInt(propertyMap.get("RETRIED_COUNT")));
-                }
-                if (propertyMap.get("CREATE_TIME") != null) {
-                    transactionVo.setCreateTime(DateUtils
-                            .parseDate(new String(propertyMap.get("CREATE_TIME")), "yyyy-MM-dd HH:mm:ss"));
-                }
-                if (propertyMap.get("LAST_UPDATE_TIME") != null) {
-                    transactionVo.setLastUpdateTime(DateUtils
-                            .parseDate(new String(propertyMap.get("LAST_UPDATE_TIME")), "yyyy-MM-dd HH:mm:ss"));
-                }
-                if (propertyMap.get("CONTENT_VIEW") != null) {
-                    transactionVo.setContentView(new String(propertyMap.get("CONTENT_VIEW")));
-                    transactionVo.parser();
-                }
-                list.add(transactionVo);
+            TransactionVo transactionVo = new TransactionVo();
+            transactionVo.setDomain(domain);
+            if (propertyMap.get("GLOBAL_TX_ID") != null) {
+                transactionVo.setGlobalTxId(XidKeyCodec.toHex(propertyMap.get("GLOBAL_TX_ID")));
+            } else {
+                continue;
+            }
+            if (propertyMap.get("BRANCH_QUALIFIER") != null) {
+                transactionVo.setBranchQualifier(XidKeyCodec.toHex(propertyMap.get("BRANCH_QUALIFIER")));
+            } else {
+                continue;
+            }
+            boolean binaryLayout = ExpandTransactionSerializer.isBinaryLayout(propertyMap.get("LAYOUT"));
 
-            } catch (ParseException e) {
-                throw new SystemException(e);
+            if (propertyMap.get("STATUS") != null) {
+                transactionVo.setStatus(ExpandTransactionSerializer.decodeInt(propertyMap.get("STATUS"), binaryLayout));
+            }
+            if (propertyMap.get("TRANSACTION_TYPE") != null) {
+                transactionVo.setTransactionType(ExpandTransactionSerializer.decodeInt(propertyMap.get("TRANSACTION_TYPE"), binaryLayout));
             }
+            if (propertyMap.get("RETRIED_COUNT") != null) {
+                transactionVo.setRetriedCount(ExpandTransactionSerializer.decodeInt(propertyMap.get("RETRIED_COUNT"), binaryLayout));
+            }
+            if (propertyMap.get("CREATE_TIME") != null) {
+                transactionVo.setCreateTime(ExpandTransactionSerializer.decodeDate(propertyMap.get("CREATE_TIME"), binaryLayout));
+            }
+            if (propertyMap.get("LAST_UPDATE_TIME") != null) {
+                transactionVo.setLastUpdateTime(ExpandTransactionSerializer.decodeDate(propertyMap.get("LAST_UPDATE_TIME"), binaryLayout));
+            }
+            if (propertyMap.get("CONTENT_VIEW") != null) {
+                transactionVo.setContentView(new String(propertyMap.get("CONTENT_VIEW")));
+            } else if (propertyMap.get("CONTENT") != null) {
+                transactionVo.setContentView(renderContentView(map1));
+            }
+            if (transactionVo.getContentView() != null) {
+                transactionVo.parser();
+            }
+            list.add(transactionVo);
+
         }
 
         return list;
     }
 
+    //the repository may be configured to not write CONTENT_VIEW, then the view is rendered from CONTENT and the participant fields of delta updates.
+    private String renderContentView(Map<byte[], byte[]> fields) {
+        try {
+            return JSON.toJSONString(ExpandTransactionSerializer.deserialize(serializer, fields));
+        } catch (Exception e) {
+            logger.warn("cannot render content view, the classes of the transaction content may be missing.", e);
+            return null;
+        }
+    }
+
+    /**
+     * ids are shown as hex of the raw bytes, the key is rebuilt from them. a transaction stored before
+     * XidKeyCodec is still found under its md5 based key.
+     */
+    private byte[] getRedisKey(Jedis jedis, String namePrefix, String globalTxId, String branchQualifier) {
+
+        TransactionXid xid = new TransactionXid(XidKeyCodec.fromHex(globalTxId), XidKeyCodec.fromHex(branchQualifier));
+
+        byte[] key = RedisHelper.getRedisKey(getKeyPrefix(), xid);
+
+        if (!jedis.exists((namePrefix + new String(key)).getBytes())) {
+            byte[] legacyKey = RedisHelper.getLegacyRedisKey(getKeyPrefix(), xid);
+
+            if (jedis.exists((namePrefix + new String(legacyKey)).getBytes())) {
+                return legacyKey;
+            }
+        }
+
+        return key;
+    }
+
     private String getKeyPrefix() {
         return keySuffix + ":";
     }
@@ -15,3 +15,15 @@ CREATE TABLE `TCC_TRANSACTION` (
 ) ENGINE=InnoDB AUTO_INCREMENT=1 DEFAULT CHARSET=utf8;
 
 ALTER TABLE `TCC_TRANSACTION` ADD `IS_DELETE` tinyint(1) DEFAULT 0 NOT NULL;
+
+-- key order of the recovery scan of JdbcTransactionRepository, read a page at a time.
+ALTER TABLE `TCC_TRANSACTION` ADD INDEX `IDX_RECOVERY` (`LAST_UPDATE_TIME`,`GLOBAL_TX_ID`,`BRANCH_QUALIFIER`);
+
+-- participants stored by JdbcTransactionRepository with deltaUpdate enabled, named after the transaction table plus _PARTICIPANT.
+CREATE TABLE `TCC_TRANSACTION_PARTICIPANT` (
+  `GLOBAL_TX_ID` varbinary(32) NOT NULL,
+  `BRANCH_QUALIFIER` varbinary(32) NOT NULL,
+  `PARTICIPANT_INDEX` int(11) NOT NULL,
+  `CONTENT` varbinary(8000) DEFAULT NULL,
+  PRIMARY KEY (`GLOBAL_TX_ID`,`BRANCH_QUALIFIER`,`PARTICIPANT_INDEX`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
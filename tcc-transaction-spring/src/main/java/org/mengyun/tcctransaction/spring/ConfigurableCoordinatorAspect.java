@@ -14,10 +14,13 @@ public class ConfigurableCoordinatorAspect extends ResourceCoordinatorAspect imp
 
     private TransactionConfigurator transactionConfigurator;
 
+    private boolean compactCancelContext = false;
+
     public void init() {
 
         ResourceCoordinatorInterceptor resourceCoordinatorInterceptor = new ResourceCoordinatorInterceptor();
         resourceCoordinatorInterceptor.setTransactionManager(transactionConfigurator.getTransactionManager());
+        resourceCoordinatorInterceptor.setCompactCancelContext(compactCancelContext);
         this.setResourceCoordinatorInterceptor(resourceCoordinatorInterceptor);
     }
 
@@ -29,4 +32,11 @@ public class ConfigurableCoordinatorAspect extends ResourceCoordinatorAspect imp
     public void setTransactionConfigurator(TransactionConfigurator transactionConfigurator) {
         this.transactionConfigurator = transactionConfigurator;
     }
+
+    /**
+     * see ResourceCoordinatorInterceptor.setCompactCancelContext, set it before init.
+     */
+    public void setCompactCancelContext(boolean compactCancelContext) {
+        this.compactCancelContext = compactCancelContext;
+    }
 }
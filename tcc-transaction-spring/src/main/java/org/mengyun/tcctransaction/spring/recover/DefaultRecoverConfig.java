@@ -18,6 +18,8 @@ public class DefaultRecoverConfig implements RecoverConfig {
 
     private int recoverDuration = 120; //120 seconds
 
+    private int recoverBatchSize = 1000;
+
     private String cronExpression = "0 */1 * * * ?";
 
     private int asyncTerminateThreadCorePoolSize = 512;
@@ -26,6 +28,14 @@ public class DefaultRecoverConfig implements RecoverConfig {
 
     private int asyncTerminateThreadWorkQueueSize = 512;
 
+    private boolean parallelTerminate = false;
+
+    private int parallelTerminateThreadCorePoolSize = 64;
+
+    private int parallelTerminateThreadMaxPoolSize = 256;
+
+    private int parallelTerminateThreadWorkQueueSize = 1024;
+
     private Set<Class<? extends Exception>> delayCancelExceptions = new HashSet<Class<? extends Exception>>();
 
     public DefaultRecoverConfig() {
@@ -43,6 +53,11 @@ public class DefaultRecoverConfig implements RecoverConfig {
         return recoverDuration;
     }
 
+    @Override
+    public int getRecoverBatchSize() {
+        return recoverBatchSize;
+    }
+
     @Override
     public String getCronExpression() {
         return cronExpression;
@@ -57,6 +72,10 @@ public class DefaultRecoverConfig implements RecoverConfig {
         this.recoverDuration = recoverDuration;
     }
 
+    public void setRecoverBatchSize(int recoverBatchSize) {
+        this.recoverBatchSize = recoverBatchSize;
+    }
+
     public void setCronExpression(String cronExpression) {
         this.cronExpression = cronExpression;
     }
@@ -73,6 +92,22 @@ public class DefaultRecoverConfig implements RecoverConfig {
         this.asyncTerminateThreadWorkQueueSize = asyncTerminateThreadWorkQueueSize;
     }
 
+    public void setParallelTerminate(boolean parallelTerminate) {
+        this.parallelTerminate = parallelTerminate;
+    }
+
+    public void setParallelTerminateThreadCorePoolSize(int parallelTerminateThreadCorePoolSize) {
+        this.parallelTerminateThreadCorePoolSize = parallelTerminateThreadCorePoolSize;
+    }
+
+    public void setParallelTerminateThreadMaxPoolSize(int parallelTerminateThreadMaxPoolSize) {
+        this.parallelTerminateThreadMaxPoolSize = parallelTerminateThreadMaxPoolSize;
+    }
+
+    public void setParallelTerminateThreadWorkQueueSize(int parallelTerminateThreadWorkQueueSize) {
+        this.parallelTerminateThreadWorkQueueSize = parallelTerminateThreadWorkQueueSize;
+    }
+
     @Override
     public void setDelayCancelExceptions(Set<Class<? extends Exception>> delayCancelExceptions) {
         this.delayCancelExceptions.addAll(delayCancelExceptions);
@@ -98,4 +133,24 @@ public class DefaultRecoverConfig implements RecoverConfig {
         return this.asyncTerminateThreadWorkQueueSize;
     }
 
+    @Override
+    public boolean isParallelTerminate() {
+        return this.parallelTerminate;
+    }
+
+    @Override
+    public int getParallelTerminateThreadCorePoolSize() {
+        return this.parallelTerminateThreadCorePoolSize;
+    }
+
+    @Override
+    public int getParallelTerminateThreadMaxPoolSize() {
+        return this.parallelTerminateThreadMaxPoolSize;
+    }
+
+    @Override
+    public int getParallelTerminateThreadWorkQueueSize() {
+        return this.parallelTerminateThreadWorkQueueSize;
+    }
+
 }
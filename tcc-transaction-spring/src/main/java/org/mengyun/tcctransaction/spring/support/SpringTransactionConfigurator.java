@@ -18,6 +18,8 @@ public class SpringTransactionConfigurator implements TransactionConfigurator {
 
     private static volatile ExecutorService executorService = null;
 
+    private static volatile ExecutorService parallelTerminateExecutorService = null;
+
     @Autowired
     private TransactionRepository transactionRepository;
 
@@ -27,61 +29,104 @@ public class SpringTransactionConfigurator implements TransactionConfigurator {
 
     private TransactionManager transactionManager;
 
+    private boolean deferRootCreate = false;
+
+    private boolean bufferedTry = false;
+
+    /**
+     * see TransactionManager.setDeferRootCreate.
+     */
+    public void setDeferRootCreate(boolean deferRootCreate) {
+        this.deferRootCreate = deferRootCreate;
+    }
+
+    /**
+     * see TransactionManager.setBufferedTry.
+     */
+    public void setBufferedTry(boolean bufferedTry) {
+        this.bufferedTry = bufferedTry;
+    }
+
     public void init() {
         transactionManager = new TransactionManager();
         transactionManager.setTransactionRepository(transactionRepository);
 
         if (executorService == null) {
 
-
-            Executors.defaultThreadFactory();
             synchronized (SpringTransactionConfigurator.class) {
 
                 if (executorService == null) {
-                    executorService = new ThreadPoolExecutor(
+                    executorService = newThreadPoolExecutor(
                             recoverConfig.getAsyncTerminateThreadCorePoolSize(),
                             recoverConfig.getAsyncTerminateThreadMaxPoolSize(),
-                            5L,
-                            TimeUnit.SECONDS,
-                            new ArrayBlockingQueue<Runnable>(recoverConfig.getAsyncTerminateThreadWorkQueueSize()),
-                            new ThreadFactory() {
-
-                                final AtomicInteger poolNumber = new AtomicInteger(1);
-                                final ThreadGroup group;
-                                final AtomicInteger threadNumber = new AtomicInteger(1);
-                                final String namePrefix;
-
-                                {
-                                    SecurityManager securityManager = System.getSecurityManager();
-                                    this.group = securityManager != null ? securityManager.getThreadGroup() : Thread.currentThread().getThreadGroup();
-                                    this.namePrefix = "tcc-async-terminate-pool-" + poolNumber.getAndIncrement() + "-thread-";
-                                }
-
-                                public Thread newThread(Runnable runnable) {
-                                    Thread thread = new Thread(this.group, runnable, this.namePrefix + this.threadNumber.getAndIncrement(), 0L);
-                                    if (thread.isDaemon()) {
-                                        thread.setDaemon(false);
-                                    }
-
-                                    if (thread.getPriority() != 5) {
-                                        thread.setPriority(5);
-                                    }
-
-                                    return thread;
-                                }
-                            },
-                            new ThreadPoolExecutor.CallerRunsPolicy());
+                            recoverConfig.getAsyncTerminateThreadWorkQueueSize(),
+                            "tcc-async-terminate-pool-");
+                }
+            }
+        }
+
+        if (parallelTerminateExecutorService == null) {
+
+            synchronized (SpringTransactionConfigurator.class) {
+
+                if (parallelTerminateExecutorService == null) {
+                    parallelTerminateExecutorService = newThreadPoolExecutor(
+                            recoverConfig.getParallelTerminateThreadCorePoolSize(),
+                            recoverConfig.getParallelTerminateThreadMaxPoolSize(),
+                            recoverConfig.getParallelTerminateThreadWorkQueueSize(),
+                            "tcc-parallel-terminate-pool-");
                 }
             }
         }
 
         transactionManager.setExecutorService(executorService);
+        transactionManager.setParallelTerminateExecutorService(parallelTerminateExecutorService);
+        transactionManager.setParallelTerminate(recoverConfig.isParallelTerminate());
+        transactionManager.setDeferRootCreate(deferRootCreate);
+        transactionManager.setBufferedTry(bufferedTry);
 
         if (transactionRepository instanceof CachableTransactionRepository) {
             ((CachableTransactionRepository) transactionRepository).setExpireDuration(recoverConfig.getRecoverDuration());
         }
     }
 
+    private static ExecutorService newThreadPoolExecutor(int corePoolSize, int maxPoolSize, int workQueueSize, final String poolNamePrefix) {
+
+        return new ThreadPoolExecutor(
+                corePoolSize,
+                maxPoolSize,
+                5L,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(workQueueSize),
+                new ThreadFactory() {
+
+                    final AtomicInteger poolNumber = new AtomicInteger(1);
+                    final ThreadGroup group;
+                    final AtomicInteger threadNumber = new AtomicInteger(1);
+                    final String namePrefix;
+
+                    {
+                        SecurityManager securityManager = System.getSecurityManager();
+                        this.group = securityManager != null ? securityManager.getThreadGroup() : Thread.currentThread().getThreadGroup();
+                        this.namePrefix = poolNamePrefix + poolNumber.getAndIncrement() + "-thread-";
+                    }
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(this.group, runnable, this.namePrefix + this.threadNumber.getAndIncrement(), 0L);
+                        if (thread.isDaemon()) {
+                            thread.setDaemon(false);
+                        }
+
+                        if (thread.getPriority() != 5) {
+                            thread.setPriority(5);
+                        }
+
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
     @Override
     public TransactionManager getTransactionManager() {
         return transactionManager;
@@ -0,0 +1,241 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
+import org.mengyun.tcctransaction.repository.ClusterRedisTransactionRepository;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisCluster;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Runs the cluster repository against a live Redis Cluster, the nodes are given by the system property
+ * tcc.redis.cluster.nodes, 127.0.0.1:7000,127.0.0.1:7001,127.0.0.1:7002 by default. skipped when no node is reachable.
+ */
+public class ClusterRedisTransactionRepositoryTest {
+
+    private static final String NODES = System.getProperty("tcc.redis.cluster.nodes", "127.0.0.1:7000,127.0.0.1:7001,127.0.0.1:7002");
+
+    //enough keys for every master of a small cluster to serve some.
+    private static final int TRANSACTION_COUNT = 60;
+
+    private JedisCluster jedisCluster;
+
+    //a prefix of its own per run, so the scans see the keys of this run only.
+    private String keyPrefix;
+
+    private final List<Transaction> transactions = new ArrayList<Transaction>();
+
+    @Before
+    public void before() {
+
+        Set<HostAndPort> nodes = new HashSet<HostAndPort>();
+
+        for (String node : NODES.split(",")) {
+            String[] hostAndPort = node.trim().split(":");
+            nodes.add(new HostAndPort(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+        }
+
+        Assume.assumeTrue("no redis cluster node of " + NODES + " is reachable", isReachable(nodes));
+
+        jedisCluster = new JedisCluster(nodes);
+        keyPrefix = "TCC:TEST:" + System.currentTimeMillis() + ":";
+
+        ClusterRedisTransactionRepository repository = newRepository();
+
+        for (int i = 0; i < TRANSACTION_COUNT; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            repository.create(transaction);
+            transactions.add(transaction);
+        }
+    }
+
+    @After
+    public void after() throws IOException {
+
+        if (jedisCluster == null) {
+            return;
+        }
+
+        try {
+            ClusterRedisTransactionRepository repository = newRepository();
+
+            for (Transaction transaction : transactions) {
+                repository.delete(transaction);
+            }
+        } finally {
+            jedisCluster.close();
+        }
+    }
+
+    @Test
+    public void testCreateUpdateDelete() {
+
+        ClusterRedisTransactionRepository repository = newRepository();
+
+        Transaction transaction = newRepository().findByXid(xidOf(transactions.get(0)));
+        Assert.assertNotNull(transaction);
+
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        Assert.assertEquals(1, repository.update(transaction));
+
+        Transaction found = newRepository().findByXid(xidOf(transaction));
+        Assert.assertEquals(TransactionStatus.CONFIRMING, found.getStatus());
+        Assert.assertEquals(transaction.getVersion(), found.getVersion());
+
+        Assert.assertEquals(1, repository.delete(transaction));
+        Assert.assertNull(newRepository().findByXid(xidOf(transaction)));
+    }
+
+    @Test
+    public void testFindByXidsAcrossMasters() {
+
+        //the slots of the masters are read by CLUSTER SLOTS, the keys of each master by a pipeline on it.
+        assertFound(newRepository().findByXids(xidsOf(transactions)));
+    }
+
+    @Test
+    public void testMovedKeysReadThroughCluster() throws Exception {
+
+        ClusterRedisTransactionRepository repository = newRepository();
+
+        //every slot is taken for the first master, the keys of the other masters are answered by MOVED.
+        String[] slotNodes = (String[]) getSlotNodesField().get(readSlotNodes(repository));
+
+        String master = null;
+
+        for (String node : slotNodes) {
+            if (node != null) {
+                master = node;
+                break;
+            }
+        }
+
+        String[] wrongNodes = new String[slotNodes.length];
+        Arrays.fill(wrongNodes, master);
+        getSlotNodesField().set(repository, wrongNodes);
+
+        assertFound(repository.findByXids(xidsOf(transactions)));
+
+        //the slots are read again by the next call.
+        Assert.assertNull(getSlotNodesField().get(repository));
+    }
+
+    @Test
+    public void testScanEveryMaster() {
+
+        ClusterRedisTransactionRepository repository = newRepository();
+        repository.setFetchKeySize(7);
+
+        Date future = new Date(System.currentTimeMillis() + 60 * 1000L);
+
+        assertFound(repository.findAllUnmodifiedSince(future));
+
+        final List<RecoverableTransaction> listed = Collections.synchronizedList(new ArrayList<RecoverableTransaction>());
+
+        repository.scanRecoverableUnmodifiedSince(future, 5, new RecoverableTransaction.BatchHandler() {
+            @Override
+            public void handle(List<RecoverableTransaction> batch) {
+                Assert.assertTrue(batch.size() <= 5);
+                listed.addAll(batch);
+            }
+        });
+
+        List<Transaction> loaded = new ArrayList<Transaction>();
+
+        for (RecoverableTransaction recoverableTransaction : listed) {
+            loaded.add(recoverableTransaction.getTransaction());
+        }
+
+        assertFound(loaded);
+
+        Assert.assertTrue(repository.findAllUnmodifiedSince(new Date(0)).isEmpty());
+    }
+
+    private ClusterRedisTransactionRepository newRepository() {
+
+        ClusterRedisTransactionRepository repository = new ClusterRedisTransactionRepository();
+        repository.setJedisCluster(jedisCluster);
+        repository.setKeyPrefix(keyPrefix);
+        return repository;
+    }
+
+    //a find of many keys reads the slots of the masters first.
+    private static ClusterRedisTransactionRepository readSlotNodes(ClusterRedisTransactionRepository repository) {
+        repository.findByXids(Collections.singletonList(new TransactionXid()));
+        return repository;
+    }
+
+    private static Field getSlotNodesField() throws NoSuchFieldException {
+        Field field = ClusterRedisTransactionRepository.class.getDeclaredField("slotNodes");
+        field.setAccessible(true);
+        return field;
+    }
+
+    //the transactions found are the transactions of this run, each once at most.
+    private void assertFound(List<Transaction> found) {
+
+        Set<TransactionXid> expected = new HashSet<TransactionXid>(xidsOf(transactions));
+        Set<TransactionXid> actual = new HashSet<TransactionXid>(xidsOf(found));
+
+        Assert.assertEquals(expected, actual);
+    }
+
+    private static List<TransactionXid> xidsOf(List<Transaction> transactions) {
+
+        List<TransactionXid> xids = new ArrayList<TransactionXid>();
+
+        for (Transaction transaction : transactions) {
+            xids.add(xidOf(transaction));
+        }
+
+        return xids;
+    }
+
+    private static TransactionXid xidOf(Transaction transaction) {
+        return (TransactionXid) transaction.getXid();
+    }
+
+    private static boolean isReachable(Set<HostAndPort> nodes) {
+
+        for (HostAndPort node : nodes) {
+
+            Jedis jedis = null;
+
+            try {
+                jedis = new Jedis(node.getHost(), node.getPort());
+
+                List<Object> slots = jedis.clusterSlots();
+
+                if (slots != null && !slots.isEmpty()) {
+                    return true;
+                }
+            } catch (Exception e) {
+                //not reachable or not in cluster mode, the next node is tried.
+            } finally {
+                if (jedis != null) {
+                    jedis.close();
+                }
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,122 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.serializer.CompressingSerializer;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Payloads below and above the threshold of the compressing serializer, and compressed payloads it must reject.
+ */
+public class CompressingSerializerTest {
+
+    private static final byte MARKER = (byte) 0xDF;
+
+    private final KryoPoolSerializer delegate = new KryoPoolSerializer(1);
+
+    @Test
+    public void testPayloadBelowThresholdStoredAsItIs() {
+
+        CompressingSerializer serializer = newSerializer();
+
+        Transaction transaction = newTransaction(1);
+
+        byte[] bytes = serializer.serialize(transaction);
+
+        Assert.assertTrue(bytes.length <= 1024);
+        Assert.assertArrayEquals(delegate.serialize(transaction), bytes);
+        assertSame(transaction, serializer.deserialize(bytes));
+    }
+
+    @Test
+    public void testPayloadAboveThresholdCompressed() {
+
+        CompressingSerializer serializer = newSerializer();
+
+        Transaction transaction = newTransaction(50);
+
+        byte[] uncompressed = delegate.serialize(transaction);
+        byte[] bytes = serializer.serialize(transaction);
+
+        Assert.assertTrue(uncompressed.length > 1024);
+        Assert.assertEquals(MARKER, bytes[0]);
+        Assert.assertEquals(uncompressed.length, ByteBuffer.wrap(bytes, 1, 4).getInt());
+        Assert.assertTrue(bytes.length < uncompressed.length);
+
+        assertSame(transaction, serializer.deserialize(bytes));
+
+        //data written before compression was enabled stays readable.
+        assertSame(transaction, serializer.deserialize(uncompressed));
+    }
+
+    @Test
+    public void testCorruptedStoredLengthRejected() {
+
+        CompressingSerializer serializer = newSerializer();
+
+        byte[] bytes = serializer.serialize(newTransaction(50));
+        int length = ByteBuffer.wrap(bytes, 1, 4).getInt();
+
+        for (int storedLength : new int[]{0, -1, Integer.MAX_VALUE, length + 1, length - 1}) {
+
+            byte[] corrupted = Arrays.copyOf(bytes, bytes.length);
+            ByteBuffer.wrap(corrupted, 1, 4).putInt(storedLength);
+
+            assertRejected(serializer, corrupted);
+        }
+
+        assertRejected(serializer, Arrays.copyOf(bytes, 3));
+        assertRejected(serializer, Arrays.copyOf(bytes, bytes.length / 2));
+    }
+
+    private static void assertRejected(CompressingSerializer serializer, byte[] bytes) {
+        try {
+            serializer.deserialize(bytes);
+            Assert.fail("a corrupted payload of " + bytes.length + " bytes was read");
+        } catch (SystemException e) {
+            //expected
+        }
+    }
+
+    private CompressingSerializer newSerializer() {
+        CompressingSerializer serializer = new CompressingSerializer(delegate);
+        serializer.setThreshold(1024);
+        return serializer;
+    }
+
+    private static void assertSame(Transaction expected, Transaction actual) {
+
+        Assert.assertEquals(expected.getXid(), actual.getXid());
+        Assert.assertEquals(expected.getStatus(), actual.getStatus());
+        Assert.assertEquals(expected.getVersion(), actual.getVersion());
+        Assert.assertEquals(expected.getParticipants().size(), actual.getParticipants().size());
+
+        for (int i = 0; i < expected.getParticipants().size(); i++) {
+            Assert.assertEquals(expected.getParticipants().get(i).getXid(), actual.getParticipants().get(i).getXid());
+        }
+    }
+
+    private static Transaction newTransaction(int participantCount) {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+
+        for (int i = 0; i < participantCount; i++) {
+            transaction.enlistParticipant(new Participant(new TransactionXid(transaction.getXid().getGlobalTransactionId()),
+                    new InvocationContext(CompressingSerializerTest.class, "confirm", new Class[]{String.class}, "order-" + i),
+                    new InvocationContext(CompressingSerializerTest.class, "cancel", new Class[]{String.class}, "order-" + i),
+                    Compensable.NullableTransactionContextEditor.class));
+        }
+
+        return transaction;
+    }
+}
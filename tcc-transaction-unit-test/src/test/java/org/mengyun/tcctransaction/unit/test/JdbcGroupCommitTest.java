@@ -0,0 +1,273 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.ConcurrentTransactionException;
+import org.mengyun.tcctransaction.OptimisticLockException;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.JdbcTransactionRepository;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every caller of a group committed batch gets the result of its own row, over an in-memory H2 database.
+ */
+public class JdbcGroupCommitTest {
+
+    private static final AtomicInteger databaseNumber = new AtomicInteger();
+
+    private JdbcTransactionRepository repository;
+
+    @After
+    public void after() {
+        if (repository != null) {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void testOptimisticLockMissReturnsZero() throws Exception {
+
+        repository = newRepository(newDataSource());
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 5; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            repository.create(transaction);
+            transactions.add(transaction);
+        }
+
+        //a copy of the first transaction still at its stored version, then the stored version moves on.
+        Transaction stale = copyOf(transactions.get(0));
+        repository.update(transactions.get(0));
+
+        List<Transaction> updates = new ArrayList<Transaction>(transactions.subList(1, transactions.size()));
+        updates.add(stale);
+
+        List<Object> results = runAtOnce(updates, new Operation() {
+            @Override
+            public int execute(Transaction transaction) {
+                return repository.update(transaction);
+            }
+        });
+
+        for (int i = 0; i < updates.size() - 1; i++) {
+            Assert.assertEquals(1, results.get(i));
+        }
+
+        Assert.assertTrue(String.valueOf(results.get(updates.size() - 1)), results.get(updates.size() - 1) instanceof OptimisticLockException);
+    }
+
+    @Test
+    public void testDuplicateKeyReplayedOneByOne() throws Exception {
+
+        repository = newRepository(newDataSource());
+
+        Transaction existing = new Transaction(TransactionType.ROOT);
+        repository.create(existing);
+
+        List<Transaction> creates = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 5; i++) {
+            creates.add(new Transaction(TransactionType.ROOT));
+        }
+
+        creates.add(2, copyOf(existing));
+
+        List<Object> results = runAtOnce(creates, new Operation() {
+            @Override
+            public int execute(Transaction transaction) {
+                return repository.create(transaction);
+            }
+        });
+
+        for (int i = 0; i < creates.size(); i++) {
+            if (i == 2) {
+                Assert.assertTrue(String.valueOf(results.get(i)), results.get(i) instanceof ConcurrentTransactionException);
+            } else {
+                Assert.assertEquals(1, results.get(i));
+            }
+        }
+
+        //the rows of the batch failed by the duplicate are all stored by the replay.
+        JdbcTransactionRepository reader = newRepository(repository.getDataSource());
+
+        for (Transaction transaction : creates) {
+            Assert.assertNotNull(reader.findByXid((TransactionXid) transaction.getXid()));
+        }
+    }
+
+    @Test
+    public void testFailedCommitFailsEveryRequest() throws Exception {
+
+        final DataSource dataSource = newDataSource();
+
+        repository = newRepository(failingCommit(dataSource));
+
+        List<Transaction> creates = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 5; i++) {
+            creates.add(new Transaction(TransactionType.ROOT));
+        }
+
+        List<Object> results = runAtOnce(creates, new Operation() {
+            @Override
+            public int execute(Transaction transaction) {
+                return repository.create(transaction);
+            }
+        });
+
+        for (Object result : results) {
+            Assert.assertTrue(String.valueOf(result), result instanceof TransactionIOException);
+        }
+    }
+
+    //runs the operation on every transaction from its own thread at once, the result is the returned value or the exception thrown.
+    private static List<Object> runAtOnce(List<Transaction> transactions, final Operation operation) throws InterruptedException {
+
+        final Object[] results = new Object[transactions.size()];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < transactions.size(); i++) {
+
+            final int index = i;
+            final Transaction transaction = transactions.get(i);
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results[index] = operation.execute(transaction);
+                    } catch (Throwable throwable) {
+                        results[index] = throwable;
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        List<Object> resultList = new ArrayList<Object>();
+
+        for (Object result : results) {
+            resultList.add(result);
+        }
+
+        return resultList;
+    }
+
+    private static Transaction copyOf(Transaction transaction) {
+        return new Transaction((TransactionXid) transaction.getXid(), transaction.getStatus(), transaction.getTransactionType(),
+                transaction.getRetriedCount(), transaction.getCreateTime(), transaction.getLastUpdateTime(), transaction.getVersion());
+    }
+
+    private static JdbcTransactionRepository newRepository(DataSource dataSource) {
+
+        JdbcTransactionRepository repository = new JdbcTransactionRepository();
+        repository.setDataSource(dataSource);
+        repository.setGroupCommit(true);
+        repository.setGroupCommitBatchSize(16);
+        repository.setGroupCommitMaxWaitMillis(200);
+        return repository;
+    }
+
+    //connections of the data source fail on commit, after the statements of the batch have run.
+    private static DataSource failingCommit(final DataSource dataSource) {
+
+        return (DataSource) Proxy.newProxyInstance(JdbcGroupCommitTest.class.getClassLoader(), new Class[]{DataSource.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                Object result = JdbcGroupCommitTest.invoke(dataSource, method, args);
+
+                if (!method.getName().equals("getConnection")) {
+                    return result;
+                }
+
+                final Connection connection = (Connection) result;
+
+                return Proxy.newProxyInstance(JdbcGroupCommitTest.class.getClassLoader(), new Class[]{Connection.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+                        if (method.getName().equals("commit")) {
+                            throw new SQLException("commit failed");
+                        }
+
+                        return JdbcGroupCommitTest.invoke(connection, method, args);
+                    }
+                });
+            }
+        });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static DataSource newDataSource() throws SQLException {
+
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:tcc_group_commit_" + databaseNumber.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+
+        Connection connection = dataSource.getConnection();
+
+        try {
+            Statement stmt = connection.createStatement();
+            stmt.execute("CREATE TABLE TCC_TRANSACTION (" +
+                    "TRANSACTION_ID INT AUTO_INCREMENT PRIMARY KEY, " +
+                    "DOMAIN VARCHAR(100), " +
+                    "GLOBAL_TX_ID VARBINARY(32) NOT NULL, " +
+                    "BRANCH_QUALIFIER VARBINARY(32) NOT NULL, " +
+                    "CONTENT VARBINARY(8000), " +
+                    "STATUS INT, " +
+                    "TRANSACTION_TYPE INT, " +
+                    "RETRIED_COUNT INT, " +
+                    "CREATE_TIME TIMESTAMP, " +
+                    "LAST_UPDATE_TIME TIMESTAMP, " +
+                    "VERSION INT, " +
+                    "IS_DELETE TINYINT DEFAULT 0 NOT NULL, " +
+                    "UNIQUE (GLOBAL_TX_ID, BRANCH_QUALIFIER))");
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+
+        return dataSource;
+    }
+
+    interface Operation {
+
+        int execute(Transaction transaction);
+    }
+}
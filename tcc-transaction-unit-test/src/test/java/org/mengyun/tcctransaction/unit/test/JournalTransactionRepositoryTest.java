@@ -0,0 +1,338 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
+import org.mengyun.tcctransaction.repository.JournalTransactionRepository;
+import org.mengyun.tcctransaction.repository.helper.TransactionSerializer;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the journal repository over segment files in a temporary directory, reopening it to rebuild the index.
+ */
+public class JournalTransactionRepositoryTest {
+
+    //the bytes of a record besides the xid and the body.
+    private static final int RECORD_OVERHEAD = 4 + 1 + 2 + 2 + 4 + 4;
+
+    private final KryoPoolSerializer serializer = new KryoPoolSerializer(1);
+
+    private File directory;
+
+    @Before
+    public void before() throws IOException {
+        directory = Files.createTempDirectory("tcc-journal-test").toFile();
+    }
+
+    @After
+    public void after() {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void testIndexRebuiltOnReopen() {
+
+        JournalTransactionRepository repository = newRepository(1024 * 1024);
+
+        Transaction created = newTransaction(1);
+        Transaction updated = newTransaction(1);
+        Transaction deleted = newTransaction(1);
+
+        repository.create(created);
+        repository.create(updated);
+        repository.create(deleted);
+
+        enlist(updated, 1);
+        updated.changeStatus(TransactionStatus.CONFIRMING);
+        repository.update(updated);
+
+        repository.delete(deleted);
+
+        JournalTransactionRepository reopened = newRepository(1024 * 1024);
+
+        assertSame(created, reopened.findByXid(xidOf(created)));
+        assertSame(updated, reopened.findByXid(xidOf(updated)));
+        Assert.assertNull(reopened.findByXid(xidOf(deleted)));
+
+        //the version check of the next update runs against the rebuilt index.
+        Transaction found = reopened.findByXid(xidOf(updated));
+        reopened.update(found);
+
+        assertSame(found, newRepository(1024 * 1024).findByXid(xidOf(updated)));
+    }
+
+    @Test
+    public void testCutOffRecordAtEndOfActiveSegment() throws IOException {
+
+        JournalTransactionRepository repository = newRepository(1024 * 1024);
+
+        Transaction first = newTransaction(1);
+        Transaction cutOff = newTransaction(1);
+
+        repository.create(first);
+        repository.create(cutOff);
+
+        //a crash before the checksum of the last record reached the disk.
+        int end = recordLength(first) + recordLength(cutOff);
+
+        RandomAccessFile raf = new RandomAccessFile(segmentFiles()[0], "rw");
+        try {
+            raf.seek(end - 4);
+            raf.write(new byte[4]);
+        } finally {
+            raf.close();
+        }
+
+        JournalTransactionRepository reopened = newRepository(1024 * 1024);
+
+        assertSame(first, reopened.findByXid(xidOf(first)));
+        Assert.assertNull(reopened.findByXid(xidOf(cutOff)));
+
+        //the next record overwrites the cut off one and is read after it on the next reopen.
+        Transaction next = newTransaction(2);
+        reopened.create(next);
+
+        JournalTransactionRepository again = newRepository(1024 * 1024);
+
+        assertSame(first, again.findByXid(xidOf(first)));
+        assertSame(next, again.findByXid(xidOf(next)));
+        Assert.assertNull(again.findByXid(xidOf(cutOff)));
+    }
+
+    @Test
+    public void testCompactMostlyDeadSegment() {
+
+        JournalTransactionRepository repository = newRepository(4096);
+
+        List<Transaction> transactions = createTransactions(repository, 40);
+
+        Assert.assertTrue(segmentFiles().length > 2);
+        File oldest = segmentFiles()[0];
+
+        //only the first two transactions, both in the oldest segment, stay live.
+        for (Transaction transaction : transactions.subList(2, transactions.size())) {
+            repository.delete(transaction);
+        }
+
+        repository.compact();
+
+        Assert.assertFalse(oldest.exists());
+        Assert.assertEquals(1, segmentFiles().length);
+        Assert.assertEquals(2, repository.findAllUnmodifiedSince(future()).size());
+
+        JournalTransactionRepository reopened = newRepository(4096);
+
+        assertSame(transactions.get(0), reopened.findByXid(xidOf(transactions.get(0))));
+        assertSame(transactions.get(1), reopened.findByXid(xidOf(transactions.get(1))));
+
+        for (Transaction transaction : transactions.subList(2, transactions.size())) {
+            Assert.assertNull(reopened.findByXid(xidOf(transaction)));
+        }
+    }
+
+    @Test
+    public void testFindDuringCompaction() throws InterruptedException {
+
+        JournalTransactionRepository repository = newRepository(4096);
+
+        List<Transaction> transactions = createTransactions(repository, 40);
+
+        final List<Transaction> live = new ArrayList<Transaction>();
+
+        for (int i = 0; i < transactions.size(); i++) {
+            if (i % 4 == 0) {
+                live.add(transactions.get(i));
+            } else {
+                repository.delete(transactions.get(i));
+            }
+        }
+
+        //listed before the compaction, loaded after it moved their records.
+        final List<RecoverableTransaction> listed = new ArrayList<RecoverableTransaction>();
+
+        repository.scanRecoverableUnmodifiedSince(future(), 100, new RecoverableTransaction.BatchHandler() {
+            @Override
+            public void handle(List<RecoverableTransaction> batch) {
+                listed.addAll(batch);
+            }
+        });
+
+        final JournalTransactionRepository reader = repository;
+        final AtomicBoolean compacting = new AtomicBoolean(true);
+        final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (compacting.get()) {
+                        Assert.assertEquals(live.size(), reader.findAllUnmodifiedSince(future()).size());
+                    }
+                } catch (Throwable throwable) {
+                    failures.add(throwable);
+                }
+            }
+        });
+        thread.start();
+
+        try {
+            repository.compact();
+        } finally {
+            compacting.set(false);
+            thread.join();
+        }
+
+        Assert.assertEquals(new ArrayList<Throwable>(), failures);
+        Assert.assertTrue(segmentFiles().length < 4);
+
+        Set<TransactionXid> loaded = new HashSet<TransactionXid>();
+
+        for (RecoverableTransaction recoverableTransaction : listed) {
+            loaded.add((TransactionXid) recoverableTransaction.getTransaction().getXid());
+        }
+
+        Set<TransactionXid> expected = new HashSet<TransactionXid>();
+
+        for (Transaction transaction : live) {
+            expected.add(xidOf(transaction));
+        }
+
+        Assert.assertEquals(expected, loaded);
+    }
+
+    @Test
+    public void testListedTransactionLoadsItsCurrentRecord() {
+
+        JournalTransactionRepository repository = newRepository(1024 * 1024);
+
+        Transaction transaction = newTransaction(1);
+        repository.create(transaction);
+
+        final List<RecoverableTransaction> listed = new ArrayList<RecoverableTransaction>();
+
+        repository.scanRecoverableUnmodifiedSince(future(), 100, new RecoverableTransaction.BatchHandler() {
+            @Override
+            public void handle(List<RecoverableTransaction> batch) {
+                listed.addAll(batch);
+            }
+        });
+
+        enlist(transaction, 1);
+        repository.update(transaction);
+
+        Assert.assertEquals(1, listed.size());
+        assertSame(transaction, listed.get(0).getTransaction());
+    }
+
+    private JournalTransactionRepository newRepository(int segmentSize) {
+
+        JournalTransactionRepository repository = new JournalTransactionRepository();
+        repository.setRootPath(directory.getPath());
+        repository.setSegmentSize(segmentSize);
+        repository.setSerializer(serializer);
+        //compaction is run by the tests themselves.
+        repository.setCompactIntervalSeconds(0);
+        return repository;
+    }
+
+    private List<Transaction> createTransactions(JournalTransactionRepository repository, int count) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = newTransaction(1);
+            repository.create(transaction);
+            transactions.add(transaction);
+        }
+
+        return transactions;
+    }
+
+    private int recordLength(Transaction transaction) {
+        return RECORD_OVERHEAD + transaction.getXid().getGlobalTransactionId().length + transaction.getXid().getBranchQualifier().length
+                + TransactionSerializer.serialize(serializer, transaction).length;
+    }
+
+    private File[] segmentFiles() {
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".journal");
+            }
+        });
+
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static Date future() {
+        return new Date(System.currentTimeMillis() + 60 * 1000L);
+    }
+
+    private static TransactionXid xidOf(Transaction transaction) {
+        return (TransactionXid) transaction.getXid();
+    }
+
+    private static void assertSame(Transaction expected, Transaction actual) {
+
+        Assert.assertNotNull(actual);
+        Assert.assertEquals(expected.getXid(), actual.getXid());
+        Assert.assertEquals(expected.getStatus(), actual.getStatus());
+        Assert.assertEquals(expected.getVersion(), actual.getVersion());
+        Assert.assertEquals(expected.getParticipants().size(), actual.getParticipants().size());
+    }
+
+    private static Transaction newTransaction(int participantCount) {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        enlist(transaction, participantCount);
+        return transaction;
+    }
+
+    private static void enlist(Transaction transaction, int participantCount) {
+
+        for (int i = 0; i < participantCount; i++) {
+            transaction.enlistParticipant(new Participant(new TransactionXid(transaction.getXid().getGlobalTransactionId()),
+                    new InvocationContext(JournalTransactionRepositoryTest.class, "confirm", new Class[0]),
+                    new InvocationContext(JournalTransactionRepositoryTest.class, "cancel", new Class[0]),
+                    Compensable.NullableTransactionContextEditor.class));
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -1,14 +1,23 @@
 package org.mengyun.tcctransaction.unit.test;
 
 import org.junit.Test;
+import org.mengyun.tcctransaction.InvocationContext;
 import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Terminator;
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
 import org.mengyun.tcctransaction.common.TransactionType;
 import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
 import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+import org.mengyun.tcctransaction.serializer.RegisteredKryoSerializer;
+import org.mengyun.tcctransaction.support.FactoryBuilder;
 import org.mengyun.tcctransaction.unittest.client.TransferService;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
@@ -58,6 +67,50 @@ public class PerformanceTest extends AbstractTestCase {
         System.out.println(thenTime - currentTime);
     }
 
+    @Test
+    public void registeredSerializeTest() throws Exception {
+
+        RegisteredKryoSerializer.registerType(InvokeTarget.class, RegisteredKryoSerializer.MIN_APPLICATION_TYPE_ID);
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+
+        Class[] parameterTypes = new Class[]{TransactionContext.class, long.class, String.class};
+        Object[] args = new Object[]{new TransactionContext(new TransactionXid(), TransactionStatus.TRYING.getId()), 1L, "order"};
+
+        transaction.enlistParticipant(new Participant((TransactionXid) transaction.getXid(),
+                new InvocationContext(InvokeTarget.class, "confirm", parameterTypes, args),
+                new InvocationContext(InvokeTarget.class, "cancel", parameterTypes, args),
+                Compensable.DefaultTransactionContextEditor.class));
+
+        serializeCost("kryo pool", new KryoPoolSerializer(), transaction);
+        serializeCost("registered kryo", new RegisteredKryoSerializer(), transaction);
+    }
+
+    private void serializeCost(String name, ObjectSerializer<Transaction> objectSerializer, Transaction transaction) {
+
+        int times = 100000;
+
+        for (int i = 0; i < times; i++) {
+            objectSerializer.deserialize(objectSerializer.serialize(transaction));
+        }
+
+        long currentTime = System.currentTimeMillis();
+
+        int size = 0;
+
+        for (int i = 0; i < times; i++) {
+            byte[] bytes = objectSerializer.serialize(transaction);
+            Transaction transaction1 = objectSerializer.deserialize(bytes);
+
+            if (transaction.getVersion() != transaction1.getVersion()) {
+                throw new Error();
+            }
+            size = bytes.length;
+        }
+
+        System.out.println(name + " size:" + size + " cost time:" + (System.currentTimeMillis() - currentTime));
+    }
+
     @Test
     public void testThreadPool() throws ExecutionException, InterruptedException {
 
@@ -87,4 +140,57 @@ public class PerformanceTest extends AbstractTestCase {
         System.out.println("cost time:" + (System.currentTimeMillis() - startTime));
 
     }
+
+    @Test
+    public void terminatorInvokeTest() throws Exception {
+
+        InvocationContext invocationContext = new InvocationContext(InvokeTarget.class, "confirm",
+                new Class[]{TransactionContext.class, long.class, String.class}, null, 1L, "order");
+
+        TransactionContext transactionContext = new TransactionContext(new TransactionXid(), TransactionStatus.CONFIRMING.getId());
+
+        int times = 1000000;
+
+        for (int i = 0; i < times; i++) {
+            reflectiveInvoke(transactionContext, invocationContext);
+            Terminator.invoke(transactionContext, invocationContext, Compensable.DefaultTransactionContextEditor.class);
+        }
+
+        long currentTime = System.currentTimeMillis();
+
+        for (int i = 0; i < times; i++) {
+            reflectiveInvoke(transactionContext, invocationContext);
+        }
+
+        System.out.println("reflective invoke cost time:" + (System.currentTimeMillis() - currentTime));
+
+        currentTime = System.currentTimeMillis();
+
+        for (int i = 0; i < times; i++) {
+            Terminator.invoke(transactionContext, invocationContext, Compensable.DefaultTransactionContextEditor.class);
+        }
+
+        System.out.println("terminator invoke cost time:" + (System.currentTimeMillis() - currentTime));
+    }
+
+    private Object reflectiveInvoke(TransactionContext transactionContext, InvocationContext invocationContext) throws Exception {
+
+        Object target = FactoryBuilder.factoryOf(invocationContext.getTargetClass()).getInstance();
+
+        Method method = target.getClass().getMethod(invocationContext.getMethodName(), invocationContext.getParameterTypes());
+
+        FactoryBuilder.factoryOf(Compensable.DefaultTransactionContextEditor.class).getInstance().set(transactionContext, target, method, invocationContext.getArgs());
+
+        return method.invoke(target, invocationContext.getArgs());
+    }
+
+    public static class InvokeTarget {
+
+        private long total;
+
+        public long confirm(TransactionContext transactionContext, long amount, String name) {
+            total += amount;
+            return total;
+        }
+    }
 }
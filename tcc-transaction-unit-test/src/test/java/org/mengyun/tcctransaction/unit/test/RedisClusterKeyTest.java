@@ -0,0 +1,111 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import redis.clients.util.JedisClusterCRC16;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The key layout and slot grouping of the cluster repository, the slots of the masters are given, no server is needed.
+ */
+public class RedisClusterKeyTest {
+
+    private static final int SLOT_COUNT = 16384;
+
+    @Test
+    public void testClusterKeyLayout() {
+
+        TransactionXid xid = new TransactionXid();
+
+        String xidString = xid.toString();
+        int index = xidString.indexOf(':');
+
+        String key = new String(RedisHelper.getClusterRedisKey("TCC:", xid));
+
+        Assert.assertEquals("TCC:{" + xidString.substring(0, index) + "}" + xidString.substring(index), key);
+        Assert.assertEquals(JedisClusterCRC16.getSlot(xidString.substring(0, index)), JedisClusterCRC16.getSlot(key));
+    }
+
+    @Test
+    public void testBranchesInSlotOfRoot() {
+
+        for (int i = 0; i < 100; i++) {
+
+            TransactionXid xid = new TransactionXid();
+
+            int slot = JedisClusterCRC16.getSlot(RedisHelper.getClusterRedisKey("TCC:", xid));
+
+            for (int j = 0; j < 3; j++) {
+                TransactionXid branchXid = new TransactionXid(xid.getGlobalTransactionId());
+                Assert.assertEquals(slot, JedisClusterCRC16.getSlot(RedisHelper.getClusterRedisKey("TCC:", branchXid)));
+            }
+        }
+    }
+
+    @Test
+    public void testGroupBySlotNode() {
+
+        String[] slotNodes = slotNodes("10.0.0.1:6379", "10.0.0.2:6379", "10.0.0.3:6379");
+
+        List<byte[]> keys = new ArrayList<byte[]>();
+
+        for (int i = 0; i < 300; i++) {
+            TransactionXid xid = new TransactionXid();
+            keys.add(RedisHelper.getClusterRedisKey("TCC:", xid));
+            keys.add(RedisHelper.getClusterRedisKey("TCC:", new TransactionXid(xid.getGlobalTransactionId())));
+        }
+
+        Map<String, List<byte[]>> keysOfNodes = RedisHelper.groupBySlotNode(slotNodes, keys);
+
+        Assert.assertEquals(3, keysOfNodes.size());
+
+        int count = 0;
+
+        for (Map.Entry<String, List<byte[]>> entry : keysOfNodes.entrySet()) {
+            for (byte[] key : entry.getValue()) {
+                Assert.assertEquals(slotNodes[JedisClusterCRC16.getSlot(key)], entry.getKey());
+                count++;
+            }
+        }
+
+        Assert.assertEquals(keys.size(), count);
+    }
+
+    @Test
+    public void testGroupBySlotWithoutMasterFails() {
+
+        String[] slotNodes = slotNodes("10.0.0.1:6379", "10.0.0.2:6379");
+
+        TransactionXid xid = new TransactionXid();
+        byte[] key = RedisHelper.getClusterRedisKey("TCC:", xid);
+        int slot = JedisClusterCRC16.getSlot(key);
+
+        slotNodes[slot] = null;
+
+        try {
+            RedisHelper.groupBySlotNode(slotNodes, Arrays.asList(key));
+            Assert.fail("a key of a slot without master was grouped");
+        } catch (TransactionIOException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("slot " + slot + " "));
+        }
+    }
+
+    //the slots split in equal ranges over the nodes, as redis-cli does on creating a cluster.
+    private static String[] slotNodes(String... nodes) {
+
+        String[] slotNodes = new String[SLOT_COUNT];
+
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            slotNodes[slot] = nodes[slot * nodes.length / SLOT_COUNT];
+        }
+
+        return slotNodes;
+    }
+}
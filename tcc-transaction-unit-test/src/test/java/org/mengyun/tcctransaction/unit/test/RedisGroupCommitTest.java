@@ -0,0 +1,234 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.ConcurrentTransactionException;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.RedisTransactionRepository;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+import org.mengyun.tcctransaction.repository.helper.ContentViewPolicy;
+import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import redis.clients.jedis.Builder;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every caller of a pipelined group commit gets the reply of its own script, over a stubbed jedis pool.
+ */
+public class RedisGroupCommitTest {
+
+    private RedisTransactionRepository repository;
+
+    private StubRedis redis;
+
+    @After
+    public void after() {
+        if (repository != null) {
+            repository.close();
+        }
+    }
+
+    @Test
+    public void testEachCallerGetsItsOwnReply() throws InterruptedException {
+
+        redis = new StubRedis();
+        repository = newRepository(redis, 6);
+
+        List<Transaction> transactions = newTransactions(6);
+
+        redis.replies.put(keyOf(transactions.get(1)), 0L);
+        redis.replies.put(keyOf(transactions.get(3)), new JedisDataException("ERR error running script"));
+
+        List<Object> results = createAtOnce(repository, transactions);
+
+        //the batch is full only once all callers are queued, so they share one pipeline.
+        Assert.assertEquals(1, redis.pipelines.size());
+        Assert.assertEquals(6, redis.pipelines.get(0).intValue());
+
+        for (int i = 0; i < transactions.size(); i++) {
+            if (i == 1) {
+                Assert.assertTrue(String.valueOf(results.get(i)), results.get(i) instanceof ConcurrentTransactionException);
+            } else if (i == 3) {
+                Assert.assertTrue(String.valueOf(results.get(i)), results.get(i) instanceof TransactionIOException);
+            } else {
+                Assert.assertEquals(1, results.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFailedPipelineFailsEveryRequest() throws InterruptedException {
+
+        redis = new StubRedis();
+        redis.failing = true;
+        repository = newRepository(redis, 4);
+
+        List<Object> results = createAtOnce(repository, newTransactions(4));
+
+        Assert.assertEquals(1, redis.pipelines.size());
+
+        for (Object result : results) {
+            Assert.assertTrue(String.valueOf(result), result instanceof TransactionIOException);
+        }
+    }
+
+    private static RedisTransactionRepository newRepository(final StubRedis redis, int batchSize) {
+
+        RedisTransactionRepository repository = new RedisTransactionRepository();
+
+        repository.setJedisPool(new JedisPool() {
+            @Override
+            public Jedis getResource() {
+                return redis.new StubJedis();
+            }
+        });
+
+        //the scripts are not run, the content view is left out of the fields.
+        repository.setContentViewPolicy(ContentViewPolicy.NEVER);
+        repository.setGroupCommit(true);
+        repository.setGroupCommitBatchSize(batchSize);
+        //long enough for the batch to fill up, it is flushed as soon as it is full.
+        repository.setGroupCommitMaxWaitMillis(TimeUnit.SECONDS.toMillis(10));
+        return repository;
+    }
+
+    private static List<Transaction> newTransactions(int count) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = 0; i < count; i++) {
+            transactions.add(new Transaction(TransactionType.ROOT));
+        }
+
+        return transactions;
+    }
+
+    private static String keyOf(Transaction transaction) {
+        return new String(RedisHelper.getRedisKey("TCC:", transaction.getXid()));
+    }
+
+    //creates every transaction from its own thread at once, the result is the returned value or the exception thrown.
+    private static List<Object> createAtOnce(final RedisTransactionRepository repository, List<Transaction> transactions) throws InterruptedException {
+
+        final Object[] results = new Object[transactions.size()];
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < transactions.size(); i++) {
+
+            final int index = i;
+            final Transaction transaction = transactions.get(i);
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results[index] = repository.create(transaction);
+                    } catch (Throwable throwable) {
+                        results[index] = throwable;
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(20));
+        }
+
+        List<Object> resultList = new ArrayList<Object>();
+        Collections.addAll(resultList, results);
+        return resultList;
+    }
+
+    //replies to the scripts of a pipeline by key, 1 unless set otherwise in replies.
+    static class StubRedis {
+
+        final Map<String, Object> replies = new ConcurrentHashMap<String, Object>();
+
+        //the number of operations of each synced pipeline.
+        final List<Integer> pipelines = new CopyOnWriteArrayList<Integer>();
+
+        volatile boolean failing = false;
+
+        class StubJedis extends Jedis {
+
+            @Override
+            public ScanResult<String> scan(String cursor, ScanParams params) {
+                return new ScanResult<String>("0", new ArrayList<String>());
+            }
+
+            @Override
+            public Pipeline pipelined() {
+                return new StubPipeline();
+            }
+        }
+
+        class StubPipeline extends Pipeline {
+
+            private final Map<Response<?>, String> pending = new LinkedHashMap<Response<?>, String>();
+
+            @Override
+            public Response<Object> eval(byte[] script, List<byte[]> keys, List<byte[]> args) {
+                return queue(new Response<Object>(new Builder<Object>() {
+                    @Override
+                    public Object build(Object data) {
+                        return data;
+                    }
+                }), keys.get(0));
+            }
+
+            @Override
+            public Response<Long> del(byte[] key) {
+                return queue(new Response<Long>(new Builder<Long>() {
+                    @Override
+                    public Long build(Object data) {
+                        return (Long) data;
+                    }
+                }), key);
+            }
+
+            @Override
+            public void sync() {
+
+                pipelines.add(pending.size());
+
+                if (failing) {
+                    throw new JedisConnectionException("connection reset");
+                }
+
+                for (Map.Entry<Response<?>, String> entry : pending.entrySet()) {
+                    Object reply = replies.get(entry.getValue());
+                    entry.getKey().set(reply != null ? reply : 1L);
+                }
+            }
+
+            private <T> Response<T> queue(Response<T> response, byte[] key) {
+                pending.put(response, new String(key));
+                return response;
+            }
+        }
+    }
+}
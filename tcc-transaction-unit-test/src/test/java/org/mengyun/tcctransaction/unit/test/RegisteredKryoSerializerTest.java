@@ -0,0 +1,81 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.serializer.RegisteredKryoSerializer;
+
+/**
+ * The registrations are static, a node with other registrations is simulated by registering between write and read.
+ */
+public class RegisteredKryoSerializerTest {
+
+    @Test
+    public void testReadOnRegistryWithOtherTypes() {
+
+        RegisteredKryoSerializer serializer = new RegisteredKryoSerializer(1);
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        transaction.getAttachments().put("order", new Order(7L));
+
+        byte[] bytes = serializer.serialize(transaction);
+
+        RegisteredKryoSerializer.registerType(Order.class, 990);
+
+        Transaction read = serializer.deserialize(bytes);
+
+        Assert.assertEquals(transaction.getXid(), read.getXid());
+        Assert.assertEquals(7L, ((Order) read.getAttachments().get("order")).id);
+
+        read = serializer.deserialize(serializer.serialize(transaction));
+
+        Assert.assertEquals(7L, ((Order) read.getAttachments().get("order")).id);
+    }
+
+    @Test
+    public void testReadUnregisteredIdFails() {
+
+        RegisteredKryoSerializer.registerType(Marker.class, 992);
+
+        RegisteredKryoSerializer serializer = new RegisteredKryoSerializer(1);
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        transaction.getAttachments().put("marker", new Marker());
+
+        byte[] bytes = serializer.serialize(transaction);
+
+        //the class of the attachment is written last as the varint of its id plus 2, 994 is 0xE2 0x07.
+        int index = bytes.length - 2;
+        while (index >= 0 && !(bytes[index] == (byte) 0xE2 && bytes[index + 1] == 0x07)) {
+            index--;
+        }
+        Assert.assertTrue(index >= 0);
+
+        //993 is registered on no node.
+        bytes[index] = (byte) 0xE3;
+
+        try {
+            serializer.deserialize(bytes);
+            Assert.fail("an unregistered class id was read");
+        } catch (SystemException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("class id 993 is not registered"));
+        }
+    }
+
+    public static class Order {
+
+        long id;
+
+        public Order() {
+        }
+
+        public Order(long id) {
+            this.id = id;
+        }
+    }
+
+    public static class Marker {
+    }
+}
@@ -0,0 +1,268 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.recover.RecoverableTransaction;
+import org.mengyun.tcctransaction.repository.JdbcTransactionRepository;
+import org.mengyun.tcctransaction.repository.ShardedJdbcTransactionRepository;
+
+import javax.sql.DataSource;
+import javax.transaction.xa.Xid;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the sharded repository over in-memory H2 databases, one per shard.
+ */
+public class ShardedJdbcTransactionRepositoryTest {
+
+    private static final AtomicInteger databaseNumber = new AtomicInteger();
+
+    @Test
+    public void testRoutingIsStable() throws SQLException {
+
+        List<JdbcTransactionRepository> shards = newShards(4);
+
+        ShardedJdbcTransactionRepository repository = newRepository(shards);
+        ShardedJdbcTransactionRepository other = newRepository(shards);
+
+        Set<Integer> shardIndexes = new HashSet<Integer>();
+
+        for (int i = 0; i < 1000; i++) {
+
+            TransactionXid xid = new TransactionXid();
+            TransactionXid branchXid = new TransactionXid(xid.getGlobalTransactionId());
+
+            int shardIndex = repository.getShardIndex(xid);
+
+            Assert.assertEquals(shardIndex, repository.getShardIndex(xid));
+            Assert.assertEquals(shardIndex, other.getShardIndex(xid));
+            Assert.assertEquals(shardIndex, repository.getShardIndex(branchXid));
+
+            shardIndexes.add(shardIndex);
+        }
+
+        Assert.assertEquals(4, shardIndexes.size());
+    }
+
+    @Test
+    public void testFindByXidsAcrossShards() throws SQLException {
+
+        List<JdbcTransactionRepository> shards = newShards(3);
+
+        ShardedJdbcTransactionRepository repository = newRepository(shards);
+
+        List<TransactionXid> xids = createTransactions(repository, 60);
+
+        Set<Integer> shardIndexes = new HashSet<Integer>();
+
+        for (TransactionXid xid : xids) {
+            Assert.assertEquals(repository.getShardIndex(xid), storedShard(shards, xid));
+            shardIndexes.add(repository.getShardIndex(xid));
+        }
+
+        Assert.assertTrue(shardIndexes.size() > 1);
+
+        //a repository without cached transactions reads them from the shards.
+        List<Transaction> transactions = newRepository(shards).findByXids(xids);
+
+        Assert.assertEquals(xids.size(), transactions.size());
+
+        Set<TransactionXid> found = new HashSet<TransactionXid>();
+
+        for (Transaction transaction : transactions) {
+            found.add((TransactionXid) transaction.getXid());
+        }
+
+        Assert.assertEquals(new HashSet<TransactionXid>(xids), found);
+    }
+
+    @Test
+    public void testRebalanceAfterAddingShard() throws SQLException {
+
+        List<JdbcTransactionRepository> shards = newShards(2);
+
+        List<TransactionXid> xids = createTransactions(newRepository(shards), 200);
+
+        List<JdbcTransactionRepository> grownShards = new ArrayList<JdbcTransactionRepository>(shards);
+        grownShards.addAll(newShards(1));
+
+        ShardedJdbcTransactionRepository repository = newRepository(grownShards);
+
+        int expectedMoved = 0;
+
+        for (TransactionXid xid : xids) {
+            if (storedShard(grownShards, xid) != repository.getShardIndex(xid)) {
+                expectedMoved++;
+            }
+        }
+
+        Assert.assertTrue(expectedMoved > 0);
+        Assert.assertEquals(expectedMoved, repository.rebalance());
+
+        for (TransactionXid xid : xids) {
+            Assert.assertEquals(repository.getShardIndex(xid), storedShard(grownShards, xid));
+        }
+
+        Assert.assertEquals(xids.size(), newRepository(grownShards).findByXids(xids).size());
+        Assert.assertEquals(0, repository.rebalance());
+    }
+
+    @Test
+    public void testScanCallsHandlerFromShardThreads() throws SQLException, InterruptedException {
+
+        final List<JdbcTransactionRepository> shards = newShards(3);
+
+        ShardedJdbcTransactionRepository repository = newRepository(shards);
+
+        List<TransactionXid> xids = createTransactions(repository, 90);
+
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        final Set<Xid> scanned = Collections.newSetFromMap(new ConcurrentHashMap<Xid, Boolean>());
+        final CountDownLatch allShardsScanning = new CountDownLatch(shards.size());
+        final AtomicInteger batches = new AtomicInteger();
+
+        repository.scanRecoverableUnmodifiedSince(new Date(System.currentTimeMillis() + 60 * 1000L), 10, new RecoverableTransaction.BatchHandler() {
+            @Override
+            public void handle(List<RecoverableTransaction> batch) {
+
+                Assert.assertTrue(batch.size() <= 10);
+
+                //the first batch of every shard waits for the first batches of the others, they are handled at once.
+                if (threads.add(Thread.currentThread())) {
+                    allShardsScanning.countDown();
+                    try {
+                        allShardsScanning.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                for (RecoverableTransaction recoverableTransaction : batch) {
+                    scanned.add(recoverableTransaction.getXid());
+                    Assert.assertNotNull(recoverableTransaction.getTransaction());
+                }
+
+                batches.incrementAndGet();
+            }
+        });
+
+        Assert.assertEquals(0, allShardsScanning.getCount());
+        Assert.assertEquals(shards.size(), threads.size());
+        Assert.assertEquals(new HashSet<Xid>(xids), scanned);
+        Assert.assertTrue(batches.get() >= xids.size() / 10);
+    }
+
+    private static List<TransactionXid> createTransactions(ShardedJdbcTransactionRepository repository, int count) {
+
+        List<TransactionXid> xids = new ArrayList<TransactionXid>();
+
+        for (int i = 0; i < count; i++) {
+            Transaction transaction = new Transaction(TransactionType.ROOT);
+            Assert.assertEquals(1, repository.create(transaction));
+            xids.add((TransactionXid) transaction.getXid());
+        }
+
+        return xids;
+    }
+
+    private static ShardedJdbcTransactionRepository newRepository(List<JdbcTransactionRepository> shards) {
+
+        ShardedJdbcTransactionRepository repository = new ShardedJdbcTransactionRepository();
+        repository.setShards(shards);
+        repository.setBucketCount(64);
+        return repository;
+    }
+
+    private static List<JdbcTransactionRepository> newShards(int count) throws SQLException {
+
+        List<JdbcTransactionRepository> shards = new ArrayList<JdbcTransactionRepository>();
+
+        for (int i = 0; i < count; i++) {
+            JdbcTransactionRepository shard = new JdbcTransactionRepository();
+            shard.setDataSource(newDataSource());
+            shards.add(shard);
+        }
+
+        return shards;
+    }
+
+    private static DataSource newDataSource() throws SQLException {
+
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:tcc_shard_" + databaseNumber.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+
+        Connection connection = dataSource.getConnection();
+
+        try {
+            Statement stmt = connection.createStatement();
+            stmt.execute("CREATE TABLE TCC_TRANSACTION (" +
+                    "TRANSACTION_ID INT AUTO_INCREMENT PRIMARY KEY, " +
+                    "DOMAIN VARCHAR(100), " +
+                    "GLOBAL_TX_ID VARBINARY(32) NOT NULL, " +
+                    "BRANCH_QUALIFIER VARBINARY(32) NOT NULL, " +
+                    "CONTENT VARBINARY(8000), " +
+                    "STATUS INT, " +
+                    "TRANSACTION_TYPE INT, " +
+                    "RETRIED_COUNT INT, " +
+                    "CREATE_TIME TIMESTAMP, " +
+                    "LAST_UPDATE_TIME TIMESTAMP, " +
+                    "VERSION INT, " +
+                    "IS_DELETE TINYINT DEFAULT 0 NOT NULL, " +
+                    "UNIQUE (GLOBAL_TX_ID, BRANCH_QUALIFIER))");
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+
+        return dataSource;
+    }
+
+    //the index of the only shard holding the row of the xid, -1 if none does.
+    private static int storedShard(List<JdbcTransactionRepository> shards, TransactionXid xid) throws SQLException {
+
+        int stored = -1;
+
+        for (int i = 0; i < shards.size(); i++) {
+
+            Connection connection = shards.get(i).getDataSource().getConnection();
+
+            try {
+                PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) FROM TCC_TRANSACTION WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?");
+                stmt.setBytes(1, xid.getGlobalTransactionId());
+                stmt.setBytes(2, xid.getBranchQualifier());
+
+                ResultSet resultSet = stmt.executeQuery();
+                resultSet.next();
+
+                if (resultSet.getInt(1) > 0) {
+                    Assert.assertEquals("transaction " + xid + " is stored in more than one shard", -1, stored);
+                    stored = i;
+                }
+
+                stmt.close();
+            } finally {
+                connection.close();
+            }
+        }
+
+        return stored;
+    }
+}
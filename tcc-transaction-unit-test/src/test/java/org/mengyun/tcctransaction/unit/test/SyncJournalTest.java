@@ -0,0 +1,221 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.FileSystemTransactionRepository;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+import org.mengyun.tcctransaction.repository.helper.SyncJournal;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * Replays of the sync journal over files whose writes were lost, as if the files were never forced before a crash.
+ */
+public class SyncJournalTest {
+
+    private static final byte[] FIRST = "first".getBytes();
+
+    private static final byte[] SECOND = "second".getBytes();
+
+    private File directory;
+
+    private File root;
+
+    private File journalFile;
+
+    @Before
+    public void before() throws IOException {
+        directory = Files.createTempDirectory("tcc-sync-journal-test").toFile();
+        root = new File(directory, "tcc");
+        root.mkdir();
+        journalFile = new File(directory, "tcc.sync");
+    }
+
+    @After
+    public void after() {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void testWriteReplayedOverLostFile() throws IOException {
+
+        SyncJournal journal = newJournal();
+        journal.append(Arrays.asList(new SyncJournal.Entry(SyncJournal.WRITE, "a", 0, FIRST)));
+        journal.close();
+
+        newJournal().replay();
+
+        Assert.assertArrayEquals(FIRST, read("a"));
+        Assert.assertEquals(0, journalFile.length());
+    }
+
+    @Test
+    public void testDeleteAfterWriteNotUndone() throws IOException {
+
+        write("a", FIRST);
+
+        SyncJournal journal = newJournal();
+        journal.append(Arrays.asList(new SyncJournal.Entry(SyncJournal.WRITE, "a", 0, FIRST)));
+        journal.append(Arrays.asList(new SyncJournal.Entry(SyncJournal.DELETE, "a", 0, new byte[0])));
+        journal.close();
+
+        newJournal().replay();
+
+        Assert.assertFalse(new File(root, "a").exists());
+    }
+
+    @Test
+    public void testAppendReplayedAtItsOffset() throws IOException {
+
+        //the write reached the disk, the append after it was lost.
+        write("a", FIRST);
+
+        SyncJournal journal = newJournal();
+        journal.append(Arrays.asList(
+                new SyncJournal.Entry(SyncJournal.WRITE, "a", 0, FIRST),
+                new SyncJournal.Entry(SyncJournal.APPEND, "a", FIRST.length, SECOND)));
+        journal.close();
+
+        newJournal().replay();
+
+        Assert.assertArrayEquals(concat(FIRST, SECOND), read("a"));
+    }
+
+    @Test
+    public void testAppendToDeletedFileSkipped() throws IOException {
+
+        SyncJournal journal = newJournal();
+        journal.append(Arrays.asList(new SyncJournal.Entry(SyncJournal.APPEND, "a", FIRST.length, SECOND)));
+        journal.close();
+
+        newJournal().replay();
+
+        Assert.assertFalse(new File(root, "a").exists());
+    }
+
+    @Test
+    public void testCutOffEntryIgnored() throws IOException {
+
+        SyncJournal journal = newJournal();
+        journal.append(Arrays.asList(new SyncJournal.Entry(SyncJournal.WRITE, "a", 0, FIRST)));
+        long length = journalFile.length();
+        journal.append(Arrays.asList(new SyncJournal.Entry(SyncJournal.WRITE, "b", 0, SECOND)));
+        journal.close();
+
+        //a crash in the middle of the second append.
+        RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+        try {
+            raf.setLength(journalFile.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        Assert.assertTrue(journalFile.length() > length);
+
+        newJournal().replay();
+
+        Assert.assertArrayEquals(FIRST, read("a"));
+        Assert.assertFalse(new File(root, "b").exists());
+    }
+
+    @Test
+    public void testRepositoryRedoesLostWritesOnStartup() throws IOException {
+
+        FileSystemTransactionRepository repository = newRepository();
+
+        Transaction kept = new Transaction(TransactionType.ROOT);
+        Transaction deleted = new Transaction(TransactionType.ROOT);
+
+        repository.create(kept);
+        repository.create(deleted);
+        repository.delete(deleted);
+        repository.close();
+
+        Assert.assertTrue(journalFile.length() > 0);
+
+        //the files were never forced, a crash loses them.
+        for (File file : root.listFiles()) {
+            deleteRecursively(file);
+        }
+
+        repository = newRepository();
+
+        Assert.assertNotNull(repository.findByXid((TransactionXid) kept.getXid()));
+        Assert.assertNull(repository.findByXid((TransactionXid) deleted.getXid()));
+
+        repository.close();
+    }
+
+    @Test
+    public void testJournalPathDefaultsBesideRootPath() {
+
+        FileSystemTransactionRepository repository = new FileSystemTransactionRepository();
+        repository.setRootPath(root.getPath() + File.separator);
+
+        Assert.assertEquals(journalFile.getAbsolutePath(), repository.getGroupCommitJournalPath());
+    }
+
+    @Test(expected = TransactionIOException.class)
+    public void testJournalPathInRootPathRejected() {
+
+        FileSystemTransactionRepository repository = newRepository();
+        repository.setGroupCommitJournalPath(new File(root, "tcc.sync").getPath());
+
+        try {
+            repository.create(new Transaction(TransactionType.ROOT));
+        } finally {
+            repository.close();
+        }
+    }
+
+    private SyncJournal newJournal() {
+        return new SyncJournal(root, journalFile, 1024 * 1024);
+    }
+
+    private FileSystemTransactionRepository newRepository() {
+
+        FileSystemTransactionRepository repository = new FileSystemTransactionRepository();
+        repository.setRootPath(root.getPath());
+        repository.setSerializer(new KryoPoolSerializer(1));
+        repository.setGroupCommit(true);
+        repository.setGroupCommitMaxWaitMillis(1);
+        return repository;
+    }
+
+    private void write(String path, byte[] content) throws IOException {
+        Files.write(new File(root, path).toPath(), content);
+    }
+
+    private byte[] read(String path) throws IOException {
+        return Files.readAllBytes(new File(root, path).toPath());
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static void deleteRecursively(File file) {
+
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+}
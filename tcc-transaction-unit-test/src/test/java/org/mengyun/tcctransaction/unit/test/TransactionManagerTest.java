@@ -0,0 +1,346 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.CancellingException;
+import org.mengyun.tcctransaction.ConfirmingException;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.NoExistedTransactionException;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.TransactionManager;
+import org.mengyun.tcctransaction.TransactionRepository;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionContext;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the repository calls of the transactions begun and ended by the transaction manager.
+ */
+public class TransactionManagerTest {
+
+    @Test
+    public void testDeferredRootWithoutRemoteParticipantIsNotStored() {
+
+        CountingTransactionRepository repository = new CountingTransactionRepository();
+
+        TransactionManager transactionManager = new TransactionManager();
+        transactionManager.setTransactionRepository(repository);
+        transactionManager.setDeferRootCreate(true);
+
+        int confirmed = LocalService.CONFIRMED.get();
+
+        Transaction transaction = transactionManager.begin();
+        try {
+            transactionManager.enlistParticipant(participant(transaction));
+            transactionManager.commit(false);
+        } finally {
+            transactionManager.cleanAfterCompletion(transaction);
+        }
+
+        Assert.assertEquals(confirmed + 1, LocalService.CONFIRMED.get());
+        Assert.assertEquals(0, repository.created.get());
+        Assert.assertEquals(0, repository.updated.get());
+        Assert.assertEquals(0, repository.deleted.get());
+    }
+
+    @Test
+    public void testDeferredRootIsCreatedWithRemoteParticipant() {
+
+        CountingTransactionRepository repository = new CountingTransactionRepository();
+
+        TransactionManager transactionManager = new TransactionManager();
+        transactionManager.setTransactionRepository(repository);
+        transactionManager.setDeferRootCreate(true);
+
+        Transaction transaction = transactionManager.begin();
+        try {
+            transactionManager.enlistParticipant(participant(transaction));
+            Assert.assertEquals(0, repository.created.get());
+
+            transactionManager.enlistParticipant(participant(transaction));
+            Assert.assertEquals(1, repository.created.get());
+
+            transactionManager.rollback(false);
+        } finally {
+            transactionManager.cleanAfterCompletion(transaction);
+        }
+
+        Assert.assertEquals(1, repository.created.get());
+        Assert.assertEquals(1, repository.updated.get());
+        Assert.assertEquals(1, repository.deleted.get());
+    }
+
+    @Test
+    public void testBufferedTryRootWithoutRemoteParticipantIsNotStored() {
+
+        CountingTransactionRepository repository = new CountingTransactionRepository();
+
+        TransactionManager transactionManager = new TransactionManager();
+        transactionManager.setTransactionRepository(repository);
+        transactionManager.setBufferedTry(true);
+
+        int cancelled = LocalService.CANCELLED.get();
+
+        Transaction transaction = transactionManager.begin();
+        try {
+            transactionManager.enlistParticipant(participant(transaction));
+            transactionManager.rollback(false);
+        } finally {
+            transactionManager.cleanAfterCompletion(transaction);
+        }
+
+        Assert.assertEquals(cancelled + 1, LocalService.CANCELLED.get());
+        Assert.assertEquals(0, repository.created.get());
+        Assert.assertEquals(0, repository.updated.get());
+        Assert.assertEquals(0, repository.deleted.get());
+    }
+
+    @Test
+    public void testBufferedTryRootConfirmedAsynchronouslyIsStored() throws InterruptedException {
+
+        CountingTransactionRepository repository = new CountingTransactionRepository();
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+        TransactionManager transactionManager = new TransactionManager();
+        transactionManager.setTransactionRepository(repository);
+        transactionManager.setExecutorService(executorService);
+        transactionManager.setBufferedTry(true);
+
+        Transaction transaction = transactionManager.begin();
+        try {
+            transactionManager.enlistParticipant(participant(transaction));
+            transactionManager.commit(true);
+        } finally {
+            transactionManager.cleanAfterCompletion(transaction);
+        }
+
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(1, repository.created.get());
+        Assert.assertEquals(0, repository.updated.get());
+        Assert.assertEquals(1, repository.deleted.get());
+    }
+
+    @Test
+    public void testDeferredRootIsCreatedWhenItsConfirmFails() {
+
+        CountingTransactionRepository repository = new CountingTransactionRepository();
+
+        TransactionManager transactionManager = new TransactionManager();
+        transactionManager.setTransactionRepository(repository);
+        transactionManager.setDeferRootCreate(true);
+
+        LocalService.FAILING = true;
+
+        Transaction transaction = transactionManager.begin();
+        try {
+            transactionManager.enlistParticipant(participant(transaction));
+            transactionManager.commit(false);
+            Assert.fail("the failed confirm was not raised");
+        } catch (ConfirmingException e) {
+            //the recovery job confirms it later.
+        } finally {
+            LocalService.FAILING = false;
+            transactionManager.cleanAfterCompletion(transaction);
+        }
+
+        Assert.assertEquals(1, repository.created.get());
+        Assert.assertEquals(TransactionStatus.CONFIRMING, repository.createdStatus);
+        Assert.assertEquals(1, repository.createdParticipantCount);
+        Assert.assertEquals(0, repository.deleted.get());
+    }
+
+    @Test
+    public void testBufferedTryRootIsCreatedWhenItsCancelFails() {
+
+        CountingTransactionRepository repository = new CountingTransactionRepository();
+
+        TransactionManager transactionManager = new TransactionManager();
+        transactionManager.setTransactionRepository(repository);
+        transactionManager.setBufferedTry(true);
+
+        LocalService.FAILING = true;
+
+        Transaction transaction = transactionManager.begin();
+        try {
+            transactionManager.enlistParticipant(participant(transaction));
+            transactionManager.rollback(false);
+            Assert.fail("the failed cancel was not raised");
+        } catch (CancellingException e) {
+            //the recovery job cancels it later.
+        } finally {
+            LocalService.FAILING = false;
+            transactionManager.cleanAfterCompletion(transaction);
+        }
+
+        Assert.assertEquals(1, repository.created.get());
+        Assert.assertEquals(TransactionStatus.CANCELLING, repository.createdStatus);
+        Assert.assertEquals(1, repository.createdParticipantCount);
+        Assert.assertEquals(0, repository.deleted.get());
+    }
+
+    @Test
+    public void testBufferedTryBranchIsCancelledAfterItsNodeStops() throws NoExistedTransactionException {
+
+        StoringTransactionRepository repository = new StoringTransactionRepository();
+
+        TransactionManager transactionManager = new TransactionManager();
+        transactionManager.setTransactionRepository(repository);
+        transactionManager.setBufferedTry(true);
+
+        TransactionXid branchXid = new TransactionXid(new TransactionXid().getGlobalTransactionId());
+
+        Transaction branch = transactionManager.propagationNewBegin(new TransactionContext(branchXid, TransactionStatus.TRYING.getId()));
+        try {
+            transactionManager.enlistParticipant(participant(branch));
+            //the try runs here and the node stops, nothing more of the branch is written.
+        } finally {
+            transactionManager.cleanAfterCompletion(branch);
+        }
+
+        int cancelled = LocalService.CANCELLED.get();
+
+        //the root cancels the branch on another node reading the same repository.
+        TransactionManager otherTransactionManager = new TransactionManager();
+        otherTransactionManager.setTransactionRepository(repository);
+
+        Transaction cancelling = otherTransactionManager.propagationExistBegin(new TransactionContext(branchXid, TransactionStatus.CANCELLING.getId()));
+        try {
+            otherTransactionManager.rollback(false);
+        } finally {
+            otherTransactionManager.cleanAfterCompletion(cancelling);
+        }
+
+        Assert.assertEquals(cancelled + 1, LocalService.CANCELLED.get());
+        Assert.assertNull(repository.findByXid(branchXid));
+    }
+
+    static Participant participant(Transaction transaction) {
+
+        TransactionXid xid = new TransactionXid(transaction.getXid().getGlobalTransactionId());
+
+        Object[] args = new Object[0];
+
+        return new Participant(xid,
+                new InvocationContext(LocalService.class, "confirm", new Class[0], args),
+                new InvocationContext(LocalService.class, "cancel", new Class[0], args),
+                Compensable.NullableTransactionContextEditor.class);
+    }
+
+    public static class LocalService {
+
+        static final AtomicInteger CONFIRMED = new AtomicInteger();
+
+        static final AtomicInteger CANCELLED = new AtomicInteger();
+
+        static volatile boolean FAILING = false;
+
+        public void confirm() {
+            if (FAILING) {
+                throw new IllegalStateException("confirm failed");
+            }
+            CONFIRMED.incrementAndGet();
+        }
+
+        public void cancel() {
+            if (FAILING) {
+                throw new IllegalStateException("cancel failed");
+            }
+            CANCELLED.incrementAndGet();
+        }
+    }
+
+    //keeps a copy of each write, as a store would.
+    static class StoringTransactionRepository implements TransactionRepository {
+
+        final Map<TransactionXid, byte[]> transactions = new ConcurrentHashMap<TransactionXid, byte[]>();
+
+        final ObjectSerializer<Transaction> serializer = new KryoPoolSerializer();
+
+        @Override
+        public int create(Transaction transaction) {
+            transactions.put((TransactionXid) transaction.getXid(), serializer.serialize(transaction));
+            return 1;
+        }
+
+        @Override
+        public int update(Transaction transaction) {
+            return create(transaction);
+        }
+
+        @Override
+        public int delete(Transaction transaction) {
+            return transactions.remove(transaction.getXid()) != null ? 1 : 0;
+        }
+
+        @Override
+        public Transaction findByXid(TransactionXid xid) {
+            byte[] content = transactions.get(xid);
+            return content != null ? serializer.deserialize(content) : null;
+        }
+
+        @Override
+        public List<Transaction> findAllUnmodifiedSince(Date date) {
+            return Collections.emptyList();
+        }
+    }
+
+    static class CountingTransactionRepository implements TransactionRepository {
+
+        final AtomicInteger created = new AtomicInteger();
+
+        final AtomicInteger updated = new AtomicInteger();
+
+        final AtomicInteger deleted = new AtomicInteger();
+
+        volatile TransactionStatus createdStatus;
+
+        volatile int createdParticipantCount;
+
+        @Override
+        public int create(Transaction transaction) {
+            createdStatus = transaction.getStatus();
+            createdParticipantCount = transaction.getParticipants().size();
+            created.incrementAndGet();
+            return 1;
+        }
+
+        @Override
+        public int update(Transaction transaction) {
+            updated.incrementAndGet();
+            return 1;
+        }
+
+        @Override
+        public int delete(Transaction transaction) {
+            deleted.incrementAndGet();
+            return 1;
+        }
+
+        @Override
+        public Transaction findByXid(TransactionXid xid) {
+            return null;
+        }
+
+        @Override
+        public List<Transaction> findAllUnmodifiedSince(Date date) {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.FileSystemTransactionRepository;
+import org.mengyun.tcctransaction.repository.helper.TransactionHeader;
+import org.mengyun.tcctransaction.repository.helper.TransactionSerializer;
+import org.mengyun.tcctransaction.serializer.KryoPoolSerializer;
+import org.mengyun.tcctransaction.serializer.ObjectSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Round trips of the framed record format of the file system repository.
+ */
+public class TransactionSerializerTest {
+
+    private final KryoPoolSerializer serializer = new KryoPoolSerializer(1);
+
+    private Path directory;
+
+    @Before
+    public void before() throws IOException {
+        directory = Files.createTempDirectory("tcc-record-test");
+    }
+
+    @After
+    public void after() {
+        deleteRecursively(directory.toFile());
+    }
+
+    @Test
+    public void testFullRecord() {
+
+        Transaction transaction = newTransaction(2);
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        transaction.addRetriedCount();
+        transaction.updateVersion();
+
+        byte[] record = TransactionSerializer.serialize(serializer, transaction);
+
+        Assert.assertEquals(record.length, TransactionSerializer.readableLength(record));
+
+        TransactionHeader header = TransactionSerializer.deserializeHeader(record);
+        Assert.assertEquals(TransactionStatus.CONFIRMING, header.getStatus());
+        Assert.assertEquals(TransactionType.ROOT, header.getTransactionType());
+        Assert.assertEquals(1, header.getRetriedCount());
+        Assert.assertEquals(2L, header.getVersion());
+
+        assertSame(transaction, TransactionSerializer.deserialize(serializer, record));
+    }
+
+    @Test
+    public void testRecordWithDeltaFrames() {
+
+        Transaction transaction = newTransaction(1);
+
+        byte[] record = TransactionSerializer.serialize(serializer, transaction);
+        transaction.setPersistedParticipantCount(1);
+
+        enlist(transaction, 2);
+        transaction.updateVersion();
+        record = concat(record, TransactionSerializer.serializeDelta(serializer, transaction));
+        transaction.setPersistedParticipantCount(3);
+
+        //a frame without new participants carries the status change only.
+        transaction.changeStatus(TransactionStatus.CANCELLING);
+        transaction.updateVersion();
+        record = concat(record, TransactionSerializer.serializeDelta(serializer, transaction));
+
+        Assert.assertEquals(record.length, TransactionSerializer.readableLength(record));
+        Assert.assertEquals(TransactionStatus.TRYING, TransactionSerializer.deserializeHeader(record).getStatus());
+        Assert.assertEquals(TransactionStatus.CANCELLING, TransactionSerializer.deserializeLastHeader(record).getStatus());
+
+        assertSame(transaction, TransactionSerializer.deserialize(serializer, record));
+    }
+
+    @Test
+    public void testCutOffLastFrame() {
+
+        Transaction transaction = newTransaction(1);
+
+        byte[] full = TransactionSerializer.serialize(serializer, transaction);
+        Transaction stored = serializer.clone(transaction);
+        transaction.setPersistedParticipantCount(1);
+
+        enlist(transaction, 1);
+        transaction.updateVersion();
+        byte[] delta = TransactionSerializer.serializeDelta(serializer, transaction);
+
+        for (int cut : new int[]{1, TransactionSerializer.HEADER_LENGTH, delta.length - 1}) {
+
+            byte[] record = concat(full, Arrays.copyOf(delta, cut));
+
+            Assert.assertEquals(full.length, TransactionSerializer.readableLength(record));
+            Assert.assertEquals(1L, TransactionSerializer.deserializeLastHeader(record).getVersion());
+
+            //the cut off frame is ignored, the record reads as before the append.
+            assertSame(stored, TransactionSerializer.deserialize(serializer, record));
+        }
+    }
+
+    @Test
+    public void testCutOffFrameRepairedOnStartup() throws IOException {
+
+        FileSystemTransactionRepository repository = newRepository();
+
+        Transaction transaction = newTransaction(1);
+        repository.create(transaction);
+
+        enlist(transaction, 1);
+        repository.update(transaction);
+
+        File file = findFile(transaction);
+        long length = file.length();
+
+        //a crash in the middle of the next append.
+        Transaction next = serializer.clone(transaction);
+        next.setPersistedParticipantCount(2);
+        enlist(next, 1);
+        byte[] delta = TransactionSerializer.serializeDelta(serializer, next);
+        Files.write(file.toPath(), Arrays.copyOf(delta, delta.length / 2), StandardOpenOption.APPEND);
+
+        repository.close();
+
+        //the restarted repository drops the cut off frame, so the next append follows the complete frames.
+        repository = newRepository();
+
+        Transaction found = repository.findByXid((TransactionXid) transaction.getXid());
+        Assert.assertEquals(length, file.length());
+        assertSame(transaction, found);
+
+        enlist(found, 1);
+        repository.update(found);
+        repository.close();
+
+        Transaction reopened = newRepository().findByXid((TransactionXid) transaction.getXid());
+        Assert.assertEquals(3, reopened.getParticipants().size());
+        Assert.assertEquals(found.getVersion(), reopened.getVersion());
+    }
+
+    @Test
+    public void testLegacyMapFormat() {
+
+        //records before the framed format were a map serialized by a serializer of any object.
+        ObjectSerializer legacySerializer = new AnyObjectSerializer();
+
+        Transaction transaction = newTransaction(2);
+        transaction.addRetriedCount();
+        transaction.updateVersion();
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("GLOBAL_TX_ID", transaction.getXid().getGlobalTransactionId());
+        map.put("BRANCH_QUALIFIER", transaction.getXid().getBranchQualifier());
+        map.put("STATUS", transaction.getStatus().getId());
+        map.put("TRANSACTION_TYPE", transaction.getTransactionType().getId());
+        map.put("RETRIED_COUNT", transaction.getRetriedCount());
+        map.put("CREATE_TIME", transaction.getCreateTime());
+        map.put("LAST_UPDATE_TIME", transaction.getLastUpdateTime());
+        map.put("VERSION", transaction.getVersion());
+        map.put("CONTENT", legacySerializer.serialize(transaction));
+
+        byte[] record = legacySerializer.serialize(map);
+
+        Assert.assertNull(TransactionSerializer.deserializeHeader(record));
+        Assert.assertEquals(record.length, TransactionSerializer.readableLength(record));
+
+        assertSame(transaction, TransactionSerializer.deserialize(legacySerializer, record));
+    }
+
+    private FileSystemTransactionRepository newRepository() {
+
+        FileSystemTransactionRepository repository = new FileSystemTransactionRepository();
+        repository.setRootPath(directory.resolve("tcc").toString());
+        repository.setSerializer(serializer);
+        repository.setDeltaUpdate(true);
+        return repository;
+    }
+
+    private File findFile(Transaction transaction) {
+
+        File file = findFile(directory.toFile(), transaction.getXid().toString());
+        Assert.assertNotNull(file);
+        return file;
+    }
+
+    private static File findFile(File directory, String name) {
+
+        for (File child : directory.listFiles()) {
+
+            File found = child.isDirectory() ? findFile(child, name) : (child.getName().equals(name) ? child : null);
+
+            if (found != null) {
+                return found;
+            }
+        }
+
+        return null;
+    }
+
+    private static void assertSame(Transaction expected, Transaction actual) {
+
+        Assert.assertEquals(expected.getXid(), actual.getXid());
+        Assert.assertEquals(expected.getStatus(), actual.getStatus());
+        Assert.assertEquals(expected.getTransactionType(), actual.getTransactionType());
+        Assert.assertEquals(expected.getRetriedCount(), actual.getRetriedCount());
+        Assert.assertEquals(expected.getVersion(), actual.getVersion());
+        Assert.assertEquals(expected.getCreateTime(), actual.getCreateTime());
+        Assert.assertEquals(expected.getLastUpdateTime(), actual.getLastUpdateTime());
+        Assert.assertEquals(expected.getParticipants().size(), actual.getParticipants().size());
+
+        for (int i = 0; i < expected.getParticipants().size(); i++) {
+            Assert.assertEquals(expected.getParticipants().get(i).getXid(), actual.getParticipants().get(i).getXid());
+        }
+    }
+
+    private static Transaction newTransaction(int participantCount) {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        enlist(transaction, participantCount);
+        return transaction;
+    }
+
+    private static void enlist(Transaction transaction, int participantCount) {
+
+        for (int i = 0; i < participantCount; i++) {
+            transaction.enlistParticipant(new Participant(new TransactionXid(transaction.getXid().getGlobalTransactionId()),
+                    new InvocationContext(TransactionSerializerTest.class, "confirm", new Class[0]),
+                    new InvocationContext(TransactionSerializerTest.class, "cancel", new Class[0]),
+                    Compensable.NullableTransactionContextEditor.class));
+        }
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    private static void deleteRecursively(File file) {
+
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    static class AnyObjectSerializer implements ObjectSerializer<Object> {
+
+        @Override
+        public byte[] serialize(Object object) {
+            return SerializationUtils.serialize((Serializable) object);
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) {
+            return SerializationUtils.deserialize(bytes);
+        }
+
+        @Override
+        public Object clone(Object object) {
+            return deserialize(serialize(object));
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.mengyun.tcctransaction.unit.test;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.Compensable;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.common.TransactionType;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The parallel confirm and cancel of the participants of a transaction.
+ */
+public class TransactionTest {
+
+    private ExecutorService executorService;
+
+    @Before
+    public void before() {
+        ParallelService.reset();
+    }
+
+    @After
+    public void after() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAllParticipantsTerminatedAtOnce() {
+
+        executorService = Executors.newFixedThreadPool(4);
+
+        Transaction transaction = transaction(5);
+
+        //every participant waits for all the others, they only end if they run at the same time.
+        ParallelService.latch = new CountDownLatch(5);
+
+        transaction.commit(executorService);
+
+        Assert.assertEquals(5, ParallelService.CONFIRMED.size());
+        Assert.assertEquals(0, ParallelService.CANCELLED.size());
+        Assert.assertEquals(5, ParallelService.RUNS.get());
+        Assert.assertEquals(5, new HashSet<String>(ParallelService.CONFIRMED.values()).size());
+
+        ParallelService.latch = new CountDownLatch(5);
+
+        transaction.rollback(executorService);
+
+        Assert.assertEquals(5, ParallelService.CANCELLED.size());
+    }
+
+    @Test
+    public void testFailureRaisedWithOthersSuppressed() {
+
+        executorService = Executors.newFixedThreadPool(4);
+
+        Transaction transaction = transaction(5);
+
+        ParallelService.FAILING.add(1);
+        ParallelService.FAILING.add(3);
+
+        try {
+            transaction.commit(executorService);
+            Assert.fail("the failures of the participants were not raised");
+        } catch (RuntimeException e) {
+            Assert.assertEquals(1, e.getSuppressed().length);
+            Assert.assertTrue(String.valueOf(e), failureOf(e).contains("participant 1"));
+            Assert.assertTrue(String.valueOf(e.getSuppressed()[0]), failureOf(e.getSuppressed()[0]).contains("participant 3"));
+        }
+
+        //the participants not failing are confirmed all the same.
+        Assert.assertEquals(new HashSet<Integer>(Arrays.asList(0, 2, 4)), ParallelService.CONFIRMED.keySet());
+    }
+
+    @Test
+    public void testQueuedParticipantsRunInline() throws InterruptedException {
+
+        executorService = Executors.newSingleThreadExecutor();
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        occupy(executorService, blocked);
+
+        try {
+            transaction(3).commit(executorService);
+        } finally {
+            blocked.countDown();
+        }
+
+        assertAllRunBy(Thread.currentThread().getName(), 3);
+    }
+
+    @Test
+    public void testRejectedParticipantsRunInline() throws InterruptedException {
+
+        executorService = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy());
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        occupy(executorService, blocked);
+
+        try {
+            transaction(3).rollback(executorService);
+        } finally {
+            blocked.countDown();
+        }
+
+        Assert.assertEquals(3, ParallelService.CANCELLED.size());
+
+        for (String threadName : ParallelService.CANCELLED.values()) {
+            Assert.assertEquals(Thread.currentThread().getName(), threadName);
+        }
+    }
+
+    private static void assertAllRunBy(String threadName, int count) {
+
+        Assert.assertEquals(count, ParallelService.CONFIRMED.size());
+
+        for (String name : ParallelService.CONFIRMED.values()) {
+            Assert.assertEquals(threadName, name);
+        }
+    }
+
+    //keeps the only thread of the executor busy until the latch is released.
+    private static void occupy(ExecutorService executorService, final CountDownLatch blocked) throws InterruptedException {
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocked.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    }
+
+    private static String failureOf(Throwable throwable) {
+
+        Throwable cause = throwable;
+
+        while (cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+
+        return String.valueOf(cause.getMessage());
+    }
+
+    private static Transaction transaction(int participantCount) {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+
+        for (int i = 0; i < participantCount; i++) {
+
+            Object[] args = new Object[]{i};
+
+            transaction.enlistParticipant(new Participant(new TransactionXid(transaction.getXid().getGlobalTransactionId()),
+                    new InvocationContext(ParallelService.class, "confirm", new Class[]{int.class}, args),
+                    new InvocationContext(ParallelService.class, "cancel", new Class[]{int.class}, args),
+                    Compensable.NullableTransactionContextEditor.class));
+        }
+
+        return transaction;
+    }
+
+    public static class ParallelService {
+
+        static final Map<Integer, String> CONFIRMED = new ConcurrentHashMap<Integer, String>();
+
+        static final Map<Integer, String> CANCELLED = new ConcurrentHashMap<Integer, String>();
+
+        static final Set<Integer> FAILING = new HashSet<Integer>();
+
+        static final AtomicInteger RUNS = new AtomicInteger();
+
+        static volatile CountDownLatch latch;
+
+        static void reset() {
+            CONFIRMED.clear();
+            CANCELLED.clear();
+            FAILING.clear();
+            RUNS.set(0);
+            latch = null;
+        }
+
+        public void confirm(int index) {
+            terminate(index, CONFIRMED);
+        }
+
+        public void cancel(int index) {
+            terminate(index, CANCELLED);
+        }
+
+        private void terminate(int index, Map<Integer, String> terminated) {
+
+            RUNS.incrementAndGet();
+
+            CountDownLatch latch = ParallelService.latch;
+
+            if (latch != null) {
+                latch.countDown();
+                try {
+                    Assert.assertTrue("participant " + index + " does not run at the same time as the others", latch.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (FAILING.contains(index)) {
+                throw new IllegalStateException("participant " + index + " failed");
+            }
+
+            terminated.put(index, Thread.currentThread().getName());
+        }
+    }
+}